@@ -0,0 +1,77 @@
+package fileserver.benchmarks;
+
+import fileserver.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing a configuration file with Configuration.from.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark {
+    private static final String CONFIG = "# The root directory of the server.\n" +
+            "root=/var/www/files\n" +
+            "meta-root=.meta\n" +
+            "theme=css/themes/default.css\n" +
+            "port=8080\n" +
+            "show-hidden=false\n" +
+            "\n" +
+            "keep-alive-timeout=5000\n" +
+            "keep-alive-max-requests=100\n" +
+            "engine=blocking\n" +
+            "executor=work-stealing\n" +
+            "cache-control=/.meta public, max-age=604800\n" +
+            "cache-control=/ no-cache\n" +
+            "compression=true\n" +
+            "compression-min-size=1024\n" +
+            "compression-types=text/ application/javascript application/json application/xml image/svg+xml\n" +
+            "compression-cache-size=33554432\n" +
+            "file-cache-size=67108864\n" +
+            "directory-watch=true\n" +
+            "directory-cache-ttl=60000\n" +
+            "directory-cache-entries=10000\n" +
+            "directory-page-size=1000\n" +
+            "mime-sniffing=false\n" +
+            "access-log-format=combined\n" +
+            "reverse-dns=false\n";
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        this.file = Files.createTempFile("fileserver-benchmark", ".conf");
+        Files.writeString(this.file, CONFIG);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(this.file);
+    }
+
+    @Benchmark
+    public Configuration from() throws IOException {
+        return Configuration.from(this.file);
+    }
+}
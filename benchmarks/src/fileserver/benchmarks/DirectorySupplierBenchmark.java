@@ -0,0 +1,80 @@
+package fileserver.benchmarks;
+
+import fileserver.Configuration;
+import fileserver.DirectoryCache;
+import fileserver.DirectorySupplier;
+import fileserver.MimeTypes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks generating the HTML rows of a directory listing with DirectorySupplier.get.
+ *
+ * Each synthetic directory holds files of mixed types and a subdirectory for every hundred files, so MIME type lookups
+ * and cached item counts are both exercised.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectorySupplierBenchmark {
+    /**
+     * The number of entries in the listed directory.
+     */
+    @Param({ "100", "10000", "100000" })
+    public int entries;
+
+    private Path root;
+    private Path directory;
+    private MimeTypes mimeTypes;
+    private DirectoryCache itemCounts;
+
+    @Setup
+    public void setup() throws IOException {
+        this.root = Fixtures.createRoot();
+        this.directory = this.root.resolve("listing");
+        Fixtures.fill(this.directory, this.entries);
+        final Configuration config = new Configuration(this.root, null, null, (short) 0, false,
+                Map.of("directory-watch", List.of("false")));
+        this.mimeTypes = new MimeTypes(config);
+        this.itemCounts = new DirectoryCache(config);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(this.root);
+    }
+
+    @Benchmark
+    public String get() {
+        return new DirectorySupplier(this.root, this.root.resolve(".meta"), false, this.directory, this.mimeTypes,
+                this.itemCounts).get();
+    }
+
+    @Benchmark
+    public String getWithoutItemCounts() {
+        return new DirectorySupplier(this.root, this.root.resolve(".meta"), false, this.directory, this.mimeTypes,
+                null).get();
+    }
+}
@@ -0,0 +1,100 @@
+package fileserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic server roots for benchmarks.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+final class Fixtures {
+    /**
+     * The default page template as shipped in fileserver-root.
+     */
+    static final String DEFAULT_TEMPLATE = "<!DOCTYPE html>\n" +
+            "<html lang=\"en\">\n" +
+            "    <head>\n" +
+            "        <meta charset=\"utf-8\" />\n" +
+            "        <meta name=\"viewport\" content=\"width=device-width, initial-scale=1\" />\n" +
+            "        <link rel=\"stylesheet\" href=\"/%meta%/css/main.css\" />\n" +
+            "        <link rel=\"stylesheet\" href=\"/%meta%/%theme_path%\" />\n" +
+            "        <title>%title%</title>\n" +
+            "    </head>\n" +
+            "    <body>\n" +
+            "        <header>\n" +
+            "            %header%\n" +
+            "        </header>\n" +
+            "        <main>\n" +
+            "            %body%\n" +
+            "        </main>\n" +
+            "        <footer>\n" +
+            "            %footer%\n" +
+            "        </footer>\n" +
+            "        <script src=\"/%meta%/js/times.js\"></script>\n" +
+            "    </body>\n" +
+            "</html>\n";
+
+    private static final String[] EXTENSIONS = { "txt", "html", "png", "tar.gz", "json", "" };
+
+    private Fixtures() {
+    }
+
+    /**
+     * Create a server root with a meta directory holding the default template.
+     *
+     * @return The absolute Path of the root.
+     * @throws IOException If the root cannot be created.
+     */
+    static Path createRoot() throws IOException {
+        final Path root = Files.createTempDirectory("fileserver-benchmark").toAbsolutePath();
+        final Path meta = root.resolve(".meta");
+        Files.createDirectories(meta.resolve("img/icons/mimetypes"));
+        Files.createDirectories(meta.resolve("templates"));
+        Files.writeString(meta.resolve("templates/default.template.html"), DEFAULT_TEMPLATE);
+        return root;
+    }
+
+    /**
+     * Fill a directory with empty files of mixed types and a subdirectory for every hundred files.
+     *
+     * @param directory The directory to fill. It is created if it doesn't exist.
+     * @param entries The number of entries to create.
+     * @throws IOException If an entry cannot be created.
+     */
+    static void fill(final Path directory, final int entries) throws IOException {
+        Files.createDirectories(directory);
+        for (int i = 0; i < entries; ++i)
+        {
+            if (i % 100 == 99)
+            {
+                Files.createDirectory(directory.resolve(String.format("directory-%06d", i)));
+                continue;
+            }
+            final String extension = EXTENSIONS[i % EXTENSIONS.length];
+            final String name = extension.isEmpty() ? String.format("file-%06d", i) :
+                    String.format("file-%06d.%s", i, extension);
+            Files.write(directory.resolve(name), new byte[i % 4096]);
+        }
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     *
+     * @param directory The directory to delete.
+     * @throws IOException If an entry cannot be deleted.
+     */
+    static void delete(final Path directory) throws IOException {
+        try (final Stream<Path> entries = Files.walk(directory))
+        {
+            for (final Path entry : (Iterable<Path>) entries.sorted(Comparator.reverseOrder())::iterator)
+            {
+                Files.delete(entry);
+            }
+        }
+    }
+}
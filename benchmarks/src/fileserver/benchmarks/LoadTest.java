@@ -0,0 +1,694 @@
+package fileserver.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * An end-to-end load test of the Server over loopback.
+ *
+ * A fixture tree of directory listings, meta assets, and large files is generated once. Then, for each engine and
+ * executor configuration, a Server is started in its own JVM and driven by a fixed number of keep-alive connections,
+ * each sending a weighted mix of requests as fast as the Server answers them. Every configuration sees the same tree
+ * and the same mix so their results can be compared directly.
+ *
+ * Run it with ./gradlew :benchmarks:loadTest -PloadTest='[OPTION...]'. Pass --help for the options.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public final class LoadTest {
+    /**
+     * The time, in milliseconds, that a Server is given to start listening.
+     */
+    public static final long STARTUP_TIMEOUT_MILLIS = 30_000;
+
+    private static final int BUFFER_SIZE = 64 << 10; // 64KiB
+    private static final long MAX_META_ASSET_SIZE = 256 << 10; // 256KiB
+
+    /**
+     * The kinds of request in the mix.
+     */
+    private enum Kind {
+        Index,
+        Meta,
+        Large
+    }
+
+    private LoadTest() {
+    }
+
+    /**
+     * The options of a load test run.
+     */
+    private static final class Options {
+        private List<String> configurations = List.of("blocking/work-stealing", "blocking/fixed", "blocking/virtual",
+                "nio");
+        private int connections = 64;
+        private long warmupSeconds = 5;
+        private long durationSeconds = 20;
+        private final int[] mix = { 20, 70, 10 };
+        private int indexDirectories = 4;
+        private int indexEntries = 500;
+        private int largeFiles = 4;
+        private long largeSize = 16L << 20;
+        private boolean gzip = true;
+        private Path meta = null;
+        private final List<String> serverOptions = new ArrayList<>();
+
+        private static long parseSize(final String value) {
+            final String lower = value.toLowerCase(Locale.ROOT);
+            final char unit = lower.charAt(lower.length() - 1);
+            final int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+            return Long.parseLong(shift > 0 ? lower.substring(0, lower.length() - 1) : lower) << shift;
+        }
+
+        private static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i < args.length; ++i)
+            {
+                final String name = args[i];
+                if (name.equals("--help"))
+                {
+                    printUsage();
+                    System.exit(0);
+                }
+                if (i + 1 >= args.length)
+                {
+                    throw new IllegalArgumentException(String.format("Missing value for %s", name));
+                }
+                final String value = args[++i];
+                switch (name)
+                {
+                case "--configs":
+                    options.configurations = List.of(value.split(","));
+                    break;
+                case "--connections":
+                    options.connections = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    options.warmupSeconds = Long.parseLong(value);
+                    break;
+                case "--duration":
+                    options.durationSeconds = Long.parseLong(value);
+                    break;
+                case "--mix":
+                    for (final String weight : value.split(","))
+                    {
+                        final String[] pair = weight.split("=", 2);
+                        options.mix[Kind.valueOf(pair[0].substring(0, 1).toUpperCase(Locale.ROOT) +
+                                pair[0].substring(1).toLowerCase(Locale.ROOT)).ordinal()] = Integer.parseInt(pair[1]);
+                    }
+                    break;
+                case "--index-directories":
+                    options.indexDirectories = Integer.parseInt(value);
+                    break;
+                case "--index-entries":
+                    options.indexEntries = Integer.parseInt(value);
+                    break;
+                case "--large-files":
+                    options.largeFiles = Integer.parseInt(value);
+                    break;
+                case "--large-size":
+                    options.largeSize = parseSize(value);
+                    break;
+                case "--gzip":
+                    options.gzip = Boolean.parseBoolean(value);
+                    break;
+                case "--meta":
+                    options.meta = Path.of(value);
+                    break;
+                case "--option":
+                    options.serverOptions.add(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown option %s", name));
+                }
+            }
+            if (Arrays.stream(options.mix).sum() <= 0)
+            {
+                throw new IllegalArgumentException("The request mix needs at least one positive weight");
+            }
+            return options;
+        }
+    }
+
+    private static void printUsage() {
+        System.out.printf("Usage: LoadTest [OPTION...]%n" +
+                "  --configs LIST             Comma separated engine/executor pairs to compare, for example%n" +
+                "                             blocking/fixed,nio. Defaults to every engine and executor.%n" +
+                "  --connections N            Concurrent keep-alive connections. Defaults to 64.%n" +
+                "  --warmup SECONDS           Time driven before measuring. Defaults to 5.%n" +
+                "  --duration SECONDS         Time measured. Defaults to 20.%n" +
+                "  --mix index=W,meta=W,large=W  Request weights. Defaults to index=20,meta=70,large=10.%n" +
+                "  --index-directories N      Generated directory listings. Defaults to 4.%n" +
+                "  --index-entries N          Entries in each listing. Defaults to 500.%n" +
+                "  --large-files N            Generated large files. Defaults to 4.%n" +
+                "  --large-size SIZE          Size of each large file, with an optional k, m, or g suffix. Defaults%n" +
+                "                             to 16m.%n" +
+                "  --gzip BOOLEAN             Whether requests accept gzip. Defaults to true.%n" +
+                "  --meta PATH                Meta directory to serve. Defaults to fileserver-root/.meta.%n" +
+                "  --option KEY=VALUE         Extra Server option. This may be repeated.%n");
+    }
+
+    /**
+     * The request paths of each kind in the fixture tree.
+     */
+    private static final class Fixture {
+        private final Path root;
+        private final String[][] paths;
+
+        private Fixture(final Path root, final String[][] paths) {
+            this.root = root;
+            this.paths = paths;
+        }
+    }
+
+    private static String toRequestPath(final Path root, final Path file) {
+        final StringBuilder builder = new StringBuilder();
+        for (final Path part : root.relativize(file))
+        {
+            builder.append('/').append(part);
+        }
+        return builder.toString();
+    }
+
+    private static void copy(final Path source, final Path target) throws IOException {
+        try (final Stream<Path> entries = Files.walk(source))
+        {
+            for (final Path entry : (Iterable<Path>) entries::iterator)
+            {
+                final Path destination = target.resolve(source.relativize(entry).toString());
+                if (Files.isDirectory(entry))
+                {
+                    Files.createDirectories(destination);
+                }
+                else
+                {
+                    Files.copy(entry, destination, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private static Fixture createFixture(final Options options) throws IOException {
+        final Path root = Fixtures.createRoot();
+        if (options.meta != null)
+        {
+            copy(options.meta, root.resolve(".meta"));
+        }
+        final List<String> index = new ArrayList<>();
+        index.add("/");
+        for (int i = 0; i < options.indexDirectories; ++i)
+        {
+            final Path directory = root.resolve(String.format("index-%d", i));
+            Fixtures.fill(directory, options.indexEntries);
+            index.add(String.format("/index-%d/", i));
+        }
+        final List<String> meta = new ArrayList<>();
+        try (final Stream<Path> entries = Files.walk(root.resolve(".meta")))
+        {
+            for (final Path entry : (Iterable<Path>) entries::iterator)
+            {
+                if (Files.isRegularFile(entry) && Files.size(entry) <= MAX_META_ASSET_SIZE)
+                {
+                    meta.add(toRequestPath(root, entry));
+                }
+            }
+        }
+        final List<String> large = new ArrayList<>();
+        final Path largeDirectory = Files.createDirectories(root.resolve("large"));
+        final byte[] block = new byte[BUFFER_SIZE];
+        for (int i = 0; i < options.largeFiles; ++i)
+        {
+            final Path file = largeDirectory.resolve(String.format("file-%d.bin", i));
+            try (final OutputStream output = Files.newOutputStream(file))
+            {
+                for (long written = 0; written < options.largeSize; written += block.length)
+                {
+                    ThreadLocalRandom.current().nextBytes(block);
+                    output.write(block, 0, (int) Math.min(block.length, options.largeSize - written));
+                }
+            }
+            large.add(toRequestPath(root, file));
+        }
+        return new Fixture(root, new String[][] { index.toArray(new String[0]), meta.toArray(new String[0]),
+                large.toArray(new String[0]) });
+    }
+
+    /**
+     * Latencies, bytes, and errors recorded by a single connection.
+     */
+    private static final class Recorder {
+        private final long[][] latencies = new long[Kind.values().length][1024];
+        private final int[] counts = new int[Kind.values().length];
+        private final long[] bytes = new long[Kind.values().length];
+        private final long[] errors = new long[Kind.values().length];
+
+        private void record(final Kind kind, final long nanos, final long length) {
+            final int index = kind.ordinal();
+            if (length < 0)
+            {
+                ++this.errors[index];
+                return;
+            }
+            if (this.counts[index] == this.latencies[index].length)
+            {
+                this.latencies[index] = Arrays.copyOf(this.latencies[index], this.counts[index] * 2);
+            }
+            this.latencies[index][this.counts[index]++] = nanos;
+            this.bytes[index] += length;
+        }
+    }
+
+    /**
+     * A single keep-alive connection sending requests until the run ends.
+     */
+    private static final class Worker implements Runnable {
+        private final int port;
+        private final Fixture fixture;
+        private final Options options;
+        private final long measureFrom;
+        private final long measureUntil;
+        private final Recorder recorder;
+        private final byte[] buffer;
+        private Socket socket;
+        private InputStream input;
+        private OutputStream output;
+
+        private Worker(final int port, final Fixture fixture, final Options options, final long measureFrom,
+                       final long measureUntil) {
+            this.port = port;
+            this.fixture = fixture;
+            this.options = options;
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+            this.recorder = new Recorder();
+            this.buffer = new byte[BUFFER_SIZE];
+        }
+
+        private Kind choose() {
+            final int total = Arrays.stream(this.options.mix).sum();
+            int pick = ThreadLocalRandom.current().nextInt(total);
+            for (final Kind kind : Kind.values())
+            {
+                pick -= this.options.mix[kind.ordinal()];
+                if (pick < 0 && this.fixture.paths[kind.ordinal()].length > 0)
+                {
+                    return kind;
+                }
+            }
+            return Kind.Index;
+        }
+
+        private void connect() throws IOException {
+            close();
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(true);
+            this.socket.connect(new InetSocketAddress("127.0.0.1", this.port));
+            this.socket.setSoTimeout(30_000);
+            this.input = new BufferedInputStream(this.socket.getInputStream(), BUFFER_SIZE);
+            this.output = this.socket.getOutputStream();
+        }
+
+        private void close() {
+            if (this.socket != null)
+            {
+                try
+                {
+                    this.socket.close();
+                }
+                catch (final IOException ignored)
+                {
+                    // The connection is being replaced anyway.
+                }
+                this.socket = null;
+            }
+        }
+
+        private String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int read;
+            while ((read = this.input.read()) != '\n')
+            {
+                if (read < 0)
+                {
+                    throw new EOFException("Connection closed during response");
+                }
+                if (read != '\r')
+                {
+                    line.append((char) read);
+                }
+            }
+            return line.toString();
+        }
+
+        private void discard(final long length) throws IOException {
+            long remaining = length;
+            while (remaining > 0)
+            {
+                final int read = this.input.read(this.buffer, 0, (int) Math.min(this.buffer.length, remaining));
+                if (read < 0)
+                {
+                    throw new EOFException("Connection closed during response");
+                }
+                remaining -= read;
+            }
+        }
+
+        /**
+         * Read a response and discard its body.
+         *
+         * @return The length of the body, or -1 if the status wasn't successful.
+         */
+        private long readResponse() throws IOException {
+            final String status = readLine();
+            final boolean successful = status.startsWith("HTTP/1.1 2") || status.startsWith("HTTP/1.1 304");
+            long length = 0;
+            boolean chunked = false;
+            boolean closing = false;
+            String header;
+            while (!(header = readLine()).isEmpty())
+            {
+                final String lower = header.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("content-length:"))
+                {
+                    length = Long.parseLong(lower.substring(15).trim());
+                }
+                else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked"))
+                {
+                    chunked = true;
+                }
+                else if (lower.startsWith("connection:") && lower.contains("close"))
+                {
+                    closing = true;
+                }
+            }
+            if (chunked)
+            {
+                length = 0;
+                long size;
+                while ((size = Long.parseLong(readLine().split(";", 2)[0].trim(), 16)) > 0)
+                {
+                    discard(size);
+                    readLine();
+                    length += size;
+                }
+                while (!readLine().isEmpty())
+                {
+                    // Trailers are ignored.
+                }
+            }
+            else
+            {
+                discard(length);
+            }
+            if (closing)
+            {
+                close();
+            }
+            return successful ? length : -1;
+        }
+
+        @Override
+        public void run() {
+            final StringBuilder request = new StringBuilder();
+            while (System.nanoTime() < this.measureUntil)
+            {
+                final Kind kind = choose();
+                final String[] paths = this.fixture.paths[kind.ordinal()];
+                final String path = paths[ThreadLocalRandom.current().nextInt(paths.length)];
+                request.setLength(0);
+                request.append("GET ").append(path).append(" HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+                if (this.options.gzip)
+                {
+                    request.append("Accept-Encoding: gzip\r\n");
+                }
+                request.append("\r\n");
+                final long start = System.nanoTime();
+                long length;
+                try
+                {
+                    if (this.socket == null)
+                    {
+                        connect();
+                    }
+                    this.output.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+                    length = readResponse();
+                }
+                catch (final IOException | RuntimeException err)
+                {
+                    close();
+                    length = -1;
+                }
+                final long end = System.nanoTime();
+                if (start >= this.measureFrom && end <= this.measureUntil)
+                {
+                    this.recorder.record(kind, end - start, length);
+                }
+            }
+            close();
+        }
+    }
+
+    private static Path logPath(final Fixture fixture, final String configuration) {
+        return fixture.root.resolve(String.format(".meta/%s.log", configuration.replace('/', '-')));
+    }
+
+    private static String lastLine(final Path log) throws IOException {
+        final List<String> lines = Files.readAllLines(log);
+        return lines.isEmpty() ? "no output" : lines.get(lines.size() - 1);
+    }
+
+    /**
+     * Start a Server in its own JVM and wait for it to listen.
+     *
+     * @return The Server process or null if it exited before listening.
+     */
+    private static Process startServer(final String configuration, final Fixture fixture, final Options options,
+                                       final int port) throws IOException, InterruptedException {
+        final String[] parts = configuration.split("/", 2);
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format("root=%s", fixture.root));
+        lines.add(String.format("port=%d", port));
+        lines.add(String.format("engine=%s", parts[0]));
+        if (parts.length > 1)
+        {
+            lines.add(String.format("executor=%s", parts[1]));
+        }
+        lines.add("access-log=false");
+        lines.addAll(options.serverOptions);
+        final Path config = Files.write(fixture.root.resolve(".meta/load-test.conf"), lines);
+        final Path log = logPath(fixture, configuration);
+        final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        final Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "fileserver.Server", config.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (!server.isAlive())
+            {
+                System.out.printf("%s exited during startup: %s%n", configuration, lastLine(log));
+                return null;
+            }
+            try (final Socket probe = new Socket())
+            {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 1_000);
+                return server;
+            }
+            catch (final IOException err)
+            {
+                Thread.sleep(100);
+            }
+        }
+        server.destroyForcibly();
+        throw new IOException(String.format("%s didn't start listening within %dms", configuration,
+                STARTUP_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Find a free loopback port. Configurations store ports as shorts so ephemeral ports can't be used.
+     */
+    private static int findFreePort() throws IOException {
+        for (int attempt = 0; attempt < 100; ++attempt)
+        {
+            final int port = ThreadLocalRandom.current().nextInt(20_000, Short.MAX_VALUE);
+            try (final ServerSocket socket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress()))
+            {
+                return socket.getLocalPort();
+            }
+            catch (final IOException err)
+            {
+                // Try another port.
+            }
+        }
+        throw new IOException("Couldn't find a free port");
+    }
+
+    private static double percentile(final long[] sorted, final double quantile) {
+        if (sorted.length == 0)
+        {
+            return Double.NaN;
+        }
+        final int rank = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1e6;
+    }
+
+    private static String summarize(final String name, final long[] latencies, final long bytes, final long errors,
+                                    final double seconds) {
+        Arrays.sort(latencies);
+        return String.format("%-24s %10d %7d %10.1f %9.1f %8.2f %8.2f %8.2f %8.2f", name, latencies.length, errors,
+                latencies.length / seconds, bytes / seconds / (1 << 20), percentile(latencies, 0.5),
+                percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies.length > 0 ? latencies[latencies.length - 1] / 1e6 : Double.NaN);
+    }
+
+    /**
+     * Drive a running Server and summarize the results.
+     *
+     * @return The summary lines. The first line covers every request and the rest cover each kind of request.
+     */
+    private static List<String> drive(final String configuration, final Fixture fixture, final Options options,
+                                      final int port) throws InterruptedException {
+        final long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        final long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        final Worker[] workers = new Worker[options.connections];
+        final Thread[] threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; ++i)
+        {
+            workers[i] = new Worker(port, fixture, options, measureFrom, measureUntil);
+            threads[i] = new Thread(workers[i], String.format("load-%d", i));
+            threads[i].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        final double seconds = options.durationSeconds;
+        final List<String> lines = new ArrayList<>();
+        final Map<Kind, String> kinds = new LinkedHashMap<>();
+        long[] all = new long[0];
+        long totalBytes = 0;
+        long totalErrors = 0;
+        for (final Kind kind : Kind.values())
+        {
+            final int index = kind.ordinal();
+            long[] latencies = new long[0];
+            long bytes = 0;
+            long errors = 0;
+            for (final Worker worker : workers)
+            {
+                final Recorder recorder = worker.recorder;
+                final int offset = latencies.length;
+                latencies = Arrays.copyOf(latencies, offset + recorder.counts[index]);
+                System.arraycopy(recorder.latencies[index], 0, latencies, offset, recorder.counts[index]);
+                bytes += recorder.bytes[index];
+                errors += recorder.errors[index];
+            }
+            if (latencies.length > 0 || errors > 0)
+            {
+                final int offset = all.length;
+                all = Arrays.copyOf(all, offset + latencies.length);
+                System.arraycopy(latencies, 0, all, offset, latencies.length);
+                totalBytes += bytes;
+                totalErrors += errors;
+                kinds.put(kind, summarize(String.format("  %s", kind.name().toLowerCase(Locale.ROOT)), latencies,
+                        bytes, errors, seconds));
+            }
+        }
+        lines.add(summarize(configuration, all, totalBytes, totalErrors, seconds));
+        lines.addAll(kinds.values());
+        return lines;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Options options;
+        try
+        {
+            options = Options.parse(args);
+        }
+        catch (final IllegalArgumentException err)
+        {
+            System.err.printf("%s%n", err.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        System.out.printf("Generating fixture tree%n");
+        final Fixture fixture = createFixture(options);
+        System.out.printf("Fixture: %d index pages, %d meta assets, %d large files of %d bytes%n",
+                fixture.paths[Kind.Index.ordinal()].length, fixture.paths[Kind.Meta.ordinal()].length,
+                fixture.paths[Kind.Large.ordinal()].length, options.largeSize);
+        System.out.printf("Load: %d connections, %ds warmup, %ds measured, mix index=%d meta=%d large=%d%n%n",
+                options.connections, options.warmupSeconds, options.durationSeconds, options.mix[0], options.mix[1],
+                options.mix[2]);
+        final List<String> report = new ArrayList<>();
+        try
+        {
+            for (final String configuration : options.configurations)
+            {
+                System.out.printf("Running %s%n", configuration);
+                final int port = findFreePort();
+                final Process server = startServer(configuration, fixture, options, port);
+                if (server == null)
+                {
+                    continue;
+                }
+                try
+                {
+                    final List<String> results = drive(configuration, fixture, options, port);
+                    // Some configurations listen before failing, so only a Server that survived the run counts.
+                    if (server.isAlive())
+                    {
+                        report.addAll(results);
+                    }
+                    else
+                    {
+                        System.out.printf("%s exited during the run: %s%n", configuration,
+                                lastLine(logPath(fixture, configuration)));
+                    }
+                }
+                finally
+                {
+                    server.destroy();
+                    if (!server.waitFor(10, TimeUnit.SECONDS))
+                    {
+                        server.destroyForcibly();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            Fixtures.delete(fixture.root);
+        }
+        System.out.printf("%n%-24s %10s %7s %10s %9s %8s %8s %8s %8s%n", "configuration", "requests", "errors", "req/s",
+                "MiB/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (final String line : report)
+        {
+            System.out.printf("%s%n", line);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package fileserver.benchmarks;
+
+import fileserver.Bandwidth;
+import fileserver.CompressionCache;
+import fileserver.Configuration;
+import fileserver.DirectoryCache;
+import fileserver.FileCache;
+import fileserver.HttpRequest;
+import fileserver.Metrics;
+import fileserver.MimeTypes;
+import fileserver.RequestHandler;
+import fileserver.RequestParser;
+import fileserver.ResponseSink;
+import fileserver.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks serving single requests, from parsing the request head with a RequestParser to handing the response to
+ * the engine.
+ *
+ * Responses are discarded by the sink, so these measure the handler itself rather than the network.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+    private static final byte[] FILE_REQUEST = head("GET /files/readme.txt HTTP/1.1");
+    private static final byte[] CONDITIONAL_REQUEST = head("GET /files/readme.txt HTTP/1.1",
+            "If-None-Match: \"unknown\", W/\"other\"");
+    private static final byte[] MISSING_REQUEST = head("GET /files/missing.txt HTTP/1.1");
+    private static final byte[] MALFORMED_REQUEST = head("GET /files/readme.txt");
+
+    private Path root;
+    private RequestParser parser;
+    private RequestHandler handler;
+    private ResponseSink sink;
+
+    private static byte[] head(final String requestLine, final String... headers) {
+        final StringBuilder builder = new StringBuilder(requestLine).append("\r\n");
+        builder.append("Host: localhost:8080\r\n");
+        builder.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:88.0) Gecko/20100101 Firefox/88.0\r\n");
+        builder.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n");
+        builder.append("Accept-Encoding: gzip, deflate\r\n");
+        builder.append("Connection: keep-alive\r\n");
+        for (final String header : headers)
+        {
+            builder.append(header).append("\r\n");
+        }
+        return builder.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A ResponseSink that discards everything it is given.
+     */
+    private static final class DiscardingSink implements ResponseSink {
+        private final PrintStream output = new PrintStream(OutputStream.nullOutputStream());
+
+        @Override
+        public PrintStream stream() {
+            return this.output;
+        }
+
+        @Override
+        public void transfer(final Path file, final long position, final long count) {
+            // The file isn't read.
+        }
+
+        @Override
+        public void send(final ByteBuffer content) {
+            content.position(content.limit());
+        }
+
+        @Override
+        public void transfer(final ReadableByteChannel source) throws IOException {
+            try (source)
+            {
+                final ByteBuffer buffer = ByteBuffer.allocate(8192);
+                while (source.read(buffer) >= 0)
+                {
+                    buffer.clear();
+                }
+            }
+        }
+
+        @Override
+        public void whenSent(final Runnable callback) {
+            callback.run();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        this.root = Fixtures.createRoot();
+        Files.createDirectories(this.root.resolve("files"));
+        Files.writeString(this.root.resolve("files/readme.txt"), "A small text file.\n".repeat(64));
+        final Configuration config = new Configuration(this.root, null, null, (short) 0, false,
+                Map.of("directory-watch", List.of("false")));
+        final DirectoryCache directories = new DirectoryCache(config);
+        final CompressionCache compressed = new CompressionCache(config.getCompressionCacheSize());
+        final FileCache files = new FileCache(config);
+        this.handler = new RequestHandler(new ConcurrentHashMap<Integer, Template>(), directories, compressed, files,
+                new MimeTypes(config), null, new Metrics(directories, compressed, files, null), null,
+                new Bandwidth(config), config, new Socket());
+        this.parser = new RequestParser(RequestHandler.MAX_REQUEST_SIZE);
+        this.sink = new DiscardingSink();
+    }
+
+    private boolean serve(final byte[] head) throws IOException {
+        return this.handler.serve(this.parser.parse(ByteBuffer.wrap(head)), 1, this.sink);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(this.root);
+    }
+
+    @Benchmark
+    public HttpRequest parse() {
+        return this.parser.parse(ByteBuffer.wrap(CONDITIONAL_REQUEST));
+    }
+
+    @Benchmark
+    public boolean file() throws IOException {
+        return serve(FILE_REQUEST);
+    }
+
+    @Benchmark
+    public boolean conditionalFile() throws IOException {
+        return serve(CONDITIONAL_REQUEST);
+    }
+
+    @Benchmark
+    public boolean notFound() throws IOException {
+        return serve(MISSING_REQUEST);
+    }
+
+    @Benchmark
+    public boolean badRequest() throws IOException {
+        return serve(MALFORMED_REQUEST);
+    }
+}
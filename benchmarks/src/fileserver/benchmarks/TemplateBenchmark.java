@@ -0,0 +1,71 @@
+package fileserver.benchmarks;
+
+import fileserver.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks rendering the default page Template, both from its cache and by processing it again.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+    /**
+     * The size, in bytes, of the page body.
+     */
+    @Param({ "1024", "65536" })
+    public int bodySize;
+
+    private Template template;
+
+    @Setup
+    public void setup() {
+        final StringBuilder body = new StringBuilder(this.bodySize);
+        while (body.length() < this.bodySize)
+        {
+            body.append("<tr><td><a href=\"/files/entry\">entry</a></td><td>1.0 KiB</td></tr>\n");
+        }
+        this.template = new Template(Fixtures.DEFAULT_TEMPLATE);
+        this.template.set("meta", ".meta");
+        this.template.set("theme_path", "css/themes/default.css");
+        this.template.set("title", "Index of /files");
+        this.template.set("header", "<h1>Index of /files</h1>");
+        this.template.set("body", body.toString());
+        this.template.set("footer", "<p>Generated by Java HTTP Fileserver v1.0.0</p>");
+        this.template.setCacheDuration(Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public String cachedToString() {
+        return this.template.toString();
+    }
+
+    @Benchmark
+    public Template.Rendered cachedRender() {
+        return this.template.render();
+    }
+
+    @Benchmark
+    public Template.Rendered process() {
+        this.template.invalidate();
+        return this.template.render();
+    }
+}
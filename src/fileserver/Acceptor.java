@@ -0,0 +1,197 @@
+package fileserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Accepts connections on a listening socket and hands them to an engine.
+ *
+ * Every configured address is listened on by acceptors-many threads. Where the runtime supports SO_REUSEPORT each
+ * thread binds a socket of its own and the kernel spreads new connections between them, so accepting scales with the
+ * number of threads instead of funneling through a single accept queue. Otherwise the threads of an address share one
+ * socket.
+ *
+ * Accepted sockets are tuned and admitted before they are handed on. Connections that aren't admitted never reach an
+ * engine. Acceptors of HTTPS listeners close those connections without answering them since their clients expect a
+ * TLS handshake rather than a response.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class Acceptor implements Runnable {
+    /**
+     * The time, in milliseconds, that an Acceptor waits after failing to accept a connection. Failures such as running
+     * out of file descriptors tend to repeat immediately.
+     */
+    public static final long RETRY_MILLIS = 100;
+
+    private final ServerSocketChannel server;
+    private final Admission admission;
+    private final Consumer<SocketChannel> engine;
+    private final boolean noDelay;
+    private final int sendBufferSize;
+    private final boolean secure;
+
+    /**
+     * Constructs a new Acceptor for plain HTTP connections.
+     *
+     * @param server A bound, blocking ServerSocketChannel. It may be shared with other Acceptors.
+     * @param admission The limit on open connections.
+     * @param engine Takes each admitted connection. It must not block.
+     * @param config The Server Configuration.
+     */
+    public Acceptor(final ServerSocketChannel server, final Admission admission, final Consumer<SocketChannel> engine,
+                    final Configuration config) {
+        this(server, admission, engine, config, false);
+    }
+
+    /**
+     * Constructs a new Acceptor.
+     *
+     * @param server A bound, blocking ServerSocketChannel. It may be shared with other Acceptors.
+     * @param admission The limit on open connections.
+     * @param engine Takes each admitted connection. It must not block.
+     * @param config The Server Configuration.
+     * @param secure Whether the server is an HTTPS listener.
+     */
+    public Acceptor(final ServerSocketChannel server, final Admission admission, final Consumer<SocketChannel> engine,
+                    final Configuration config, final boolean secure) {
+        this.server = server;
+        this.admission = admission;
+        this.engine = engine;
+        this.noDelay = config.shouldUseNoDelay();
+        this.sendBufferSize = config.getSendBufferSize();
+        this.secure = secure;
+    }
+
+    /**
+     * Bind a listening socket for every acceptor of every configured listen address.
+     *
+     * @param config The Server Configuration.
+     * @return One ServerSocketChannel per acceptor. Acceptors of the same address share a channel if SO_REUSEPORT isn't
+     *         supported.
+     * @throws IOException If an address cannot be bound. Any channels already bound are closed.
+     */
+    public static List<ServerSocketChannel> bind(final Configuration config) throws IOException {
+        return bind(config, config.getListenAddresses());
+    }
+
+    /**
+     * Bind a listening socket for every acceptor of every given address.
+     *
+     * @param config The Server Configuration.
+     * @param addresses The addresses to listen on.
+     * @return One ServerSocketChannel per acceptor. Acceptors of the same address share a channel if SO_REUSEPORT isn't
+     *         supported.
+     * @throws IOException If an address cannot be bound. Any channels already bound are closed.
+     */
+    public static List<ServerSocketChannel> bind(final Configuration config, final List<InetSocketAddress> addresses)
+            throws IOException {
+        final List<ServerSocketChannel> servers = new ArrayList<>();
+        final int acceptors = Math.max(1, config.getAcceptors());
+        try
+        {
+            for (final InetSocketAddress address : addresses)
+            {
+                ServerSocketChannel shared = null;
+                SocketAddress bound = null;
+                for (int i = 0; i < acceptors; ++i)
+                {
+                    if (shared != null)
+                    {
+                        servers.add(shared);
+                        continue;
+                    }
+                    final ServerSocketChannel server = ServerSocketChannel.open();
+                    servers.add(server);
+                    if (acceptors > 1 && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    {
+                        server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    else
+                    {
+                        shared = server;
+                    }
+                    // Later channels bind the address the first one got so that port 0 means one port for all.
+                    server.bind(bound != null ? bound : address, config.getAcceptBacklog());
+                    bound = server.getLocalAddress();
+                }
+            }
+        }
+        catch (final IOException | RuntimeException err)
+        {
+            for (final ServerSocketChannel server : servers)
+            {
+                server.close();
+            }
+            throw err;
+        }
+        return servers;
+    }
+
+    private void configure(final SocketChannel client) throws IOException {
+        client.setOption(StandardSocketOptions.TCP_NODELAY, this.noDelay);
+        if (this.sendBufferSize > 0)
+        {
+            client.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+        }
+    }
+
+    /**
+     * Accept connections until the listening socket is closed.
+     */
+    @Override
+    public void run() {
+        while (this.server.isOpen())
+        {
+            final SocketChannel client;
+            try
+            {
+                client = this.server.accept();
+            }
+            catch (final ClosedChannelException err)
+            {
+                break;
+            }
+            catch (final IOException err)
+            {
+                // Running out of file descriptors or a connection reset before it was accepted shouldn't stop the
+                // server.
+                System.err.printf("I/O Error%n");
+                err.printStackTrace();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+                continue;
+            }
+            try
+            {
+                configure(client);
+            }
+            catch (final IOException err)
+            {
+                try
+                {
+                    client.close();
+                }
+                catch (final IOException ignored)
+                {
+                    // The connection is already broken.
+                }
+                continue;
+            }
+            if (this.admission.admit(client, !this.secure))
+            {
+                this.engine.accept(client);
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package fileserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log written by a background thread.
+ *
+ * Request handlers only capture the raw values of a request and publish them to a bounded, lock-free ring buffer.
+ * Formatting, reverse DNS lookups, and file I/O all happen on the log's own thread, which drains the ring in batches
+ * and flushes whenever it runs dry. When the ring is full entries are dropped and counted rather than making a response
+ * wait.
+ *
+ * Log files are rotated by size. The current file is renamed with a .1 suffix, older files are shifted up by one, and
+ * the oldest is deleted.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class AccessLog implements AutoCloseable {
+    /**
+     * The time, in milliseconds, that the log thread sleeps for when there is nothing to write.
+     */
+    public static final long IDLE_MILLIS = 10;
+
+    private static final DateTimeFormatter COMMON_TIME =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final Configuration.AccessLogFormat format;
+    private final Path file;
+    private final long maxSize;
+    private final int maxFiles;
+    private final boolean reverseDns;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final AtomicLong tail;
+    private final AtomicLong head;
+    private final LongAdder dropped;
+    private final Thread writer;
+    private volatile boolean closed;
+    private OutputStream output;
+    private long written;
+
+    /**
+     * The raw values of a single request. These are captured on the request's thread and formatted on the log thread.
+     */
+    private static final class Entry {
+        private final InetAddress remote;
+        private final long time;
+        private final String request;
+        private final int status;
+        private final long bytes;
+        private final String referer;
+        private final String userAgent;
+        private final long durationNanos;
+
+        private Entry(final InetAddress remote, final long time, final String request, final int status,
+                      final long bytes, final String referer, final String userAgent, final long durationNanos) {
+            this.remote = remote;
+            this.time = time;
+            this.request = request;
+            this.status = status;
+            this.bytes = bytes;
+            this.referer = referer;
+            this.userAgent = userAgent;
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    /**
+     * Append a quoted value. Quotes, backslashes, and control characters are escaped so that a client can't forge
+     * entries. Missing values are written as "-", or null in JSON.
+     */
+    private static void appendQuoted(final StringBuilder builder, final String value, final boolean json) {
+        if (value == null)
+        {
+            builder.append(json ? "null" : "\"-\"");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); ++i)
+        {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                builder.append('\\').append(c);
+            }
+            else if (c < 0x20 || c == 0x7f)
+            {
+                builder.append(String.format(json ? "\\u%04x" : "\\x%02x", (int) c));
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * Constructs a new AccessLog and starts its thread.
+     *
+     * @param config The Server Configuration.
+     * @throws IOException If the log file cannot be opened.
+     */
+    public AccessLog(final Configuration config) throws IOException {
+        this.format = config.getAccessLogFormat();
+        this.file = config.getAccessLogFile();
+        this.maxSize = config.getAccessLogMaxSize();
+        this.maxFiles = config.getAccessLogMaxFiles();
+        this.reverseDns = config.shouldResolveHostNames();
+        final int capacity = Integer.highestOneBit(Math.max(2, config.getAccessLogBufferSize() - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+        this.dropped = new LongAdder();
+        this.closed = false;
+        open();
+        this.writer = new Thread(this::run, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private void open() throws IOException {
+        if (this.file == null)
+        {
+            this.output = new BufferedOutputStream(System.out);
+            this.written = 0;
+            return;
+        }
+        this.output = new BufferedOutputStream(Files.newOutputStream(this.file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND));
+        this.written = Files.size(this.file);
+    }
+
+    /**
+     * Record a request. This never blocks.
+     *
+     * @param remote The address of the client.
+     * @param time The time, in milliseconds since the epoch, that the request was received.
+     * @param request The request line. This may be null if the request couldn't be read.
+     * @param status The status code of the response.
+     * @param bytes The length of the response body or -1 if it isn't known ahead of time.
+     * @param referer The value of the Referer header. This may be null.
+     * @param userAgent The value of the User-Agent header. This may be null.
+     * @param durationNanos The time, in nanoseconds, that the request took to serve.
+     * @return True if the request was recorded. False if the log is full or closed and the request was dropped.
+     */
+    public boolean log(final InetAddress remote, final long time, final String request, final int status,
+                       final long bytes, final String referer, final String userAgent, final long durationNanos) {
+        if (this.closed)
+        {
+            return false;
+        }
+        final Entry entry = new Entry(remote, time, request, status, bytes, referer, userAgent, durationNanos);
+        while (true)
+        {
+            final long next = this.tail.get();
+            if (next - this.head.get() > this.mask)
+            {
+                this.dropped.increment();
+                return false;
+            }
+            if (this.tail.compareAndSet(next, next + 1))
+            {
+                // The slot is claimed. The log thread waits for it to be filled before moving past it.
+                this.ring.lazySet((int) (next & this.mask), entry);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests that were dropped because the log couldn't keep up.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Format an entry in the configured format.
+     */
+    private byte[] format(final Entry entry) {
+        final String remote = this.reverseDns ? entry.remote.getHostName() : entry.remote.getHostAddress();
+        final StringBuilder builder = new StringBuilder(256);
+        if (this.format == Configuration.AccessLogFormat.Json)
+        {
+            builder.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append("\",\"remote\":");
+            appendQuoted(builder, remote, true);
+            builder.append(",\"request\":");
+            appendQuoted(builder, entry.request, true);
+            builder.append(",\"status\":").append(entry.status);
+            builder.append(",\"bytes\":").append(entry.bytes >= 0 ? Long.toString(entry.bytes) : "null");
+            builder.append(",\"referer\":");
+            appendQuoted(builder, entry.referer, true);
+            builder.append(",\"user_agent\":");
+            appendQuoted(builder, entry.userAgent, true);
+            builder.append(",\"duration_us\":").append(TimeUnit.NANOSECONDS.toMicros(entry.durationNanos));
+            builder.append('}');
+        }
+        else
+        {
+            builder.append(remote).append(" - - [").append(COMMON_TIME.format(Instant.ofEpochMilli(entry.time)))
+                   .append("] ");
+            appendQuoted(builder, entry.request, false);
+            builder.append(' ').append(entry.status).append(' ')
+                   .append(entry.bytes >= 0 ? Long.toString(entry.bytes) : "-");
+            if (this.format == Configuration.AccessLogFormat.Combined)
+            {
+                builder.append(' ');
+                appendQuoted(builder, entry.referer, false);
+                builder.append(' ');
+                appendQuoted(builder, entry.userAgent, false);
+            }
+        }
+        return builder.append(System.lineSeparator()).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void rotate() throws IOException {
+        this.output.close();
+        final Path directory = this.file.toAbsolutePath().getParent();
+        final String name = this.file.getFileName().toString();
+        Files.deleteIfExists(directory.resolve(String.format("%s.%d", name, this.maxFiles)));
+        for (int i = this.maxFiles - 1; i > 0; --i)
+        {
+            final Path older = directory.resolve(String.format("%s.%d", name, i));
+            if (Files.exists(older))
+            {
+                Files.move(older, directory.resolve(String.format("%s.%d", name, i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (this.maxFiles > 0)
+        {
+            Files.move(this.file, directory.resolve(String.format("%s.1", name)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else
+        {
+            Files.delete(this.file);
+        }
+        open();
+    }
+
+    /**
+     * Write every published entry.
+     *
+     * @return The number of entries written.
+     */
+    private int drain() throws IOException {
+        int count = 0;
+        long next = this.head.get();
+        while (true)
+        {
+            final int slot = (int) (next & this.mask);
+            final Entry entry = this.ring.get(slot);
+            if (entry == null)
+            {
+                // Either the ring is empty or the next slot has been claimed but not filled yet.
+                break;
+            }
+            this.ring.lazySet(slot, null);
+            this.head.lazySet(++next);
+            final byte[] line = format(entry);
+            this.output.write(line);
+            this.written += line.length;
+            ++count;
+            if (this.file != null && this.maxSize > 0 && this.written >= this.maxSize)
+            {
+                rotate();
+            }
+        }
+        return count;
+    }
+
+    private void run() {
+        while (true)
+        {
+            final boolean closing = this.closed;
+            try
+            {
+                if (drain() == 0)
+                {
+                    this.output.flush();
+                    if (closing)
+                    {
+                        return;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS));
+                }
+            }
+            catch (final IOException err)
+            {
+                System.err.printf("Failed to write access log%n");
+                err.printStackTrace();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS));
+            }
+        }
+    }
+
+    /**
+     * Write everything that has been recorded and stop the log thread. Requests recorded afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try
+        {
+            this.writer.join();
+            if (this.file != null)
+            {
+                this.output.close();
+            }
+        }
+        catch (final InterruptedException err)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final IOException err)
+        {
+            System.err.printf("Failed to close access log%n");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package fileserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of connections that are open at once.
+ *
+ * Every accepted connection is counted until it is closed, including connections that are still waiting for a thread.
+ * Once the limit is reached new connections are answered straight away with 503 Service Unavailable and a Retry-After
+ * header rather than being queued behind everything else. The answer is a single small write made without blocking so
+ * turning a client away costs the accepting thread almost nothing.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class Admission {
+    private final int maxConnections;
+    private final AtomicInteger connections;
+    private final ByteBuffer unavailable;
+    private final ByteBuffer discard;
+    private final Metrics metrics;
+
+    /**
+     * Constructs a new Admission.
+     *
+     * @param config The Server Configuration.
+     * @param metrics The server Metrics.
+     */
+    public Admission(final Configuration config, final Metrics metrics) {
+        this.maxConnections = config.getMaxConnections();
+        this.connections = new AtomicInteger();
+        this.unavailable = ByteBuffer.wrap(String.format("HTTP/1.1 503 Service Unavailable\r\nRetry-After: %d\r\n" +
+                "Content-Length: 0\r\nConnection: Close\r\n\r\n", config.getRetryAfter())
+                .getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+        this.discard = ByteBuffer.allocateDirect(RequestHandler.MAX_REQUEST_SIZE);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Admit a newly accepted connection if there is room for it. Otherwise turn it away.
+     *
+     * @param client The accepted connection. If it isn't admitted it is closed.
+     * @return True if the connection was admitted and must be released when it closes. Otherwise false.
+     */
+    public boolean admit(final SocketChannel client) {
+        return admit(client, true);
+    }
+
+    /**
+     * Admit a newly accepted connection if there is room for it. Otherwise turn it away.
+     *
+     * @param client The accepted connection. If it isn't admitted it is closed.
+     * @param answer Whether a connection that is turned away is answered with 503 first. Connections that expect a TLS
+     *               handshake can't read a plain response so they are only closed.
+     * @return True if the connection was admitted and must be released when it closes. Otherwise false.
+     */
+    public boolean admit(final SocketChannel client, final boolean answer) {
+        if (this.maxConnections <= 0 || this.connections.incrementAndGet() <= this.maxConnections)
+        {
+            return true;
+        }
+        this.connections.decrementAndGet();
+        this.metrics.connectionRejected();
+        try (client)
+        {
+            if (!answer)
+            {
+                return false;
+            }
+            client.configureBlocking(false);
+            // A new connection's send buffer is empty so this is written in full unless the client is already gone.
+            client.write(this.unavailable.duplicate());
+            client.shutdownOutput();
+            // Reading any request that has already arrived stops closing from resetting the connection before the
+            // client has read the response. What is read is never looked at so the buffer is shared.
+            client.read(this.discard.duplicate());
+        }
+        catch (final IOException ignored)
+        {
+            // The client was being turned away anyway.
+        }
+        return false;
+    }
+
+    /**
+     * Release an admitted connection once it has closed.
+     */
+    public void release() {
+        if (this.maxConnections > 0)
+        {
+            this.connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of admitted connections that are still open. This is always 0 if there is no limit.
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+}
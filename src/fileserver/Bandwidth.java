@@ -0,0 +1,381 @@
+package fileserver;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shapes the bandwidth used by responses with token buckets.
+ *
+ * There is a bucket for the whole server, one for each connected client address, and one for each configured path
+ * prefix. Every byte sent is charged to the buckets that apply to it but only file content ever waits for a bucket to
+ * refill. Response heads and buffered content are sent straight away and the file transfers sharing a bucket make up
+ * for them by waiting a little longer. As long as the server wide limit is a little below the uplink, downloads use
+ * whatever the interactive traffic leaves and index pages never queue behind them.
+ *
+ * File content is granted at most one quantum at a time and each engine gives every other connection a turn between
+ * grants. Large downloads are interleaved with each other and with small responses instead of being sent one after the
+ * other.
+ *
+ * Buckets without a limit still count what is sent through them so that current rates can always be reported.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class Bandwidth {
+    /**
+     * The fewest bytes a full bucket with a limit holds.
+     */
+    public static final long MIN_BURST = 1024;
+
+    private final Path root;
+    private final int quantum;
+    private final long clientLimit;
+    private final Bucket server;
+    private final List<Map.Entry<String, Bucket>> paths;
+    private final Map<InetAddress, Bucket> clients;
+    private final LongAdder clientsThrottled;
+
+    /**
+     * A token bucket.
+     *
+     * A full bucket holds a tenth of a second of tokens so that grants are spread out over each second. Charges can
+     * take a bucket into debt, by no more than a second of tokens, and nothing more is granted until the debt is paid.
+     */
+    public static final class Bucket {
+        private final String prefix;
+        private final long limit;
+        private final long burst;
+        private final LongAdder sent;
+        private final LongAdder throttled;
+        private double tokens;
+        private long refilled;
+        private long sampled;
+        private long sampledSent;
+        private long rate;
+        private int users;
+
+        private Bucket(final String prefix, final long limit, final LongAdder throttled) {
+            this.prefix = prefix;
+            this.limit = Math.max(0, limit);
+            this.burst = this.limit > 0 ? Math.max(MIN_BURST, this.limit / 10) : Long.MAX_VALUE;
+            this.sent = new LongAdder();
+            this.throttled = throttled;
+            this.tokens = this.burst;
+            this.refilled = System.nanoTime();
+            this.sampled = this.refilled;
+            this.sampledSent = 0;
+            this.rate = 0;
+            this.users = 0;
+        }
+
+        private void refill(final long now) {
+            this.tokens = Math.min(this.burst, this.tokens + (now - this.refilled) * (double) this.limit / 1e9);
+            this.refilled = now;
+        }
+
+        private void charge(final long bytes, final long now) {
+            this.sent.add(bytes);
+            if (this.limit > 0)
+            {
+                synchronized (this)
+                {
+                    refill(now);
+                    this.tokens = Math.max(-this.limit, this.tokens - bytes);
+                }
+            }
+        }
+
+        /**
+         * @return The time, in nanoseconds, until the bucket has tokens again. 0 if it has tokens now.
+         */
+        private long delay(final long now) {
+            if (this.limit == 0)
+            {
+                return 0;
+            }
+            synchronized (this)
+            {
+                refill(now);
+                return this.tokens >= 1 ? 0 : (long) Math.ceil((1 - this.tokens) * 1e9 / this.limit);
+            }
+        }
+
+        /**
+         * @return The path prefix the bucket is shared by or null if it isn't the bucket of a path.
+         */
+        public String getPrefix() {
+            return this.prefix;
+        }
+
+        /**
+         * @return The limit of the bucket in bytes per second. 0 means there is no limit.
+         */
+        public long getLimit() {
+            return this.limit;
+        }
+
+        /**
+         * @return The number of bytes charged to the bucket.
+         */
+        public long getSent() {
+            return this.sent.sum();
+        }
+
+        /**
+         * @return The number of times file content had to wait for the bucket to refill.
+         */
+        public long getThrottled() {
+            return this.throttled.sum();
+        }
+
+        /**
+         * Measure the rate that bytes are charged to the bucket.
+         *
+         * The rate is averaged over the time since it was last measured. Measurements less than a second apart return
+         * the previous rate.
+         *
+         * @return The current rate in bytes per second.
+         */
+        public synchronized long getCurrentRate() {
+            final long now = System.nanoTime();
+            final long elapsed = now - this.sampled;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1))
+            {
+                final long sent = this.sent.sum();
+                this.rate = (long) ((sent - this.sampledSent) * 1e9 / elapsed);
+                this.sampled = now;
+                this.sampledSent = sent;
+            }
+            return this.rate;
+        }
+    }
+
+    /**
+     * The buckets that apply to a single connection.
+     *
+     * A Limit belongs to the thread serving its connection. The buckets themselves are shared.
+     */
+    public final class Limit {
+        private final InetAddress address;
+        private final Bucket client;
+        private boolean closed;
+
+        private Limit(final InetAddress address, final Bucket client) {
+            this.address = address;
+            this.client = client;
+            this.closed = false;
+        }
+
+        private long grant(final Bucket bucket, final long allowed, final long now) {
+            if (bucket == null || bucket.limit == 0)
+            {
+                return allowed;
+            }
+            if (bucket.delay(now) > 0)
+            {
+                bucket.throttled.increment();
+                return 0;
+            }
+            return Math.min(allowed, bucket.burst);
+        }
+
+        /**
+         * Ask to send file content.
+         *
+         * @param path The bucket of the file's path prefix or null if it has none.
+         * @param wanted The number of bytes left to send.
+         * @return The number of bytes that may be sent now. This is never more than a quantum. 0 if the content must
+         *         wait for a bucket to refill.
+         */
+        public long allow(final Bucket path, final long wanted) {
+            final long now = System.nanoTime();
+            long allowed = grant(server, Math.min(wanted, quantum), now);
+            if (allowed > 0)
+            {
+                allowed = grant(this.client, allowed, now);
+            }
+            if (allowed > 0)
+            {
+                allowed = grant(path, allowed, now);
+            }
+            return allowed;
+        }
+
+        /**
+         * @param path The bucket of the file's path prefix or null if it has none.
+         * @return The time, in nanoseconds, until file content may be sent again.
+         */
+        public long delay(final Bucket path) {
+            final long now = System.nanoTime();
+            long delay = server.delay(now);
+            if (this.client != null)
+            {
+                delay = Math.max(delay, this.client.delay(now));
+            }
+            if (path != null)
+            {
+                delay = Math.max(delay, path.delay(now));
+            }
+            return delay;
+        }
+
+        /**
+         * Charge bytes that were sent to the client.
+         *
+         * @param bytes The number of bytes sent.
+         */
+        public void charge(final long bytes) {
+            if (bytes <= 0)
+            {
+                return;
+            }
+            final long now = System.nanoTime();
+            server.charge(bytes, now);
+            if (this.client != null)
+            {
+                this.client.charge(bytes, now);
+            }
+        }
+
+        /**
+         * Charge file content that was sent to the client.
+         *
+         * @param path The bucket of the file's path prefix or null if it has none.
+         * @param bytes The number of bytes sent.
+         */
+        public void charge(final Bucket path, final long bytes) {
+            charge(bytes);
+            if (path != null && bytes > 0)
+            {
+                path.charge(bytes, System.nanoTime());
+            }
+        }
+
+        /**
+         * Release the bucket of the client once its connection has closed.
+         */
+        public void close() {
+            if (this.closed || this.client == null)
+            {
+                return;
+            }
+            this.closed = true;
+            clients.computeIfPresent(this.address, (ignored, bucket) -> --bucket.users > 0 ? bucket : null);
+        }
+    }
+
+    /**
+     * Constructs a new Bandwidth from the limits in a Configuration.
+     *
+     * @param config The Server Configuration.
+     */
+    public Bandwidth(final Configuration config) {
+        this.root = config.getRoot();
+        this.quantum = Math.max(1, config.getSendQuantum());
+        this.clientLimit = config.getClientBandwidthLimit();
+        this.server = new Bucket(null, config.getBandwidthLimit(), new LongAdder());
+        final List<Map.Entry<String, Bucket>> paths = new ArrayList<>();
+        for (final Map.Entry<String, Long> limit : config.getPathBandwidthLimits())
+        {
+            paths.add(Map.entry(limit.getKey(), new Bucket(limit.getKey(), limit.getValue(), new LongAdder())));
+        }
+        this.paths = Collections.unmodifiableList(paths);
+        this.clients = new ConcurrentHashMap<>();
+        this.clientsThrottled = new LongAdder();
+    }
+
+    /**
+     * Open the Limit of a new connection.
+     *
+     * @param address The address of the client. Connections from the same address share a bucket.
+     * @return The Limit of the connection. It must be closed when the connection is closed.
+     */
+    public Limit open(final InetAddress address) {
+        if (this.clientLimit <= 0 || address == null)
+        {
+            return new Limit(address, null);
+        }
+        final Bucket client = this.clients.compute(address, (ignored, bucket) -> {
+            final Bucket shared = bucket != null ? bucket : new Bucket(null, this.clientLimit, this.clientsThrottled);
+            ++shared.users;
+            return shared;
+        });
+        return new Limit(address, client);
+    }
+
+    /**
+     * Find the bucket of a file's path prefix.
+     *
+     * @param file The absolute Path of a file under the server root.
+     * @return The bucket of the longest configured prefix that contains the file or null if none does.
+     */
+    public Bucket getPathBucket(final Path file) {
+        if (this.paths.isEmpty())
+        {
+            return null;
+        }
+        final String path = String.format("/%s", this.root.relativize(file));
+        for (final Map.Entry<String, Bucket> entry : this.paths)
+        {
+            if (Configuration.containsPath(entry.getKey(), path))
+            {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The most bytes of file content granted at a time.
+     */
+    public int getQuantum() {
+        return this.quantum;
+    }
+
+    /**
+     * @return The bucket shared by the whole server.
+     */
+    public Bucket getServer() {
+        return this.server;
+    }
+
+    /**
+     * @return The buckets of the configured path prefixes, longest prefix first.
+     */
+    public List<Bucket> getPaths() {
+        final List<Bucket> buckets = new ArrayList<>(this.paths.size());
+        for (final Map.Entry<String, Bucket> entry : this.paths)
+        {
+            buckets.add(entry.getValue());
+        }
+        return buckets;
+    }
+
+    /**
+     * @return The limit of each client address in bytes per second. 0 means there is no limit.
+     */
+    public long getClientLimit() {
+        return this.clientLimit;
+    }
+
+    /**
+     * @return The number of client addresses that currently have a bucket.
+     */
+    public int getClients() {
+        return this.clients.size();
+    }
+
+    /**
+     * @return The number of times file content had to wait for the bucket of a client address to refill.
+     */
+    public long getClientsThrottled() {
+        return this.clientsThrottled.sum();
+    }
+}
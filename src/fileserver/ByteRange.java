@@ -0,0 +1,174 @@
+package fileserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * An inclusive range of bytes within a file as requested by an HTTP Range header.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public final class ByteRange {
+    /**
+     * The maximum number of ranges accepted in a single Range header. Requests for more are served in full.
+     */
+    public static final int MAX_RANGES = 16;
+
+    private final long first;
+    private final long last;
+
+    /**
+     * Parse the value of a Range header against a file.
+     *
+     * Overlapping and adjacent ranges are merged and the result is sorted by offset. Ranges that start beyond the end of
+     * the file are dropped and ranges that end beyond it are shortened.
+     *
+     * @param header The value of the Range header.
+     * @param size The size of the file in bytes.
+     * @return The satisfiable ranges in the header. This is empty if none of the ranges can be satisfied. If the header
+     *         is malformed, uses a unit other than bytes, or contains too many ranges null is returned and the header
+     *         should be ignored.
+     */
+    public static List<ByteRange> parse(final String header, final long size) {
+        final String prefix = "bytes=";
+        if (header == null || !header.regionMatches(true, 0, prefix, 0, prefix.length()))
+        {
+            return null;
+        }
+        final StringTokenizer specs = new StringTokenizer(header.substring(prefix.length()), ",");
+        if (specs.countTokens() < 1 || specs.countTokens() > MAX_RANGES)
+        {
+            return null;
+        }
+        final List<ByteRange> ranges = new ArrayList<>();
+        while (specs.hasMoreTokens())
+        {
+            final String spec = specs.nextToken().trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0)
+            {
+                return null;
+            }
+            final long first;
+            final long last;
+            try
+            {
+                if (dash == 0)
+                {
+                    // A suffix range. This is the last N bytes of the file.
+                    final long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 1)
+                    {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                }
+                else
+                {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    final long requested = dash == spec.length() - 1 ? Long.MAX_VALUE :
+                            Long.parseLong(spec.substring(dash + 1));
+                    if (requested < first)
+                    {
+                        return null;
+                    }
+                    last = Math.min(size - 1, requested);
+                }
+            }
+            catch (final NumberFormatException err)
+            {
+                return null;
+            }
+            if (first < 0)
+            {
+                return null;
+            }
+            if (first < size)
+            {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+        ranges.sort(Comparator.comparingLong(ByteRange::getFirst));
+        final List<ByteRange> merged = new ArrayList<>();
+        for (final ByteRange range : ranges)
+        {
+            final int previous = merged.size() - 1;
+            if (previous >= 0 && range.first <= merged.get(previous).last + 1)
+            {
+                final ByteRange top = merged.get(previous);
+                merged.set(previous, new ByteRange(top.first, Math.max(top.last, range.last)));
+            }
+            else
+            {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Constructs a new ByteRange.
+     *
+     * @param first The offset of the first byte in the range.
+     * @param last The offset of the last byte in the range.
+     */
+    public ByteRange(final long first, final long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @return The offset of the first byte in the range.
+     */
+    public long getFirst() {
+        return this.first;
+    }
+
+    /**
+     * @return The offset of the last byte in the range.
+     */
+    public long getLast() {
+        return this.last;
+    }
+
+    /**
+     * @return The number of bytes in the range.
+     */
+    public long getLength() {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * Convert the ByteRange to the value of a Content-Range header.
+     *
+     * @param size The size of the complete file in bytes.
+     * @return A String of the form "bytes first-last/size".
+     */
+    public String toContentRange(final long size) {
+        return String.format("bytes %d-%d/%d", this.first, this.last, size);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof ByteRange))
+        {
+            return false;
+        }
+        final ByteRange other = (ByteRange) obj;
+        return this.first == other.first && this.last == other.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.first) * 31 + Long.hashCode(this.last);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d-%d", this.first, this.last);
+    }
+}
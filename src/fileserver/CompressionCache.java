@@ -0,0 +1,204 @@
+package fileserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A size-bounded, least recently used cache of compressed response bodies.
+ *
+ * Bodies are compressed once and then served from the cache until they are evicted. Keys should identify both the
+ * content and the encoding, for example by including an entity tag.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class CompressionCache {
+    /**
+     * The largest uncompressed body, in bytes, that will be compressed into the cache.
+     */
+    public static final long MAX_ENTRY_SIZE = 1 << 20; // 1MiB
+
+    private final long capacity;
+    private final LinkedHashMap<String, byte[]> entries;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private long size;
+
+    /**
+     * Find the value of a content coding in an Accept-Encoding header.
+     *
+     * @return The quality value of the coding. This is 0 if the coding is not acceptable.
+     */
+    private static double quality(final String acceptEncoding, final String coding) {
+        if (acceptEncoding == null)
+        {
+            return 0;
+        }
+        double wildcard = 0;
+        final StringTokenizer codings = new StringTokenizer(acceptEncoding, ",");
+        while (codings.hasMoreTokens())
+        {
+            final String entry = codings.nextToken().trim();
+            final int parameters = entry.indexOf(';');
+            final String name = (parameters < 0 ? entry : entry.substring(0, parameters)).trim();
+            double value = 1;
+            if (parameters >= 0)
+            {
+                final String parameter = entry.substring(parameters + 1).trim();
+                if (parameter.startsWith("q="))
+                {
+                    try
+                    {
+                        value = Double.parseDouble(parameter.substring(2));
+                    }
+                    catch (final NumberFormatException err)
+                    {
+                        value = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(coding))
+            {
+                return value;
+            }
+            if (name.equals("*"))
+            {
+                wildcard = value;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Determine whether a content coding is acceptable to the client.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header. This may be null.
+     * @param coding The name of the coding.
+     * @return True if the client accepts the coding. Otherwise false.
+     */
+    public static boolean accepts(final String acceptEncoding, final String coding) {
+        return quality(acceptEncoding, coding) > 0;
+    }
+
+    /**
+     * Choose the best supported content coding for a client.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header. This may be null.
+     * @return Either gzip, deflate, or null if the client accepts neither. gzip is preferred when both are equally
+     *         acceptable.
+     */
+    public static String negotiate(final String acceptEncoding) {
+        final double gzip = quality(acceptEncoding, "gzip");
+        final double deflate = quality(acceptEncoding, "deflate");
+        if (gzip <= 0 && deflate <= 0)
+        {
+            return null;
+        }
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    /**
+     * Compress a body.
+     *
+     * @param content The uncompressed body.
+     * @param coding Either gzip or deflate.
+     * @return The compressed body.
+     */
+    public static byte[] compress(final byte[] content, final String coding) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 2);
+        try (final OutputStream compressor = coding.equals("gzip") ? new GZIPOutputStream(buffer) :
+                new DeflaterOutputStream(buffer))
+        {
+            compressor.write(content);
+        }
+        catch (final IOException err)
+        {
+            // A ByteArrayOutputStream can't fail.
+            throw new IllegalStateException(err);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Constructs a new CompressionCache.
+     *
+     * @param capacity The maximum total size, in bytes, of the compressed bodies held by the cache.
+     */
+    public CompressionCache(final long capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.size = 0;
+    }
+
+    /**
+     * Get a compressed body from the cache, compressing and storing it if it isn't already present.
+     *
+     * Compression happens outside of the cache's lock. If two threads miss on the same key at the same time both
+     * compress the body and the second result replaces the first.
+     *
+     * @param key The key identifying the content and coding.
+     * @param content A Supplier of the uncompressed body. This is only called on a miss.
+     * @param coding Either gzip or deflate.
+     * @return The compressed body.
+     */
+    public byte[] get(final String key, final Supplier<byte[]> content, final String coding) {
+        synchronized (this)
+        {
+            final byte[] cached = this.entries.get(key);
+            if (cached != null)
+            {
+                this.hits.increment();
+                return cached;
+            }
+        }
+        this.misses.increment();
+        final byte[] compressed = compress(content.get(), coding);
+        synchronized (this)
+        {
+            final byte[] previous = this.entries.put(key, compressed);
+            this.size += compressed.length - (previous != null ? previous.length : 0);
+            final Iterator<Map.Entry<String, byte[]>> eldest = this.entries.entrySet().iterator();
+            while (this.size > this.capacity && eldest.hasNext())
+            {
+                this.size -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Get a compressed body from the cache without compressing it on a miss. This isn't counted as a lookup.
+     *
+     * @param key The key identifying the content and coding.
+     * @return The compressed body or null if it isn't in the cache.
+     */
+    public synchronized byte[] peek(final String key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * @return The number of lookups that found a compressed body in the cache.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to compress a body.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+}
@@ -1,10 +1,14 @@
 package fileserver;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
 
 /**
  * Represents a server configuration file.
@@ -12,10 +16,64 @@ import java.util.StringTokenizer;
  * Configuration files are basically traditional *.conf files. Empty lines or lines beginning with # are ignored.
  * Otherwise the the lines are interpreted as key-value pairs. Sections are not supported.
  *
+ * Keys other than root, meta-root, theme, port, and show-hidden are collected as additional options. Options that the
+ * server does not recognize are ignored. Some options, such as cache-control, may be given more than once. For the rest
+ * the last value wins.
+ *
  * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
  * @since April 16, 2021
  */
 public class Configuration {
+    /**
+     * The engines the server can use to handle connections.
+     */
+    public enum Engine {
+        /**
+         * Each connection is handled by a RequestHandler running in the threadpool.
+         */
+        Blocking,
+        /**
+         * Connections are multiplexed over a small number of selector threads.
+         */
+        Nio
+    }
+
+    /**
+     * The kinds of executor that RequestHandlers can run on.
+     */
+    public enum ExecutorType {
+        /**
+         * A work-stealing pool sized to the number of available processors.
+         */
+        WorkStealing,
+        /**
+         * A fixed size pool of platform threads.
+         */
+        Fixed,
+        /**
+         * A new virtual thread for every connection. This requires a runtime that supports virtual threads.
+         */
+        Virtual
+    }
+
+    /**
+     * The formats the access log can be written in.
+     */
+    public enum AccessLogFormat {
+        /**
+         * The Common Log Format.
+         */
+        Common,
+        /**
+         * The Combined Log Format. This is the Common Log Format followed by the Referer and User-Agent headers.
+         */
+        Combined,
+        /**
+         * One JSON object per line. This includes the time taken to serve each request.
+         */
+        Json
+    }
+
     /**
      * Parse a configuration file.
      *
@@ -30,13 +88,19 @@ public class Configuration {
         Path theme = null;
         short port = 0;
         boolean showHidden = false;
+        final Map<String, List<String>> options = new HashMap<>();
         for (final String line : lines)
         {
-            if (!line.startsWith("#") && !line.isEmpty())
+            if (!line.startsWith("#") && !line.isBlank())
             {
-                final StringTokenizer tokens = new StringTokenizer(line, "= \f\t\r\n");
-                final String key = tokens.nextToken();
-                final String value = tokens.nextToken();
+                // Values may contain spaces and = characters so only the first separator counts.
+                final String[] pair = line.strip().split("\\s*=\\s*|\\s+", 2);
+                if (pair.length < 2)
+                {
+                    throw new IllegalArgumentException(String.format("Missing value for \"%s\"", pair[0]));
+                }
+                final String key = pair[0];
+                final String value = pair[1];
                 if (key.equalsIgnoreCase("root"))
                 {
                     root = Path.of(value);
@@ -57,9 +121,161 @@ public class Configuration {
                 {
                     showHidden = Boolean.parseBoolean(value);
                 }
+                else
+                {
+                    options.computeIfAbsent(key.toLowerCase(), (ignored) -> new ArrayList<>()).add(value);
+                }
+            }
+        }
+        return new Configuration(root, metaRoot, theme, port, showHidden, options);
+    }
+
+    private static String option(final Map<String, List<String>> options, final String key) {
+        final List<String> values = options.get(key);
+        return values != null && !values.isEmpty() ? values.get(values.size() - 1) : null;
+    }
+
+    private static <E extends Enum<E>> E enumOption(final Map<String, List<String>> options, final String key,
+                                                    final E fallback) {
+        final String value = option(options, key);
+        if (value == null)
+        {
+            return fallback;
+        }
+        for (final E constant : fallback.getDeclaringClass().getEnumConstants())
+        {
+            if (constant.name().equalsIgnoreCase(value.replace("-", "")))
+            {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown %s \"%s\"", key, value));
+    }
+
+    private static String toOptionValue(final Enum<?> constant) {
+        return constant.name().replaceAll("([a-z])([A-Z])", "$1-$2").toLowerCase();
+    }
+
+    private static boolean booleanOption(final Map<String, List<String>> options, final String key,
+                                         final boolean fallback) {
+        final String value = option(options, key);
+        return value != null ? Boolean.parseBoolean(value) : fallback;
+    }
+
+    private static long longOption(final Map<String, List<String>> options, final String key, final long fallback) {
+        final String value = option(options, key);
+        return value != null ? Long.parseLong(value) : fallback;
+    }
+
+    private static List<String> listOption(final Map<String, List<String>> options, final String key,
+                                           final String fallback) {
+        final String value = option(options, key);
+        return List.of((value != null ? value : fallback).split("[\\s,]+"));
+    }
+
+    private static String toPrefix(final String path) {
+        return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static <V> void sortByPrefix(final List<Map.Entry<String, V>> entries) {
+        // Longer prefixes are more specific so they're checked first.
+        entries.sort(Comparator.comparingInt((Map.Entry<String, V> entry) -> entry.getKey().length()).reversed());
+    }
+
+    private static List<Map.Entry<String, String>> cachePolicies(final List<String> values) {
+        final List<Map.Entry<String, String>> policies = new ArrayList<>();
+        for (final String value : values)
+        {
+            final String[] pair = value.split("\\s+", 2);
+            if (pair.length < 2)
+            {
+                throw new IllegalArgumentException(String.format("Missing Cache-Control value for \"%s\"", pair[0]));
             }
+            policies.add(Map.entry(toPrefix(pair[0]), pair[1]));
         }
-        return new Configuration(root, metaRoot, theme, port, showHidden);
+        sortByPrefix(policies);
+        return policies;
+    }
+
+    private static InetSocketAddress listenAddress(final String value) {
+        final String address = value.trim();
+        final int colon = address.lastIndexOf(':');
+        String host = colon >= 0 ? address.substring(0, colon) : "";
+        if (host.startsWith("[") && host.endsWith("]"))
+        {
+            host = host.substring(1, host.length() - 1);
+        }
+        else if (host.indexOf(':') >= 0)
+        {
+            throw new IllegalArgumentException(String.format("IPv6 listen address \"%s\" must be bracketed", address));
+        }
+        final int port = Integer.parseInt(address.substring(colon + 1));
+        if (port < 0 || port > 65535)
+        {
+            throw new IllegalArgumentException(String.format("Invalid port in listen address \"%s\"", address));
+        }
+        if (host.isEmpty() || host.equals("*"))
+        {
+            return new InetSocketAddress(port);
+        }
+        final InetSocketAddress resolved = new InetSocketAddress(host, port);
+        if (resolved.isUnresolved())
+        {
+            throw new IllegalArgumentException(String.format("Unknown host in listen address \"%s\"", address));
+        }
+        return resolved;
+    }
+
+    private static List<InetSocketAddress> listenAddresses(final List<String> values, final int port) {
+        if (values.isEmpty())
+        {
+            return List.of(new InetSocketAddress(port));
+        }
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (final String value : values)
+        {
+            addresses.add(listenAddress(value));
+        }
+        return List.copyOf(addresses);
+    }
+
+    private static String toListenValue(final InetSocketAddress address) {
+        if (address.getAddress().isAnyLocalAddress())
+        {
+            return String.format("*:%d", address.getPort());
+        }
+        final String host = address.getAddress().getHostAddress();
+        return String.format(host.indexOf(':') >= 0 ? "[%s]:%d" : "%s:%d", host, address.getPort());
+    }
+
+    private static List<Map.Entry<String, Long>> bandwidthLimits(final List<String> values) {
+        final List<Map.Entry<String, Long>> limits = new ArrayList<>();
+        for (final String value : values)
+        {
+            final String[] pair = value.split("\\s+", 2);
+            if (pair.length < 2)
+            {
+                throw new IllegalArgumentException(String.format("Missing bandwidth limit for \"%s\"", pair[0]));
+            }
+            limits.add(Map.entry(toPrefix(pair[0]), Long.parseLong(pair[1].trim())));
+        }
+        sortByPrefix(limits);
+        return limits;
+    }
+
+    /**
+     * @param prefix A path prefix without a trailing separator unless it is the root.
+     * @param path An absolute request path.
+     * @return True if the path is the prefix or under it. Only whole segments match. Otherwise false.
+     */
+    static boolean containsPath(final String prefix, final String path) {
+        return prefix.equals("/") || (path.startsWith(prefix) &&
+                (path.length() == prefix.length() || path.charAt(prefix.length()) == '/'));
+    }
+
+    private static int intOption(final Map<String, List<String>> options, final String key, final int fallback) {
+        final String value = option(options, key);
+        return value != null ? Integer.parseInt(value) : fallback;
     }
 
     private final Path root;
@@ -67,6 +283,61 @@ public class Configuration {
     private final Path theme;
     private final short port;
     private final boolean showHidden;
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    private final int maxConnections;
+    private final int acceptBacklog;
+    private final int headerTimeout;
+    private final int sendTimeout;
+    private final int minSendRate;
+    private final int retryAfter;
+    private final long bandwidthLimit;
+    private final long clientBandwidthLimit;
+    private final List<Map.Entry<String, Long>> pathBandwidthLimits;
+    private final int sendQuantum;
+    private final List<InetSocketAddress> listenAddresses;
+    private final int acceptors;
+    private final boolean noDelay;
+    private final int sendBufferSize;
+    private final List<InetSocketAddress> tlsListenAddresses;
+    private final Path tlsKeyStore;
+    private final String tlsKeyStorePassword;
+    private final String tlsKeyStoreType;
+    private final List<String> tlsProtocols;
+    private final List<String> tlsCiphers;
+    private final int tlsSessionCacheSize;
+    private final long tlsSessionTimeout;
+    private final boolean tlsSessionTickets;
+    private final Engine engine;
+    private final int nioThreads;
+    private final ExecutorType executor;
+    private final int executorThreads;
+    private final List<Map.Entry<String, String>> cachePolicies;
+    private final boolean compression;
+    private final int compressionMinSize;
+    private final List<String> compressionTypes;
+    private final long compressionCacheSize;
+    private final long fileCacheSize;
+    private final int fileCacheMaxEntrySize;
+    private final boolean watchDirectories;
+    private final long directoryCacheDuration;
+    private final long directoryWatchCacheDuration;
+    private final int directoryCacheEntries;
+    private final boolean directoryItemCounts;
+    private final int directoryStreamThreshold;
+    private final int directoryPageSize;
+    private final Path mimeTypesFile;
+    private final boolean mimeSniffing;
+    private final boolean accessLog;
+    private final Path accessLogFile;
+    private final AccessLogFormat accessLogFormat;
+    private final long accessLogMaxSize;
+    private final int accessLogMaxFiles;
+    private final int accessLogBufferSize;
+    private final boolean reverseDns;
+    private final String metricsPath;
+    private final int metricsPort;
+    private final long directoryCacheSize;
 
     /**
      * Constructs a default Configuration.
@@ -76,7 +347,7 @@ public class Configuration {
     }
 
     /**
-     * Constructs a Configuration from the input parameters.
+     * Constructs a Configuration from the input parameters with every additional option set to its default.
      *
      * @param root The root path for the server. Defaults to /
      * @param metaRoot The root path for server meta files. This is relative to root. Defaults to .meta
@@ -86,6 +357,22 @@ public class Configuration {
      */
     public Configuration(final Path root, final Path metaRoot, final Path theme, final short port,
                          final boolean showHidden) {
+        this(root, metaRoot, theme, port, showHidden, Map.of());
+    }
+
+    /**
+     * Constructs a Configuration from the input parameters.
+     *
+     * @param root The root path for the server. Defaults to /
+     * @param metaRoot The root path for server meta files. This is relative to root. Defaults to .meta
+     * @param theme The path to the theme CSS file. This is relative to metaRoot. Defaults to css/theme.css
+     * @param port The port to bind the server to. Defaults to 80.
+     * @param showHidden Whether or not the server should display hidden files. Defaults to false.
+     * @param options Additional options keyed by their lower case configuration file keys. Each key maps to every value
+     *                given for it in order.
+     */
+    public Configuration(final Path root, final Path metaRoot, final Path theme, final short port,
+                         final boolean showHidden, final Map<String, List<String>> options) {
         this.root = root != null ? root.toAbsolutePath() : Path.of("/");
         this.metaRoot =
                 this.root.relativize(Path.of(this.root.toString(), metaRoot != null ? metaRoot.toString() : ".meta"));
@@ -94,6 +381,73 @@ public class Configuration {
                         "theme.css"));
         this.port = port != 0 ? port : 80;
         this.showHidden = showHidden;
+        this.keepAliveTimeout = intOption(options, "keep-alive-timeout", 5_000);
+        this.maxKeepAliveRequests = intOption(options, "keep-alive-max-requests", 100);
+        this.maxConnections = intOption(options, "max-connections", 1024);
+        this.acceptBacklog = intOption(options, "accept-backlog", 511);
+        this.headerTimeout = intOption(options, "header-timeout", 10_000);
+        this.sendTimeout = intOption(options, "send-timeout", 30_000);
+        this.minSendRate = intOption(options, "min-send-rate", 512);
+        this.retryAfter = intOption(options, "retry-after", 5);
+        this.bandwidthLimit = longOption(options, "bandwidth-limit", 0);
+        this.clientBandwidthLimit = longOption(options, "client-bandwidth-limit", 0);
+        this.pathBandwidthLimits = bandwidthLimits(options.getOrDefault("path-bandwidth-limit", List.of()));
+        this.sendQuantum = intOption(options, "send-quantum", 256 << 10);
+        this.listenAddresses = listenAddresses(options.getOrDefault("listen", List.of()), this.port);
+        this.acceptors = intOption(options, "acceptors", Runtime.getRuntime().availableProcessors());
+        this.noDelay = booleanOption(options, "tcp-nodelay", true);
+        this.sendBufferSize = intOption(options, "send-buffer-size", 0);
+        final List<String> tlsListen = options.getOrDefault("tls-listen", List.of());
+        this.tlsListenAddresses = tlsListen.isEmpty() ? List.of() : listenAddresses(tlsListen, 0);
+        final String tlsKeyStore = option(options, "tls-keystore");
+        this.tlsKeyStore = tlsKeyStore != null && !tlsKeyStore.isEmpty() ? Path.of(tlsKeyStore) : null;
+        final String tlsKeyStorePassword = option(options, "tls-keystore-password");
+        this.tlsKeyStorePassword = tlsKeyStorePassword != null ? tlsKeyStorePassword : "";
+        final String tlsKeyStoreType = option(options, "tls-keystore-type");
+        this.tlsKeyStoreType = tlsKeyStoreType != null ? tlsKeyStoreType : "PKCS12";
+        this.tlsProtocols = listOption(options, "tls-protocols", "TLSv1.3 TLSv1.2");
+        // An empty value is the same as leaving the option out.
+        final String tlsCiphers = option(options, "tls-ciphers");
+        this.tlsCiphers = tlsCiphers != null && !tlsCiphers.isEmpty() ? listOption(options, "tls-ciphers", "") :
+                List.of();
+        this.tlsSessionCacheSize = intOption(options, "tls-session-cache-size", 20_480);
+        this.tlsSessionTimeout = longOption(options, "tls-session-timeout", 86_400_000);
+        this.tlsSessionTickets = booleanOption(options, "tls-session-tickets", true);
+        this.engine = enumOption(options, "engine", Engine.Blocking);
+        this.nioThreads = intOption(options, "nio-threads", Runtime.getRuntime().availableProcessors());
+        this.executor = enumOption(options, "executor", ExecutorType.WorkStealing);
+        this.executorThreads = intOption(options, "executor-threads", 200);
+        this.cachePolicies = cachePolicies(options.getOrDefault("cache-control",
+                List.of(String.format("/%s public, max-age=86400", this.metaRoot))));
+        this.compression = booleanOption(options, "compression", true);
+        this.compressionMinSize = intOption(options, "compression-min-size", 1024);
+        this.compressionTypes = listOption(options, "compression-types",
+                "text/ application/javascript application/json application/xml image/svg+xml");
+        this.compressionCacheSize = longOption(options, "compression-cache-size", 32L << 20);
+        this.fileCacheSize = longOption(options, "file-cache-size", 64L << 20);
+        this.fileCacheMaxEntrySize = intOption(options, "file-cache-max-entry-size", 256 << 10);
+        this.watchDirectories = booleanOption(options, "directory-watch", true);
+        this.directoryCacheDuration = longOption(options, "directory-cache-ttl", Template.CACHE_DURATION_MILLIS);
+        this.directoryWatchCacheDuration = longOption(options, "directory-watch-ttl", 0);
+        this.directoryCacheEntries = intOption(options, "directory-cache-entries", 10_000);
+        this.directoryCacheSize = longOption(options, "directory-cache-size", 64L << 20);
+        this.directoryItemCounts = booleanOption(options, "directory-item-counts", true);
+        this.directoryStreamThreshold = intOption(options, "directory-stream-threshold", 10_000);
+        this.directoryPageSize = intOption(options, "directory-page-size", 1_000);
+        final String mimeTypesFile = option(options, "mime-types");
+        this.mimeTypesFile = Path.of(mimeTypesFile != null ? mimeTypesFile : "/etc/mime.types");
+        this.mimeSniffing = booleanOption(options, "mime-sniffing", false);
+        this.accessLog = booleanOption(options, "access-log", true);
+        final String accessLogFile = option(options, "access-log-file");
+        this.accessLogFile = accessLogFile != null && !accessLogFile.equals("-") ? Path.of(accessLogFile) : null;
+        this.accessLogFormat = enumOption(options, "access-log-format", AccessLogFormat.Common);
+        this.accessLogMaxSize = longOption(options, "access-log-max-size", 64L << 20);
+        this.accessLogMaxFiles = intOption(options, "access-log-max-files", 5);
+        this.accessLogBufferSize = intOption(options, "access-log-buffer", 8192);
+        this.reverseDns = booleanOption(options, "reverse-dns", false);
+        final String metricsPath = option(options, "metrics-path");
+        this.metricsPath = metricsPath != null && !metricsPath.isEmpty() ? metricsPath : null;
+        this.metricsPort = intOption(options, "metrics-port", 0);
     }
 
     /**
@@ -131,6 +485,448 @@ public class Configuration {
         return this.showHidden;
     }
 
+    /**
+     * @return The time, in milliseconds, that an idle persistent connection is kept open. Defaults to 5000.
+     */
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    /**
+     * @return The maximum number of requests served over a single connection. Defaults to 100.
+     */
+    public int getMaxKeepAliveRequests() {
+        return this.maxKeepAliveRequests;
+    }
+
+    /**
+     * @return The maximum number of connections open at once, including connections waiting for a thread. Connections
+     *         beyond this are answered with 503 Service Unavailable and closed. 0 means there is no limit. Defaults to
+     *         1024.
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * @return The number of connections the operating system may hold before they are accepted. Defaults to 511.
+     */
+    public int getAcceptBacklog() {
+        return this.acceptBacklog;
+    }
+
+    /**
+     * @return The time, in milliseconds, that a client has to finish sending a request head once it has started.
+     *         Defaults to 10000.
+     */
+    public int getHeaderTimeout() {
+        return this.headerTimeout;
+    }
+
+    /**
+     * @return The length, in milliseconds, of the windows that sending is measured over. A connection that receives
+     *         nothing for this long while a response is being sent is closed. Defaults to 30000.
+     */
+    public int getSendTimeout() {
+        return this.sendTimeout;
+    }
+
+    /**
+     * @return The minimum average rate, in bytes per second, that a client must receive a response at over each send
+     *         window. Defaults to 512.
+     */
+    public int getMinSendRate() {
+        return this.minSendRate;
+    }
+
+    /**
+     * @return The number of seconds a client is asked to wait before retrying when the server is full. Defaults to 5.
+     */
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    /**
+     * @return The most bytes per second that the whole server sends. 0 means there is no limit. Defaults to 0.
+     */
+    public long getBandwidthLimit() {
+        return this.bandwidthLimit;
+    }
+
+    /**
+     * @return The most bytes per second that the server sends to a single client address. 0 means there is no limit.
+     *         Defaults to 0.
+     */
+    public long getClientBandwidthLimit() {
+        return this.clientBandwidthLimit;
+    }
+
+    /**
+     * Get the bandwidth limits of path prefixes.
+     *
+     * Limits are configured with one or more path-bandwidth-limit options of the form "path-bandwidth-limit=PREFIX
+     * BYTES_PER_SECOND". Every file under a prefix shares its limit. Like Cache-Control policies the longest prefix
+     * that contains a path applies and prefixes only match whole path segments. Defaults to no limits.
+     *
+     * @return The prefixes and their limits in bytes per second, longest prefix first.
+     */
+    public List<Map.Entry<String, Long>> getPathBandwidthLimits() {
+        return this.pathBandwidthLimits;
+    }
+
+    /**
+     * @return The most bytes of a file sent to one connection before other connections get a turn. Defaults to 262144.
+     */
+    public int getSendQuantum() {
+        return this.sendQuantum;
+    }
+
+    /**
+     * Get the addresses the server listens on.
+     *
+     * Addresses are configured with one or more listen options of the form "listen=HOST:PORT". HOST may be * for every
+     * interface, and IPv6 hosts must be in brackets. Defaults to every interface on the configured port.
+     *
+     * @return The addresses to listen on.
+     */
+    public List<InetSocketAddress> getListenAddresses() {
+        return this.listenAddresses;
+    }
+
+    /**
+     * @return The number of threads accepting connections on each listen address. Defaults to the number of available
+     *         processors.
+     */
+    public int getAcceptors() {
+        return this.acceptors;
+    }
+
+    /**
+     * @return Whether or not Nagle's algorithm is disabled on accepted connections. Defaults to true.
+     */
+    public boolean shouldUseNoDelay() {
+        return this.noDelay;
+    }
+
+    /**
+     * @return The size, in bytes, of the send buffer of each accepted connection. 0 leaves the operating system's
+     *         default. Defaults to 0.
+     */
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    /**
+     * Get the addresses the server accepts HTTPS connections on.
+     *
+     * Addresses are configured with one or more tls-listen options in the same form as listen. HTTPS connections are
+     * always served by RequestHandlers running on the executor like the Blocking Engine, whichever Engine serves plain
+     * connections. Defaults to no addresses.
+     *
+     * @return The addresses to accept HTTPS connections on.
+     */
+    public List<InetSocketAddress> getTlsListenAddresses() {
+        return this.tlsListenAddresses;
+    }
+
+    /**
+     * @return The path of the key store holding the server's private key and certificate chain. This is required if
+     *         there are any tls-listen addresses. Defaults to null.
+     */
+    public Path getTlsKeyStore() {
+        return this.tlsKeyStore;
+    }
+
+    /**
+     * @return The password of the key store and of the key in it. Defaults to an empty password.
+     */
+    public String getTlsKeyStorePassword() {
+        return this.tlsKeyStorePassword;
+    }
+
+    /**
+     * @return The type of the key store. Defaults to PKCS12.
+     */
+    public String getTlsKeyStoreType() {
+        return this.tlsKeyStoreType;
+    }
+
+    /**
+     * @return The TLS protocol versions that are enabled. Defaults to TLSv1.3 and TLSv1.2.
+     */
+    public List<String> getTlsProtocols() {
+        return this.tlsProtocols;
+    }
+
+    /**
+     * @return The cipher suites that are enabled in order of preference. An empty list leaves the runtime's defaults.
+     *         Defaults to an empty list.
+     */
+    public List<String> getTlsCiphers() {
+        return this.tlsCiphers;
+    }
+
+    /**
+     * @return The number of TLS sessions cached for clients that resume by session ID. 0 means there is no limit.
+     *         Defaults to 20480.
+     */
+    public int getTlsSessionCacheSize() {
+        return this.tlsSessionCacheSize;
+    }
+
+    /**
+     * @return The time, in milliseconds, that a TLS session can be resumed for. Defaults to 86400000.
+     */
+    public long getTlsSessionTimeout() {
+        return this.tlsSessionTimeout;
+    }
+
+    /**
+     * @return Whether or not TLS sessions are resumed from tickets held by clients instead of the server's cache.
+     *         Defaults to true.
+     */
+    public boolean shouldUseTlsSessionTickets() {
+        return this.tlsSessionTickets;
+    }
+
+    /**
+     * @return The Engine used to handle connections. Defaults to Blocking.
+     */
+    public Engine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * @return The number of selector threads used by the Nio Engine. Defaults to the number of available processors.
+     */
+    public int getNioThreads() {
+        return this.nioThreads;
+    }
+
+    /**
+     * @return The kind of executor that the Blocking Engine runs connections on and the Nio Engine serves requests on.
+     *         Defaults to WorkStealing.
+     */
+    public ExecutorType getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * @return The number of threads in the Fixed executor. Defaults to 200.
+     */
+    public int getExecutorThreads() {
+        return this.executorThreads;
+    }
+
+    /**
+     * Determine whether a response body should be compressed.
+     *
+     * Bodies are compressed when compression is enabled, they are at least compression-min-size bytes long, and their
+     * MIME type is listed in compression-types. Entries in compression-types that end with / match every subtype.
+     *
+     * @param mimeType The MIME type of the body. This may be null.
+     * @param size The uncompressed size of the body in bytes.
+     * @return True if the body should be compressed. Otherwise false.
+     */
+    public boolean shouldCompress(final String mimeType, final long size) {
+        if (!this.compression || mimeType == null || size < this.compressionMinSize)
+        {
+            return false;
+        }
+        for (final String type : this.compressionTypes)
+        {
+            if (type.endsWith("/") ? mimeType.startsWith(type) : mimeType.equals(type))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The maximum total size, in bytes, of cached compressed bodies. Defaults to 32MiB.
+     */
+    public long getCompressionCacheSize() {
+        return this.compressionCacheSize;
+    }
+
+    /**
+     * @return The maximum total size, in bytes, of file contents cached in memory. 0 disables the cache. Defaults to
+     *         64MiB.
+     */
+    public long getFileCacheSize() {
+        return this.fileCacheSize;
+    }
+
+    /**
+     * @return The size, in bytes, of the largest file that is cached in memory. Defaults to 256KiB.
+     */
+    public int getFileCacheMaxEntrySize() {
+        return this.fileCacheMaxEntrySize;
+    }
+
+    /**
+     * @return True if cached directory listings should be invalidated by filesystem events. Defaults to true.
+     */
+    public boolean shouldWatchDirectories() {
+        return this.watchDirectories;
+    }
+
+    /**
+     * @return The time, in milliseconds, that an unwatched directory listing is cached for. Defaults to 60000.
+     */
+    public long getDirectoryCacheDuration() {
+        return this.directoryCacheDuration;
+    }
+
+    /**
+     * @return The time, in milliseconds, that a watched directory listing is cached for. 0 means that watched listings
+     *         only expire when the directory changes. Defaults to 0.
+     */
+    public long getDirectoryWatchCacheDuration() {
+        return this.directoryWatchCacheDuration;
+    }
+
+    /**
+     * @return The maximum number of directory listings that are cached. Defaults to 10000.
+     */
+    public int getDirectoryCacheEntries() {
+        return this.directoryCacheEntries;
+    }
+
+    /**
+     * @return The maximum total size, in bytes, of cached directory listings. Defaults to 64MiB.
+     */
+    public long getDirectoryCacheSize() {
+        return this.directoryCacheSize;
+    }
+
+    /**
+     * @return Whether or not directory listings show the number of items in each subdirectory. Defaults to true.
+     */
+    public boolean shouldCountDirectoryItems() {
+        return this.directoryItemCounts;
+    }
+
+    /**
+     * @return The number of items at which a directory listing is streamed rather than cached. 0 means listings are
+     *         never streamed. Defaults to 10000.
+     */
+    public int getDirectoryStreamThreshold() {
+        return this.directoryStreamThreshold;
+    }
+
+    /**
+     * @return The number of entries on a page of a directory listing when the page size isn't requested. This is also
+     *         the default limit of sorted JSON and NDJSON listings. Defaults to 1000.
+     */
+    public int getDirectoryPageSize() {
+        return this.directoryPageSize;
+    }
+
+    /**
+     * @return The path of a mime.types file mapping file extensions to MIME types. Defaults to /etc/mime.types.
+     */
+    public Path getMimeTypesFile() {
+        return this.mimeTypesFile;
+    }
+
+    /**
+     * @return Whether or not the contents of files with unknown extensions are read to guess their MIME type. Defaults
+     *         to false.
+     */
+    public boolean shouldSniffMimeTypes() {
+        return this.mimeSniffing;
+    }
+
+    /**
+     * @return Whether or not requests are written to the access log. Defaults to true.
+     */
+    public boolean shouldLogAccess() {
+        return this.accessLog;
+    }
+
+    /**
+     * @return The Path of the access log or null if it is written to standard output. Defaults to null.
+     */
+    public Path getAccessLogFile() {
+        return this.accessLogFile;
+    }
+
+    /**
+     * @return The AccessLogFormat of the access log. Defaults to Common.
+     */
+    public AccessLogFormat getAccessLogFormat() {
+        return this.accessLogFormat;
+    }
+
+    /**
+     * @return The size, in bytes, at which the access log file is rotated. 0 means it is never rotated. Defaults to
+     *         64MiB.
+     */
+    public long getAccessLogMaxSize() {
+        return this.accessLogMaxSize;
+    }
+
+    /**
+     * @return The number of rotated access log files that are kept. Defaults to 5.
+     */
+    public int getAccessLogMaxFiles() {
+        return this.accessLogMaxFiles;
+    }
+
+    /**
+     * @return The number of requests the access log can hold before it is written. Requests beyond this are dropped.
+     *         Defaults to 8192.
+     */
+    public int getAccessLogBufferSize() {
+        return this.accessLogBufferSize;
+    }
+
+    /**
+     * @return Whether or not client addresses are resolved to host names in the access log. Defaults to false.
+     */
+    public boolean shouldResolveHostNames() {
+        return this.reverseDns;
+    }
+
+    /**
+     * @return The request path that the metrics are served on or null if they aren't served with files. Defaults to
+     *         null.
+     */
+    public String getMetricsPath() {
+        return this.metricsPath;
+    }
+
+    /**
+     * @return The port that the metrics are served on by themselves. 0 means they don't have a port of their own.
+     *         Defaults to 0.
+     */
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+    /**
+     * Find the Cache-Control policy for a request path.
+     *
+     * Policies are configured with one or more cache-control options of the form "cache-control=PREFIX VALUE". The
+     * policy with the longest prefix that contains the path is used. Prefixes only match whole path segments. Defaults to
+     * "public, max-age=86400" for the meta root and nothing everywhere else.
+     *
+     * @param path An absolute request path such as /.meta/css/main.css
+     * @return The value of the Cache-Control header for the path or null if no policy applies.
+     */
+    public String getCacheControl(final String path) {
+        for (final Map.Entry<String, String> policy : this.cachePolicies)
+        {
+            if (containsPath(policy.getKey(), path))
+            {
+                return policy.getValue();
+            }
+        }
+        return null;
+    }
+
     /**
      * Convert a Configuration to a String representation.
      *
@@ -140,6 +936,36 @@ public class Configuration {
      */
     @Override
     public String toString() {
+        final StringBuilder policies = new StringBuilder();
+        for (final Map.Entry<String, String> policy : this.cachePolicies)
+        {
+            policies.append(System.lineSeparator()).append("cache-control=").append(policy.getKey()).append(' ')
+                    .append(policy.getValue());
+        }
+        final StringBuilder listen = new StringBuilder();
+        for (final InetSocketAddress address : this.listenAddresses)
+        {
+            listen.append(System.lineSeparator()).append("listen=").append(toListenValue(address));
+        }
+        final StringBuilder tlsListen = new StringBuilder();
+        for (final InetSocketAddress address : this.tlsListenAddresses)
+        {
+            tlsListen.append(System.lineSeparator()).append("tls-listen=").append(toListenValue(address));
+        }
+        final StringBuilder limits = new StringBuilder();
+        for (final Map.Entry<String, Long> limit : this.pathBandwidthLimits)
+        {
+            limits.append(System.lineSeparator()).append("path-bandwidth-limit=").append(limit.getKey()).append(' ')
+                    .append(limit.getValue());
+        }
+        // Options without a value are left out rather than printed empty.
+        final String tlsKeyStore = this.tlsKeyStore != null ?
+                System.lineSeparator() + "tls-keystore=" + this.tlsKeyStore : "";
+        final String tlsCiphers = !this.tlsCiphers.isEmpty() ?
+                System.lineSeparator() + "tls-ciphers=" + String.join(" ", this.tlsCiphers) : "";
+        final String metricsPath = this.metricsPath != null ?
+                System.lineSeparator() + "metrics-path=" + this.metricsPath : "";
+        // The key store password is left out so that it is never printed.
         return "root=" +
                 this.root +
                 System.lineSeparator() +
@@ -153,6 +979,154 @@ public class Configuration {
                 this.port +
                 System.lineSeparator() +
                 "show-hidden=" +
-                this.showHidden;
+                this.showHidden +
+                System.lineSeparator() +
+                "keep-alive-timeout=" +
+                this.keepAliveTimeout +
+                System.lineSeparator() +
+                "keep-alive-max-requests=" +
+                this.maxKeepAliveRequests +
+                System.lineSeparator() +
+                "max-connections=" +
+                this.maxConnections +
+                System.lineSeparator() +
+                "accept-backlog=" +
+                this.acceptBacklog +
+                System.lineSeparator() +
+                "header-timeout=" +
+                this.headerTimeout +
+                System.lineSeparator() +
+                "send-timeout=" +
+                this.sendTimeout +
+                System.lineSeparator() +
+                "min-send-rate=" +
+                this.minSendRate +
+                System.lineSeparator() +
+                "retry-after=" +
+                this.retryAfter +
+                System.lineSeparator() +
+                "bandwidth-limit=" +
+                this.bandwidthLimit +
+                System.lineSeparator() +
+                "client-bandwidth-limit=" +
+                this.clientBandwidthLimit +
+                limits +
+                System.lineSeparator() +
+                "send-quantum=" +
+                this.sendQuantum +
+                listen +
+                System.lineSeparator() +
+                "acceptors=" +
+                this.acceptors +
+                System.lineSeparator() +
+                "tcp-nodelay=" +
+                this.noDelay +
+                System.lineSeparator() +
+                "send-buffer-size=" +
+                this.sendBufferSize +
+                tlsListen +
+                tlsKeyStore +
+                System.lineSeparator() +
+                "tls-keystore-type=" +
+                this.tlsKeyStoreType +
+                System.lineSeparator() +
+                "tls-protocols=" +
+                String.join(" ", this.tlsProtocols) +
+                tlsCiphers +
+                System.lineSeparator() +
+                "tls-session-cache-size=" +
+                this.tlsSessionCacheSize +
+                System.lineSeparator() +
+                "tls-session-timeout=" +
+                this.tlsSessionTimeout +
+                System.lineSeparator() +
+                "tls-session-tickets=" +
+                this.tlsSessionTickets +
+                System.lineSeparator() +
+                "engine=" +
+                toOptionValue(this.engine) +
+                System.lineSeparator() +
+                "nio-threads=" +
+                this.nioThreads +
+                System.lineSeparator() +
+                "executor=" +
+                toOptionValue(this.executor) +
+                System.lineSeparator() +
+                "executor-threads=" +
+                this.executorThreads +
+                policies +
+                System.lineSeparator() +
+                "compression=" +
+                this.compression +
+                System.lineSeparator() +
+                "compression-min-size=" +
+                this.compressionMinSize +
+                System.lineSeparator() +
+                "compression-types=" +
+                String.join(" ", this.compressionTypes) +
+                System.lineSeparator() +
+                "compression-cache-size=" +
+                this.compressionCacheSize +
+                System.lineSeparator() +
+                "file-cache-size=" +
+                this.fileCacheSize +
+                System.lineSeparator() +
+                "file-cache-max-entry-size=" +
+                this.fileCacheMaxEntrySize +
+                System.lineSeparator() +
+                "directory-watch=" +
+                this.watchDirectories +
+                System.lineSeparator() +
+                "directory-cache-ttl=" +
+                this.directoryCacheDuration +
+                System.lineSeparator() +
+                "directory-watch-ttl=" +
+                this.directoryWatchCacheDuration +
+                System.lineSeparator() +
+                "directory-cache-entries=" +
+                this.directoryCacheEntries +
+                System.lineSeparator() +
+                "directory-cache-size=" +
+                this.directoryCacheSize +
+                System.lineSeparator() +
+                "directory-item-counts=" +
+                this.directoryItemCounts +
+                System.lineSeparator() +
+                "directory-stream-threshold=" +
+                this.directoryStreamThreshold +
+                System.lineSeparator() +
+                "directory-page-size=" +
+                this.directoryPageSize +
+                System.lineSeparator() +
+                "mime-types=" +
+                this.mimeTypesFile +
+                System.lineSeparator() +
+                "mime-sniffing=" +
+                this.mimeSniffing +
+                System.lineSeparator() +
+                "access-log=" +
+                this.accessLog +
+                System.lineSeparator() +
+                "access-log-file=" +
+                (this.accessLogFile != null ? this.accessLogFile : "-") +
+                System.lineSeparator() +
+                "access-log-format=" +
+                toOptionValue(this.accessLogFormat) +
+                System.lineSeparator() +
+                "access-log-max-size=" +
+                this.accessLogMaxSize +
+                System.lineSeparator() +
+                "access-log-max-files=" +
+                this.accessLogMaxFiles +
+                System.lineSeparator() +
+                "access-log-buffer=" +
+                this.accessLogBufferSize +
+                System.lineSeparator() +
+                "reverse-dns=" +
+                this.reverseDns +
+                metricsPath +
+                System.lineSeparator() +
+                "metrics-port=" +
+                this.metricsPort;
     }
 }
@@ -0,0 +1,369 @@
+package fileserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least recently used cache of directory index Templates.
+ *
+ * The cache is bounded both by the number of directories it holds and by the size of their rendered output. When either
+ * bound is exceeded the least recently used directories are evicted, so memory stays flat no matter how much of the tree
+ * is requested.
+ *
+ * The number of items in each listed subdirectory is cached as well. A count is reused until the subdirectory's
+ * modification time changes.
+ *
+ * When watching is enabled each cached directory is registered with a WatchService. A Template is only invalidated when
+ * an entry in its directory is created, deleted, or modified, so unchanged directories are served from the cache
+ * without rescanning them. Templates for directories that cannot be watched fall back to expiring after a fixed time.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class DirectoryCache {
+    /**
+     * The maximum number of subdirectory item counts that are cached. A count is roughly a hundred bytes.
+     */
+    public static final int MAX_ITEM_COUNTS = 1 << 18;
+
+    /**
+     * A cached Template with its watch registration and last known size.
+     */
+    private static final class Entry {
+        private final Template template;
+        private final WatchKey key;
+        private long weight;
+
+        private Entry(final Template template, final WatchKey key) {
+            this.template = template;
+            this.key = key;
+            this.weight = template.getRenderedSize();
+        }
+    }
+
+    /**
+     * The number of items in a directory and the modification time it was counted at.
+     */
+    private static final class ItemCount {
+        private final FileTime modified;
+        private final int count;
+
+        private ItemCount(final FileTime modified, final int count) {
+            this.modified = modified;
+            this.count = count;
+        }
+    }
+
+    // Entries are kept in insertion order. A hit moves the entry to the end so the first entry is always the least
+    // recently used. Plain lookups, such as those made by the watcher, don't disturb the order.
+    private final LinkedHashMap<Path, Entry> entries;
+    private final LinkedHashMap<Path, ItemCount> itemCounts;
+    private final WatchService watcher;
+    private final long cacheDuration;
+    private final long watchedCacheDuration;
+    private final int maxEntries;
+    private final long maxSize;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private long size;
+
+    /**
+     * Constructs a new DirectoryCache.
+     *
+     * If directory-watch is enabled but the default filesystem can't be watched every Template uses the unwatched cache
+     * duration.
+     *
+     * @param config The Server Configuration.
+     */
+    public DirectoryCache(final Configuration config) {
+        this.entries = new LinkedHashMap<>();
+        this.itemCounts = new LinkedHashMap<>(16, 0.75f, true);
+        this.cacheDuration = config.getDirectoryCacheDuration();
+        this.watchedCacheDuration =
+                config.getDirectoryWatchCacheDuration() > 0 ? config.getDirectoryWatchCacheDuration() : Long.MAX_VALUE;
+        this.maxEntries = config.getDirectoryCacheEntries();
+        this.maxSize = config.getDirectoryCacheSize();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.size = 0;
+        this.watcher = config.shouldWatchDirectories() ? openWatchService() : null;
+        if (this.watcher != null)
+        {
+            final Thread thread = new Thread(this::watch, "directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static WatchService openWatchService() {
+        try
+        {
+            return FileSystems.getDefault().newWatchService();
+        }
+        catch (final IOException | UnsupportedOperationException err)
+        {
+            System.err.printf("Directory watching is unavailable. Falling back to timed expiry.%n");
+            return null;
+        }
+    }
+
+    /**
+     * Get the cached Template for a directory.
+     *
+     * @param directory The absolute Path of the directory.
+     * @return The Template for the directory or null if none is cached.
+     */
+    public synchronized Template get(final Path directory) {
+        final Entry entry = this.entries.remove(directory);
+        if (entry == null)
+        {
+            this.misses.increment();
+            return null;
+        }
+        this.entries.put(directory, entry);
+        this.hits.increment();
+        return entry.template;
+    }
+
+    /**
+     * Cache the Template for a directory and start watching the directory for changes.
+     *
+     * @param directory The absolute Path of the directory.
+     * @param template The Template for the directory.
+     */
+    public void put(final Path directory, final Template template) {
+        final WatchKey key = register(directory);
+        template.setCacheDuration(key != null ? this.watchedCacheDuration : this.cacheDuration);
+        final Entry entry = new Entry(template, key);
+        synchronized (this)
+        {
+            final Entry previous = this.entries.put(directory, entry);
+            if (previous != null)
+            {
+                this.size -= previous.weight;
+                // Registering a directory that is still watched returns the same key.
+                if (previous.key != null && previous.key != key)
+                {
+                    previous.key.cancel();
+                }
+            }
+            this.size += entry.weight;
+            evict();
+        }
+    }
+
+    /**
+     * Render a cached Template and account for the size of its output.
+     *
+     * @param directory The absolute Path of the directory.
+     * @param template The Template for the directory.
+     * @return The rendered Template.
+     */
+    public Template.Rendered render(final Path directory, final Template template) {
+        final Template.Rendered rendered = template.render();
+        synchronized (this)
+        {
+            final Entry entry = this.entries.get(directory);
+            if (entry != null && entry.template == template)
+            {
+                final long weight = template.getRenderedSize();
+                this.size += weight - entry.weight;
+                entry.weight = weight;
+                evict();
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * Count the items in a directory.
+     *
+     * Counts are cached and reused while the directory's modification time is unchanged. Adding, removing, or renaming
+     * an item changes the modification time so a reused count is never out of date.
+     *
+     * @param directory The absolute Path of the directory.
+     * @param modified The current modification time of the directory.
+     * @return The number of items in the directory, including hidden items.
+     * @throws IOException If the directory cannot be read.
+     */
+    public int countItems(final Path directory, final FileTime modified) throws IOException {
+        synchronized (this.itemCounts)
+        {
+            final ItemCount cached = this.itemCounts.get(directory);
+            if (cached != null && cached.modified.equals(modified))
+            {
+                return cached.count;
+            }
+        }
+        int count = 0;
+        try (final DirectoryStream<Path> items = Files.newDirectoryStream(directory))
+        {
+            for (final Path ignored : items)
+            {
+                ++count;
+            }
+        }
+        synchronized (this.itemCounts)
+        {
+            this.itemCounts.put(directory, new ItemCount(modified, count));
+            final Iterator<Path> eldest = this.itemCounts.keySet().iterator();
+            while (this.itemCounts.size() > MAX_ITEM_COUNTS && eldest.hasNext())
+            {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return count;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<Path, Entry>> eldest = this.entries.entrySet().iterator();
+        while ((this.entries.size() > this.maxEntries || this.size > this.maxSize) && eldest.hasNext())
+        {
+            final Entry entry = eldest.next().getValue();
+            eldest.remove();
+            this.size -= entry.weight;
+            this.evictions.increment();
+            if (entry.key != null)
+            {
+                entry.key.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return The number of directories in the cache.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return The size, in bytes, of the cached Templates' output.
+     */
+    public synchronized long getWeight() {
+        return this.size;
+    }
+
+    /**
+     * @return The number of lookups that found a cached Template.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that didn't find a cached Template.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return The number of Templates evicted to keep the cache within its bounds.
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    private WatchKey register(final Path directory) {
+        if (this.watcher == null)
+        {
+            return null;
+        }
+        try
+        {
+            return directory.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (final IOException | UnsupportedOperationException err)
+        {
+            // Most likely the watch limit has been reached. This directory just expires on a timer instead.
+            return null;
+        }
+    }
+
+    private synchronized void invalidate(final Path directory) {
+        final Entry entry = this.entries.get(directory);
+        if (entry != null)
+        {
+            entry.template.invalidate();
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        for (final Entry entry : this.entries.values())
+        {
+            entry.template.invalidate();
+        }
+    }
+
+    /**
+     * Remove a directory whose watch key is no longer valid.
+     *
+     * The directory may have been cached again since the key was cancelled, in which case its entry has a new key and
+     * is left alone.
+     */
+    private synchronized void remove(final Path directory, final WatchKey key) {
+        final Entry entry = this.entries.get(directory);
+        if (entry != null && entry.key == key)
+        {
+            this.entries.remove(directory);
+            this.size -= entry.weight;
+            key.cancel();
+        }
+    }
+
+    /**
+     * Process watch events until the WatchService is closed.
+     *
+     * Changing a directory also invalidates its parent because the parent's listing shows the number of items in it.
+     */
+    private void watch() {
+        try
+        {
+            while (true)
+            {
+                final WatchKey key = this.watcher.take();
+                final Path directory = (Path) key.watchable();
+                for (final WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        invalidateAll();
+                        break;
+                    }
+                }
+                invalidate(directory);
+                if (directory.getParent() != null)
+                {
+                    invalidate(directory.getParent());
+                }
+                if (!key.reset())
+                {
+                    // The directory is gone or was evicted.
+                    remove(directory, key);
+                }
+            }
+        }
+        catch (final InterruptedException | ClosedWatchServiceException err)
+        {
+            // The server is shutting down.
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package fileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A machine readable listing of a directory in either JSON or NDJSON.
+ *
+ * Each entry has a name, a type of file, directory, or other, a size in bytes, a modification time in milliseconds since
+ * the epoch, and a MIME type. Listings are controlled by query parameters:
+ *
+ * format: json or ndjson. Without this the format is negotiated from the Accept header.
+ * sort: name, size, mtime, or none. Defaults to name. none lists entries in the order the directory is read.
+ * order: asc or desc. Defaults to asc.
+ * prefix: Only list entries whose names start with this.
+ * glob: Only list entries whose names match this glob.
+ * limit: The number of entries on a page. Sorted listings default to directory-page-size. Unsorted listings are only
+ *        paginated when this is given.
+ * cursor: The cursor returned with the previous page.
+ *
+ * A page is selected while the directory is read so only the entries on the page are held in memory. Listings that are
+ * neither sorted nor paginated are written as the directory is read.
+ *
+ * JSON listings are an object of the form {"path": ..., "next": ..., "entries": [...]}. NDJSON listings are one entry
+ * object per line. In both cases the cursor for the next page, if there is one, is also sent as a Link header.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class DirectoryListing {
+    /**
+     * The supported listing formats.
+     */
+    public enum Format {
+        Json,
+        Ndjson
+    }
+
+    /**
+     * The supported sort orders.
+     */
+    public enum Sort {
+        Name,
+        Size,
+        Mtime,
+        None
+    }
+
+    /**
+     * The number of entries written by each step of a listing.
+     */
+    public static final int BATCH_SIZE = 64;
+
+    private final Path root;
+    private final Path directory;
+    private final boolean showHidden;
+    private final MimeTypes mimeTypes;
+    private final Format format;
+    private final Sort sort;
+    private final boolean descending;
+    private final String prefix;
+    private final PathMatcher glob;
+    private final int limit;
+    private final Entry after;
+    private final long offset;
+    private List<Entry> page;
+    private String next;
+
+    /**
+     * A directory entry. Attributes are only read once the entry is needed.
+     */
+    private static final class Entry {
+        private final Path path;
+        private final String name;
+        private BasicFileAttributes attributes;
+        private long size;
+        private long mtime;
+
+        private Entry(final Path path) {
+            this.path = path;
+            this.name = path.getFileName().toString();
+            this.attributes = null;
+        }
+
+        private Entry(final String name, final long size, final long mtime) {
+            this.path = null;
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        /**
+         * @return False if the entry has been removed.
+         */
+        private boolean read() {
+            if (this.attributes != null)
+            {
+                return true;
+            }
+            try
+            {
+                this.attributes = readAttributes(this.path);
+            }
+            catch (final IOException err)
+            {
+                return false;
+            }
+            this.size = this.attributes.size();
+            this.mtime = this.attributes.lastModifiedTime().toMillis();
+            return true;
+        }
+    }
+
+    /**
+     * Choose a listing format for a request.
+     *
+     * @param format The value of the format query parameter. This may be null.
+     * @param accept The value of the Accept header. This may be null.
+     * @return The requested Format or null if the client wants the HTML listing.
+     * @throws IllegalArgumentException If the format parameter is unsupported.
+     */
+    public static Format negotiate(final String format, final String accept) {
+        if (format != null)
+        {
+            for (final Format constant : Format.values())
+            {
+                if (constant.name().equalsIgnoreCase(format))
+                {
+                    return constant;
+                }
+            }
+            if (format.equalsIgnoreCase("html"))
+            {
+                return null;
+            }
+            throw new IllegalArgumentException(String.format("Unknown format \"%s\"", format));
+        }
+        if (accept == null || accept.contains("text/html"))
+        {
+            return null;
+        }
+        if (accept.contains("application/x-ndjson"))
+        {
+            return Format.Ndjson;
+        }
+        return accept.contains("application/json") ? Format.Json : null;
+    }
+
+    private static BasicFileAttributes readAttributes(final Path entry) throws IOException {
+        try
+        {
+            return Files.readAttributes(entry, BasicFileAttributes.class);
+        }
+        catch (final IOException err)
+        {
+            // A broken link is listed as the link itself.
+            return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    private static <E extends Enum<E>> E parseEnum(final Class<E> type, final String key, final String value,
+                                                   final E fallback) {
+        if (value == null)
+        {
+            return fallback;
+        }
+        for (final E constant : type.getEnumConstants())
+        {
+            if (constant.name().equalsIgnoreCase(value))
+            {
+                return constant;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown %s \"%s\"", key, value));
+    }
+
+    private static void appendString(final StringBuilder builder, final String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); ++i)
+        {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                builder.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                builder.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * Constructs a new DirectoryListing from the parameters of a request.
+     *
+     * @param root The absolute Path to the root of the Server's filesystem.
+     * @param directory The absolute Path of the directory to list.
+     * @param showHidden Whether or not to list hidden files/directories.
+     * @param mimeTypes The MimeTypes table.
+     * @param format The Format of the listing.
+     * @param query The query parameters of the request.
+     * @param defaultLimit The number of entries on a page of a sorted listing when no limit is requested.
+     * @throws IllegalArgumentException If any of the parameters, including the cursor, are invalid.
+     */
+    public DirectoryListing(final Path root, final Path directory, final boolean showHidden, final MimeTypes mimeTypes,
+                            final Format format, final Map<String, String> query, final int defaultLimit) {
+        this.root = root;
+        this.directory = directory;
+        this.showHidden = showHidden;
+        this.mimeTypes = mimeTypes;
+        this.format = format;
+        this.sort = parseEnum(Sort.class, "sort", query.get("sort"), Sort.Name);
+        final String order = query.getOrDefault("order", "asc");
+        if (!order.equalsIgnoreCase("asc") && !order.equalsIgnoreCase("desc"))
+        {
+            throw new IllegalArgumentException(String.format("Unknown order \"%s\"", order));
+        }
+        this.descending = order.equalsIgnoreCase("desc");
+        this.prefix = query.getOrDefault("prefix", "");
+        this.glob = query.containsKey("glob") ?
+                FileSystems.getDefault().getPathMatcher(String.format("glob:%s", query.get("glob"))) : null;
+        final String limit = query.get("limit");
+        if (limit == null)
+        {
+            this.limit = this.sort != Sort.None ? Math.min(defaultLimit, DirectorySupplier.MAX_PAGE_SIZE) : 0;
+        }
+        else
+        {
+            this.limit = Integer.parseInt(limit);
+            if (this.limit < 1 || this.limit > DirectorySupplier.MAX_PAGE_SIZE)
+            {
+                throw new IllegalArgumentException(String.format("Invalid limit %d", this.limit));
+            }
+        }
+        final String cursor = query.get("cursor");
+        if (cursor == null)
+        {
+            this.after = null;
+            this.offset = 0;
+        }
+        else if (this.sort == Sort.None)
+        {
+            this.after = null;
+            this.offset = Long.parseLong(decodeCursor(cursor, "none"));
+        }
+        else
+        {
+            final String value = decodeCursor(cursor, this.sort.name().toLowerCase());
+            final int slash = value.indexOf('/');
+            if (slash < 0)
+            {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            final long key = this.sort == Sort.Name ? 0 : Long.parseLong(value.substring(0, slash));
+            this.after = new Entry(value.substring(slash + 1), key, key);
+            this.offset = 0;
+        }
+        this.page = null;
+        this.next = null;
+    }
+
+    private String encodeCursor(final String value) {
+        final String cursor = String.format("%s:%s", this.sort.name().toLowerCase(), value);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String encodeCursor(final Entry entry) {
+        final long key = this.sort == Sort.Size ? entry.size : this.sort == Sort.Mtime ? entry.mtime : 0;
+        return encodeCursor(String.format("%d/%s", key, entry.name));
+    }
+
+    private static String decodeCursor(final String cursor, final String sort) {
+        final String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        if (!value.startsWith(sort + ":"))
+        {
+            throw new IllegalArgumentException("The cursor belongs to a different sort order");
+        }
+        return value.substring(sort.length() + 1);
+    }
+
+    private Comparator<Entry> comparator() {
+        final Comparator<Entry> byName = Comparator.comparing((Entry entry) -> entry.name);
+        final Comparator<Entry> comparator;
+        if (this.sort == Sort.Size)
+        {
+            comparator = Comparator.comparingLong((Entry entry) -> entry.size).thenComparing(byName);
+        }
+        else if (this.sort == Sort.Mtime)
+        {
+            comparator = Comparator.comparingLong((Entry entry) -> entry.mtime).thenComparing(byName);
+        }
+        else
+        {
+            comparator = byName;
+        }
+        return this.descending ? comparator.reversed() : comparator;
+    }
+
+    private boolean matches(final Path entry) {
+        final String name = entry.getFileName().toString();
+        if (!name.startsWith(this.prefix) || (this.glob != null && !this.glob.matches(entry.getFileName())))
+        {
+            return false;
+        }
+        try
+        {
+            return this.showHidden || !Files.isHidden(entry);
+        }
+        catch (final IOException err)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return Whether or not the listing is written as the directory is read without selecting a page first.
+     */
+    private boolean isStreamed() {
+        return this.sort == Sort.None && this.limit == 0;
+    }
+
+    /**
+     * Read the directory and select the page to list. This must be called before the listing is generated.
+     *
+     * Only entries on the page are kept. Sorting by name doesn't need the attributes of entries that aren't listed so
+     * they are never read.
+     *
+     * @throws IOException If the directory cannot be read.
+     */
+    public void select() throws IOException {
+        if (isStreamed())
+        {
+            return;
+        }
+        final List<Entry> selected = new ArrayList<>();
+        boolean more = false;
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory))
+        {
+            if (this.sort == Sort.None)
+            {
+                long skipped = 0;
+                for (final Path path : entries)
+                {
+                    if (!matches(path) || skipped++ < this.offset)
+                    {
+                        continue;
+                    }
+                    if (selected.size() == this.limit)
+                    {
+                        more = true;
+                        break;
+                    }
+                    selected.add(new Entry(path));
+                }
+            }
+            else
+            {
+                final Comparator<Entry> comparator = comparator();
+                // The kept entry that sorts last is at the head so it can be dropped when a better entry is found.
+                final PriorityQueue<Entry> kept = new PriorityQueue<>(this.limit + 1, comparator.reversed());
+                for (final Path path : entries)
+                {
+                    if (!matches(path))
+                    {
+                        continue;
+                    }
+                    final Entry entry = new Entry(path);
+                    if ((this.sort != Sort.Name && !entry.read()) ||
+                            (this.after != null && comparator.compare(entry, this.after) <= 0))
+                    {
+                        continue;
+                    }
+                    kept.add(entry);
+                    if (kept.size() > this.limit)
+                    {
+                        kept.poll();
+                        more = true;
+                    }
+                }
+                selected.addAll(kept);
+                selected.sort(comparator);
+            }
+        }
+        if (more && !selected.isEmpty())
+        {
+            this.next = this.sort == Sort.None ? encodeCursor(Long.toString(this.offset + selected.size())) :
+                    encodeCursor(selected.get(selected.size() - 1));
+        }
+        this.page = selected;
+    }
+
+    /**
+     * @return The MIME type of the listing.
+     */
+    public String getContentType() {
+        return this.format == Format.Json ? "application/json" : "application/x-ndjson";
+    }
+
+    /**
+     * @return The cursor for the next page or null if this is the last page. This is only known once the page has been
+     *         selected.
+     */
+    public String getNextCursor() {
+        return this.next;
+    }
+
+    private void appendEntry(final StringBuilder builder, final Entry entry) {
+        final String type;
+        final String mime;
+        if (entry.attributes.isDirectory())
+        {
+            type = "directory";
+            mime = "inode/directory";
+        }
+        else
+        {
+            type = entry.attributes.isRegularFile() ? "file" : "other";
+            mime = this.mimeTypes.getType(entry.path);
+        }
+        builder.append("{\"name\":");
+        appendString(builder, entry.name);
+        builder.append(",\"type\":\"").append(type).append("\",\"size\":").append(entry.size).append(",\"mtime\":")
+                .append(entry.mtime).append(",\"mime\":");
+        appendString(builder, mime);
+        builder.append('}');
+    }
+
+    /**
+     * Create a Generator of the listing.
+     *
+     * @return A Generator that writes BATCH_SIZE entries at a time.
+     */
+    public StreamedBody.Generator generator() {
+        return new StreamedBody.Generator() {
+            private DirectoryStream<Path> stream = null;
+            private Iterator<Path> paths = null;
+            private int index = 0;
+            private boolean started = false;
+            private boolean first = true;
+
+            private Entry nextEntry() throws IOException {
+                if (!isStreamed())
+                {
+                    return this.index < page.size() ? page.get(this.index++) : null;
+                }
+                if (this.stream == null)
+                {
+                    this.stream = Files.newDirectoryStream(directory);
+                    this.paths = this.stream.iterator();
+                }
+                while (this.paths.hasNext())
+                {
+                    final Path path = this.paths.next();
+                    if (matches(path))
+                    {
+                        return new Entry(path);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean write(final OutputStream output) throws IOException {
+                final StringBuilder builder = new StringBuilder();
+                if (!this.started && format == Format.Json)
+                {
+                    builder.append("{\"path\":");
+                    appendString(builder, String.format("/%s", root.relativize(directory)));
+                    builder.append(",\"next\":");
+                    if (next != null)
+                    {
+                        appendString(builder, next);
+                    }
+                    else
+                    {
+                        builder.append("null");
+                    }
+                    builder.append(",\"entries\":[");
+                }
+                this.started = true;
+                boolean more = true;
+                for (int written = 0; written < BATCH_SIZE; )
+                {
+                    final Entry entry = nextEntry();
+                    if (entry == null)
+                    {
+                        more = false;
+                        break;
+                    }
+                    if (!entry.read())
+                    {
+                        // The entry was removed while the directory was being read.
+                        continue;
+                    }
+                    if (format == Format.Json && !this.first)
+                    {
+                        builder.append(',');
+                    }
+                    this.first = false;
+                    appendEntry(builder, entry);
+                    if (format == Format.Ndjson)
+                    {
+                        builder.append('\n');
+                    }
+                    ++written;
+                }
+                if (!more && format == Format.Json)
+                {
+                    builder.append("]}");
+                }
+                output.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+                return more;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (this.stream != null)
+                {
+                    this.stream.close();
+                }
+            }
+        };
+    }
+}
@@ -1,30 +1,51 @@
 package fileserver;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.URLConnection;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.time.Clock;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Objects;
+import java.util.Iterator;
 import java.util.function.Supplier;
 
 /**
  * A function object that is used to supply HTML output for directory objects.
  *
+ * The attributes of each entry are read with a single call. The number of items in a subdirectory comes from the
+ * DirectoryCache, which only reads the subdirectory again when it has changed.
+ *
+ * A listing can be limited to a single page of entries. Listings can also be streamed a few rows at a time rather than
+ * built all at once, so that huge directories don't have to fit in memory.
+ *
  * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
  * @since April 16, 2021
  */
 public class DirectorySupplier implements Supplier<String> {
+    /**
+     * The maximum number of entries that can be shown on a single page.
+     */
+    public static final int MAX_PAGE_SIZE = 10_000;
+
+    /**
+     * The number of rows written by each step of a streamed listing.
+     */
+    public static final int STREAM_BATCH_SIZE = 64;
+
     private final Path root;
     private final Path metaDirectory;
     private final Path directory;
     private final boolean showHidden;
+    private final MimeTypes mimeTypes;
+    private final DirectoryCache itemCounts;
+    private final long page;
+    private final int pageSize;
 
     /**
      * Constructs a new DirectorySupplier.
@@ -33,107 +54,331 @@ public class DirectorySupplier implements Supplier<String> {
      * @param metaDirectory The absolute Path to the Server's meta file directory.
      * @param showHidden Whether or not to display hidden files/directories.
      * @param directory The Path to the directory to generate HTML for.
+     * @param mimeTypes The MimeTypes table used to choose file icons.
+     * @param itemCounts The DirectoryCache used to count the items in subdirectories. If this is null item counts
+     *                   aren't shown.
      */
     public DirectorySupplier(final Path root, final Path metaDirectory, final boolean showHidden,
-                             final Path directory) {
+                             final Path directory, final MimeTypes mimeTypes, final DirectoryCache itemCounts) {
+        this(root, metaDirectory, showHidden, directory, mimeTypes, itemCounts, 1, 0);
+    }
+
+    /**
+     * Constructs a new DirectorySupplier for a single page of a directory.
+     *
+     * Pages are taken in the order that the directory is read, which is stable while the directory is unchanged.
+     *
+     * @param root The absolute Path to the root of the Server's filesystem.
+     * @param metaDirectory The absolute Path to the Server's meta file directory.
+     * @param showHidden Whether or not to display hidden files/directories.
+     * @param directory The Path to the directory to generate HTML for.
+     * @param mimeTypes The MimeTypes table used to choose file icons.
+     * @param itemCounts The DirectoryCache used to count the items in subdirectories. If this is null item counts
+     *                   aren't shown.
+     * @param page The number of the page to show starting from 1.
+     * @param pageSize The number of entries on each page. 0 shows every entry on one page. Otherwise this must be at
+     *                 most MAX_PAGE_SIZE.
+     */
+    public DirectorySupplier(final Path root, final Path metaDirectory, final boolean showHidden,
+                             final Path directory, final MimeTypes mimeTypes, final DirectoryCache itemCounts,
+                             final long page, final int pageSize) {
+        if (page < 1 || pageSize < 0 || pageSize > MAX_PAGE_SIZE)
+        {
+            throw new IllegalArgumentException(String.format("Invalid page %d of size %d", page, pageSize));
+        }
         this.root = root;
         this.metaDirectory = metaDirectory;
         this.showHidden = showHidden;
         this.directory = directory;
+        this.mimeTypes = mimeTypes;
+        this.itemCounts = itemCounts;
+        this.page = page;
+        this.pageSize = pageSize;
     }
 
     private String toHumanReadable(final long bytes) {
         if (bytes < 1024)
         {
-            return String.format("%d Bytes", bytes);
+            return bytes + " Bytes";
         }
         final int zeroes = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
-        System.out.printf("%d %d%n", bytes, zeroes);
         final String units = "KMGTPE";
-        return String.format("%.1f %ciB", (double) bytes / (1L << (zeroes * 10)), units.charAt(zeroes - 1));
+        if (bytes >= 1L << 59)
+        {
+            return String.format("%.1f %ciB", (double) bytes / (1L << (zeroes * 10)), units.charAt(zeroes - 1));
+        }
+        // This is the same rounding as %.1f without the cost of formatting a double.
+        final long unit = 1L << (zeroes * 10);
+        final long tenths = (bytes * 10 + unit / 2) / unit;
+        return (tenths / 10) + "." + (tenths % 10) + ' ' + units.charAt(zeroes - 1) + "iB";
     }
 
-    /**
-     * Generate HTML representing the configured directory.
-     *
-     * @return A valid HTML body for a directory index page.
-     */
-    @Override
-    public String get() {
-        StringBuilder builder = new StringBuilder();
-        final String opening = "<hr /><a %s>Up one level</a><br /><br /><table><tr><th>Name</th><th>Size</th><th>Date " +
-                "Modified</th></tr>";
-        final String openingAttrs;
+    private static BasicFileAttributes readAttributes(final Path entry) throws IOException {
+        try
+        {
+            return Files.readAttributes(entry, BasicFileAttributes.class);
+        }
+        catch (final IOException err)
+        {
+            // A broken link is listed as the link itself.
+            return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    private String toItemCount(final Path entry, final BasicFileAttributes attributes) {
+        if (this.itemCounts == null)
+        {
+            return "-";
+        }
+        try
+        {
+            // I know this violates the spec. I do not care. I like this better. The spec is boring.
+            return String.format("%d Items", this.itemCounts.countItems(entry, attributes.lastModifiedTime()));
+        }
+        catch (final IOException err)
+        {
+            return "-";
+        }
+    }
+
+    private void writeOpening(final StringBuilder builder) {
+        builder.append("<hr /><a ");
         if (this.directory.equals(this.root))
         {
-            openingAttrs = "class=\"disabled\" href=\"#\"";
+            builder.append("class=\"disabled\" href=\"#\"");
         }
         else
         {
-            openingAttrs = String.format("href=\"/%s\"", this.root.relativize(this.directory.getParent()));
+            builder.append("href=\"/")
+                    .append(HttpRequest.encodePath(this.root.relativize(this.directory.getParent()).toString()))
+                    .append('"');
         }
-        builder.append(String.format(opening, openingAttrs));
-        try (final DirectoryStream<Path> dir = Files.newDirectoryStream(this.directory))
+        builder.append(">Up one level</a><br /><br /><table><tr><th>Name</th><th>Size</th><th>Date Modified</th></tr>");
+    }
+
+    private void writeClosing(final StringBuilder builder, final boolean hasNextPage) {
+        builder.append("</table>");
+        if (this.pageSize > 0 && (this.page > 1 || hasNextPage))
         {
-            long count = 0;
-            for (final Path entry : dir)
+            builder.append("<p class=\"pages\">");
+            if (this.page > 1)
             {
-                final File file = entry.toFile();
-                if (!file.isHidden() || this.showHidden)
-                {
+                builder.append("<a href=\"?page=").append(this.page - 1).append("&amp;size=").append(this.pageSize)
+                        .append("\">Previous page</a> ");
+            }
+            builder.append("Page ").append(this.page);
+            if (hasNextPage)
+            {
+                builder.append(" <a href=\"?page=").append(this.page + 1).append("&amp;size=").append(this.pageSize)
+                        .append("\">Next page</a>");
+            }
+            builder.append("</p>");
+        }
+        builder.append("<br /><a href=\"#\">Back to top</a><hr />");
+    }
 
-                    final String icon;
-                    final String length;
-                    if (file.isDirectory())
-                    {
-                        icon = "icons/places/folder.svg";
-                        // I know this violates the spec. I do not care. I like this better. The spec is boring.
-                        length = String.format("%d Items", Objects.requireNonNull(file.listFiles()).length);
-                    }
-                    else
+    /**
+     * A position in the directory. Rows are generated as entries are read so only the current entry is held in memory.
+     */
+    private final class Rows implements Closeable {
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path> entries;
+        private final String hrefPrefix;
+        private final String iconPrefix;
+        private final ZoneId zone;
+        private final long first;
+        private final long end;
+        private long index;
+
+        private Rows() throws IOException {
+            this.stream = Files.newDirectoryStream(directory);
+            this.entries = this.stream.iterator();
+            final String relative = root.relativize(directory).toString();
+            this.hrefPrefix = relative.isEmpty() ? "/" : String.format("/%s/", HttpRequest.encodePath(relative));
+            this.iconPrefix = String.format("/%s/img/", root.relativize(metaDirectory));
+            this.zone = ZoneId.systemDefault();
+            this.first = pageSize > 0 ? (page - 1) * pageSize : 0;
+            this.end = pageSize > 0 ? this.first + pageSize : Long.MAX_VALUE;
+            this.index = 0;
+        }
+
+        /**
+         * @return The next entry that should be listed or null if there are no more.
+         */
+        private Path next() {
+            while (this.entries.hasNext())
+            {
+                final Path entry = this.entries.next();
+                try
+                {
+                    if (showHidden || !Files.isHidden(entry))
                     {
-                        // This is ridiculous but it will either determine the type of the file or decide it's an octet
-                        // stream. Really when you think about it everything is just an octet stream anyway.
-                        String mimetype = Files.probeContentType(entry);
-                        if (mimetype == null)
-                        {
-                            final BufferedInputStream fstream = new BufferedInputStream(new FileInputStream(file));
-                            mimetype = URLConnection.guessContentTypeFromStream(fstream);
-                        }
-                        if (mimetype == null)
-                        {
-                            mimetype = URLConnection.guessContentTypeFromName(file.getName());
-                        }
-                        if (mimetype == null)
-                        {
-                            mimetype = "application/octet-stream";
-                        }
-                        icon = String.format("icons/mimetypes/%s.svg", mimetype.replaceAll("/", "-"));
-                        // This is also not to spec. I still do not care. This is better.
-                        // Calculates the correct binary unit to use and displays it.
-                        length = toHumanReadable(file.length());
+                        return entry;
                     }
-                    final String href = String.format("/%s", this.root.relativize(entry));
-                    final String name = file.getName();
-                    final String time =
-                            Instant.ofEpochMilli(file.lastModified()).atZone(Clock.systemDefaultZone().getZone())
-                            .toOffsetDateTime().format(DateTimeFormatter.ISO_ZONED_DATE_TIME);
-                    final String rowFormat = "<tr id=\"row-%d\"><td><a class=\"reflink\" href=\"#row-%d\">#</a>&nbsp;" +
-                            "&nbsp;<img class=\"icon\" src=\"/%s/img/%s\" />&nbsp;&nbsp;<a href=\"%s\">%s</a></td>" +
-                            "<td>%s</td><td><time datetime=\"%s\">%s</time></td></tr>";
-                    final String row = String.format(rowFormat, count, count, this.root.relativize(this.metaDirectory),
-                            icon, href, name, length, time, time);
-                    builder.append(row);
-                    ++count;
+                }
+                catch (final IOException err)
+                {
+                    // The entry was removed while the directory was being read.
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Write up to a number of rows.
+         *
+         * @return True if there are more rows on this page. Otherwise false.
+         */
+        private boolean write(final StringBuilder builder, final int count) {
+            for (int written = 0; written < count && this.index < this.end; )
+            {
+                final Path entry = next();
+                if (entry == null)
+                {
+                    this.index = this.end;
+                    return false;
+                }
+                if (this.index++ < this.first)
+                {
+                    continue;
+                }
+                try
+                {
+                    writeRow(builder, entry, readAttributes(entry));
+                    ++written;
+                }
+                catch (final IOException err)
+                {
+                    // The entry was removed while the directory was being read.
+                    --this.index;
                 }
             }
+            return this.index < this.end;
+        }
+
+        /**
+         * @return True if there are entries after this page. This should only be called once every row is written.
+         */
+        private boolean hasNextPage() {
+            return pageSize > 0 && next() != null;
+        }
+
+        private void writeRow(final StringBuilder builder, final Path entry, final BasicFileAttributes attributes) {
+            final long row = this.index - 1;
+            final String icon;
+            final String length;
+            if (attributes.isDirectory())
+            {
+                icon = "icons/places/folder.svg";
+                length = toItemCount(entry, attributes);
+            }
+            else
+            {
+                icon = mimeTypes.getIcon(mimeTypes.getType(entry));
+                // This is also not to spec. I still do not care. This is better.
+                // Calculates the correct binary unit to use and displays it.
+                length = toHumanReadable(attributes.size());
+            }
+            final String name = entry.getFileName().toString();
+            final String time = Instant.ofEpochMilli(attributes.lastModifiedTime().toMillis()).atZone(this.zone)
+                    .toOffsetDateTime().format(DateTimeFormatter.ISO_ZONED_DATE_TIME);
+            builder.append("<tr id=\"row-").append(row).append("\"><td><a class=\"reflink\" href=\"#row-")
+                    .append(row).append("\">#</a>&nbsp;&nbsp;<img class=\"icon\" src=\"").append(this.iconPrefix)
+                    .append(icon).append("\" />&nbsp;&nbsp;<a href=\"").append(this.hrefPrefix)
+                    .append(HttpRequest.encodePath(name))
+                    .append("\">").append(name).append("</a></td><td>").append(length)
+                    .append("</td><td><time datetime=\"").append(time).append("\">").append(time)
+                    .append("</time></td></tr>");
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.close();
+        }
+    }
+
+    /**
+     * Generate HTML representing the configured directory.
+     *
+     * @return A valid HTML body for a directory index page.
+     */
+    @Override
+    public String get() {
+        final StringBuilder builder = new StringBuilder();
+        writeOpening(builder);
+        boolean hasNextPage = false;
+        try (final Rows rows = new Rows())
+        {
+            while (rows.write(builder, Integer.MAX_VALUE))
+            {
+                // Every row is written in one pass.
+            }
+            hasNextPage = rows.hasNextPage();
         }
         catch (final IOException err)
         {
             builder.append("<p class=\"error\">Failed reading directory!</p>");
             err.printStackTrace();
         }
-        builder.append("</table><br /><a href=\"#\">Back to top</a><hr />");
+        writeClosing(builder, hasNextPage);
         return builder.toString();
     }
+
+    /**
+     * Stream a page containing the listing.
+     *
+     * The directory is read STREAM_BATCH_SIZE rows at a time as the Generator is pulled.
+     *
+     * @param head The part of the page before the listing.
+     * @param tail The part of the page after the listing.
+     * @return A Generator of the complete page.
+     */
+    public StreamedBody.Generator stream(final Template.Rendered head, final Template.Rendered tail) {
+        return new StreamedBody.Generator() {
+            private Rows rows = null;
+            private boolean opened = false;
+
+            @Override
+            public boolean write(final OutputStream output) throws IOException {
+                final StringBuilder builder = new StringBuilder();
+                if (!this.opened)
+                {
+                    this.opened = true;
+                    head.writeTo(output);
+                    writeOpening(builder);
+                    try
+                    {
+                        this.rows = new Rows();
+                    }
+                    catch (final IOException err)
+                    {
+                        builder.append("<p class=\"error\">Failed reading directory!</p>");
+                        err.printStackTrace();
+                    }
+                }
+                else if (this.rows != null && this.rows.write(builder, STREAM_BATCH_SIZE))
+                {
+                    output.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+                    return true;
+                }
+                else
+                {
+                    writeClosing(builder, this.rows != null && this.rows.hasNextPage());
+                    output.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+                    tail.writeTo(output);
+                    return false;
+                }
+                output.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (this.rows != null)
+                {
+                    this.rows.close();
+                }
+            }
+        };
+    }
 }
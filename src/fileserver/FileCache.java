@@ -0,0 +1,189 @@
+package fileserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded, least recently used cache of small file contents.
+ *
+ * Contents are held in direct ByteBuffers so that each engine can write them to the client without copying them onto
+ * the heap first. An entry is only used while the file's size, modification time, and file key match the attributes
+ * it was read with. Callers already read those attributes to build the response's validators, so checking an entry
+ * costs nothing extra and a changed file is read again on its next request.
+ *
+ * Only files that are requested more than once are cached. The first request for a file just remembers its path, and
+ * the file is read into the cache if it is requested again before ADMISSION_WINDOW other files have been seen. A client
+ * walking every file once, such as a crawler, never fills the cache or evicts the meta files that every page uses.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class FileCache {
+    /**
+     * The number of files requested only once that are remembered. A file is cached when it is requested again while it
+     * is still remembered.
+     */
+    public static final int ADMISSION_WINDOW = 4096;
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final LinkedHashMap<Path, Entry> entries;
+    private final LinkedHashMap<Path, Boolean> seen;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private long size;
+
+    /**
+     * The contents of a file and the attributes they were read with.
+     */
+    private static final class Entry {
+        private final ByteBuffer content;
+        private final long size;
+        private final FileTime modified;
+        private final Object key;
+
+        private Entry(final ByteBuffer content, final BasicFileAttributes attributes) {
+            this.content = content;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.key = attributes.fileKey();
+        }
+
+        private boolean matches(final BasicFileAttributes attributes) {
+            return this.size == attributes.size() && this.modified.equals(attributes.lastModifiedTime()) &&
+                    Objects.equals(this.key, attributes.fileKey());
+        }
+    }
+
+    /**
+     * Read a whole file into a direct buffer.
+     *
+     * @return The contents of the file, or null if the file no longer has the expected size.
+     */
+    private static ByteBuffer read(final Path file, final long size) throws IOException {
+        final ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            while (content.hasRemaining())
+            {
+                if (channel.read(content) < 0)
+                {
+                    return null;
+                }
+            }
+            // The file grew while it was being read.
+            if (channel.size() != size)
+            {
+                return null;
+            }
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Constructs a new FileCache.
+     *
+     * @param config The Server Configuration.
+     */
+    public FileCache(final Configuration config) {
+        this.capacity = config.getFileCacheSize();
+        this.maxEntrySize = Math.min(config.getFileCacheMaxEntrySize(), this.capacity);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.seen = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Path, Boolean> eldest) {
+                return size() > ADMISSION_WINDOW;
+            }
+        };
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.size = 0;
+    }
+
+    /**
+     * Get the contents of a file from the cache, reading and storing them if they aren't already present and the file
+     * has been requested recently.
+     *
+     * Reading happens outside of the cache's lock. If two threads miss on the same file at the same time both read it
+     * and the second result replaces the first.
+     *
+     * @param file The Path of the file.
+     * @param attributes The attributes of the file as they were just read. Cached contents are only used if they were
+     *                   read with the same size, modification time, and file key.
+     * @return A buffer positioned at the start of the file's contents. This is shared so it is read-only, but its
+     *         position may be changed freely. null if the file is too large to cache, it hasn't been requested
+     *         recently, or it changed while being read.
+     * @throws IOException If the file cannot be read.
+     */
+    public ByteBuffer get(final Path file, final BasicFileAttributes attributes) throws IOException {
+        if (attributes.size() > this.maxEntrySize)
+        {
+            return null;
+        }
+        synchronized (this)
+        {
+            final Entry cached = this.entries.get(file);
+            if (cached != null && cached.matches(attributes))
+            {
+                this.hits.increment();
+                return cached.content.duplicate();
+            }
+            this.misses.increment();
+            // A file that was cached before it changed is still popular so it is read again straight away.
+            if (cached == null && this.seen.remove(file) == null)
+            {
+                this.seen.put(file, Boolean.TRUE);
+                return null;
+            }
+        }
+        final ByteBuffer content = read(file, attributes.size());
+        if (content == null)
+        {
+            return null;
+        }
+        synchronized (this)
+        {
+            final Entry previous = this.entries.put(file, new Entry(content, attributes));
+            this.size += content.capacity() - (previous != null ? previous.content.capacity() : 0);
+            final Iterator<Map.Entry<Path, Entry>> eldest = this.entries.entrySet().iterator();
+            while (this.size > this.capacity && eldest.hasNext())
+            {
+                this.size -= eldest.next().getValue().content.capacity();
+                eldest.remove();
+            }
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * @return The total size, in bytes, of the cached file contents.
+     */
+    public synchronized long size() {
+        return this.size;
+    }
+
+    /**
+     * @return The number of lookups that found current contents in the cache.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return The number of lookups of cacheable files that had to read the file.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+}
@@ -0,0 +1,275 @@
+package fileserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A parsed HTTP request head.
+ *
+ * Header names are stored in lower case next to their values in a single array. Repeated headers are kept in the
+ * order they were received and lookups return the first of them.
+ *
+ * A request that couldn't be parsed is still represented so that it can be answered and logged. Its error status is
+ * set and any part of the head that wasn't reached is null.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public final class HttpRequest {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String requestLine;
+    private final String method;
+    private final String target;
+    private final String path;
+    private final String query;
+    private final String version;
+    private final String[] headers;
+    private final int errorStatus;
+    private final String errorMessage;
+
+    /**
+     * Constructs a new HttpRequest.
+     *
+     * @param requestLine The request line or null if it wasn't received.
+     * @param method The request method.
+     * @param target The request target as it was received.
+     * @param path The decoded and normalized path of the target.
+     * @param query The raw query of the target. This is empty if there is no query.
+     * @param version The HTTP version.
+     * @param headers Alternating lower case header names and values.
+     * @param errorStatus The status to respond with if the request is malformed. Otherwise 0.
+     * @param errorMessage The reason phrase to respond with if the request is malformed. Otherwise null.
+     */
+    HttpRequest(final String requestLine, final String method, final String target, final String path,
+                final String query, final String version, final String[] headers, final int errorStatus,
+                final String errorMessage) {
+        this.requestLine = requestLine;
+        this.method = method;
+        this.target = target;
+        this.path = path;
+        this.query = query;
+        this.version = version;
+        this.headers = headers;
+        this.errorStatus = errorStatus;
+        this.errorMessage = errorMessage;
+    }
+
+    private static boolean isSafe(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                "-._~/!$()*+,;=:@".indexOf(c) >= 0;
+    }
+
+    /**
+     * Percent-encode a path for use in a link. Decoding the result gives back the original path.
+     *
+     * Only unreserved characters, sub-delimiters other than those with a meaning in HTML, and path separators are left
+     * as is. Everything else is encoded as UTF-8.
+     *
+     * @param path The path to encode.
+     * @return The encoded path. This is the same String if nothing needed to be encoded.
+     */
+    public static String encodePath(final String path) {
+        int i = 0;
+        while (i < path.length() && isSafe(path.charAt(i)))
+        {
+            ++i;
+        }
+        if (i == path.length())
+        {
+            return path;
+        }
+        final StringBuilder builder = new StringBuilder(path.length() + 16).append(path, 0, i);
+        for (final byte b : path.substring(i).getBytes(StandardCharsets.UTF_8))
+        {
+            final char c = (char) (b & 0xff);
+            if (isSafe(c))
+            {
+                builder.append(c);
+            }
+            else
+            {
+                builder.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Percent-decode a path and remove its dot segments and empty segments.
+     *
+     * Decoding happens before normalizing so that encoded dots and separators can't be used to escape the root. A
+     * trailing separator is kept.
+     *
+     * @param path The raw path of a request target. This must start with a separator.
+     * @return The normalized path. null if the path has an invalid escape, isn't valid UTF-8, contains a NUL, or has a
+     *         .. segment that would leave the root.
+     */
+    public static String decodePath(final String path) {
+        if (!path.startsWith("/"))
+        {
+            return null;
+        }
+        String decoded = path;
+        if (path.indexOf('%') >= 0)
+        {
+            final byte[] bytes = new byte[path.length()];
+            int length = 0;
+            for (int i = 0; i < path.length(); ++i)
+            {
+                final char c = path.charAt(i);
+                if (c != '%')
+                {
+                    bytes[length++] = (byte) c;
+                    continue;
+                }
+                final int high = i + 2 < path.length() ? Character.digit(path.charAt(i + 1), 16) : -1;
+                final int low = high >= 0 ? Character.digit(path.charAt(i + 2), 16) : -1;
+                if (low < 0)
+                {
+                    return null;
+                }
+                bytes[length++] = (byte) ((high << 4) | low);
+                i += 2;
+            }
+            try
+            {
+                decoded = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes, 0, length)).toString();
+            }
+            catch (final CharacterCodingException err)
+            {
+                return null;
+            }
+            if (decoded.indexOf('\0') >= 0)
+            {
+                return null;
+            }
+        }
+        if (!decoded.contains("/.") && !decoded.contains("//"))
+        {
+            return decoded;
+        }
+        final StringBuilder normalized = new StringBuilder(decoded.length());
+        boolean directory = false;
+        int start = 1;
+        while (start <= decoded.length())
+        {
+            int end = decoded.indexOf('/', start);
+            if (end < 0)
+            {
+                end = decoded.length();
+            }
+            final int length = end - start;
+            directory = true;
+            if (length == 2 && decoded.charAt(start) == '.' && decoded.charAt(start + 1) == '.')
+            {
+                if (normalized.length() == 0)
+                {
+                    return null;
+                }
+                normalized.setLength(normalized.lastIndexOf("/"));
+            }
+            else if (length > 0 && !(length == 1 && decoded.charAt(start) == '.'))
+            {
+                normalized.append('/').append(decoded, start, end);
+                directory = false;
+            }
+            start = end + 1;
+        }
+        if (directory || normalized.length() == 0)
+        {
+            normalized.append('/');
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return The request line or null if it wasn't received.
+     */
+    public String getRequestLine() {
+        return this.requestLine;
+    }
+
+    /**
+     * @return The request method or null if the request line couldn't be parsed.
+     */
+    public String getMethod() {
+        return this.method;
+    }
+
+    /**
+     * @return The request target as it was received or null if the request line couldn't be parsed.
+     */
+    public String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * @return The decoded and normalized path of the request target. This always starts with a separator unless the
+     *         request is malformed, in which case it may be null.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return The raw query of the request target without the leading ?. This is empty if there is no query.
+     */
+    public String getQuery() {
+        return this.query;
+    }
+
+    /**
+     * @return The HTTP version of the request or null if the request line couldn't be parsed.
+     */
+    public String getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Get the value of a header.
+     *
+     * @param name The lower case name of the header.
+     * @return The value of the first header with the given name or null if there is no such header.
+     */
+    public String getHeader(final String name) {
+        for (int i = 0; i < this.headers.length; i += 2)
+        {
+            if (this.headers[i].equals(name))
+            {
+                return this.headers[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name The lower case name of a header.
+     * @return True if the request has a header with the given name. Otherwise false.
+     */
+    public boolean hasHeader(final String name) {
+        return getHeader(name) != null;
+    }
+
+    /**
+     * @return The number of headers in the request, including repeated headers.
+     */
+    public int getHeaderCount() {
+        return this.headers.length / 2;
+    }
+
+    /**
+     * @return The status to respond with if the request is malformed. Otherwise 0.
+     */
+    public int getErrorStatus() {
+        return this.errorStatus;
+    }
+
+    /**
+     * @return The reason phrase to respond with if the request is malformed. Otherwise null.
+     */
+    public String getErrorMessage() {
+        return this.errorMessage;
+    }
+}
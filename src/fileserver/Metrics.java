@@ -0,0 +1,567 @@
+package fileserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server wide counters and latency histograms exposed in the Prometheus text format.
+ *
+ * Everything recorded on the request path is a LongAdder, so threads recording at the same time don't contend with each
+ * other. Cache statistics are read from the caches themselves when the metrics are scraped.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class Metrics {
+    /**
+     * The Content-Type of the Prometheus text format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The time, in milliseconds, that the metrics listener waits for a scrape request.
+     */
+    public static final int SCRAPE_TIMEOUT_MILLIS = 5_000;
+
+    private static final String[] METHODS = { "GET", "HEAD", "OTHER" };
+    private static final int MAX_STATUS = 600;
+
+    /**
+     * A latency histogram with log-linear buckets.
+     *
+     * Like an HDR histogram each power of two is split into sub-buckets, here two of them, so the relative error of a
+     * bucket is bounded no matter the magnitude. Buckets run from 16 microseconds to about 50 seconds. Slower values
+     * are only counted in the implicit +Inf bucket.
+     */
+    public static final class Histogram {
+        private static final long[] BOUNDS_MICROS = bounds();
+
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos;
+
+        private static long[] bounds() {
+            final long[] bounds = new long[44];
+            for (int i = 0; i < bounds.length; i += 2)
+            {
+                final long power = 1L << (i / 2 + 4);
+                bounds[i] = power;
+                bounds[i + 1] = power + power / 2;
+            }
+            return bounds;
+        }
+
+        /**
+         * Constructs a new, empty Histogram.
+         */
+        public Histogram() {
+            this.counts = new LongAdder[BOUNDS_MICROS.length + 1];
+            for (int i = 0; i < this.counts.length; ++i)
+            {
+                this.counts[i] = new LongAdder();
+            }
+            this.sumNanos = new LongAdder();
+        }
+
+        /**
+         * Record a value.
+         *
+         * @param nanos The value in nanoseconds.
+         */
+        public void record(final long nanos) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            final int found = Arrays.binarySearch(BOUNDS_MICROS, micros);
+            // A bucket counts values up to and including its bound.
+            this.counts[found >= 0 ? found : -found - 1].increment();
+            this.sumNanos.add(nanos);
+        }
+
+        /**
+         * @return The number of values recorded.
+         */
+        public long getCount() {
+            long count = 0;
+            for (final LongAdder bucket : this.counts)
+            {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Write the histogram with its cumulative buckets, sum, and count.
+         *
+         * @param builder The StringBuilder to write to.
+         * @param name The name of the metric. Values are written in seconds.
+         * @param help The description of the metric.
+         */
+        public void writeTo(final StringBuilder builder, final String name, final String help) {
+            writeHead(builder, name, "histogram", help);
+            writeSamples(builder, name, "");
+        }
+
+        /**
+         * Write the histogram's samples without a head so that several labelled histograms can share one metric.
+         *
+         * @param builder The StringBuilder to write to.
+         * @param name The name of the metric. Values are written in seconds.
+         * @param labels The labels of the samples, such as session="new", or an empty String.
+         */
+        public void writeSamples(final StringBuilder builder, final String name, final String labels) {
+            final String prefix = labels.isEmpty() ? "" : labels + ",";
+            final String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_MICROS.length; ++i)
+            {
+                cumulative += this.counts[i].sum();
+                builder.append(name).append("_bucket{").append(prefix).append("le=\"")
+                       .append(BigDecimal.valueOf(BOUNDS_MICROS[i], 6).stripTrailingZeros().toPlainString())
+                       .append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += this.counts[BOUNDS_MICROS.length].sum();
+            builder.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative)
+                   .append('\n');
+            builder.append(name).append("_sum").append(suffix)
+                   .append(BigDecimal.valueOf(this.sumNanos.sum(), 9).stripTrailingZeros().toPlainString())
+                   .append('\n');
+            builder.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * The reasons a connection can be closed for taking too long.
+     */
+    public enum Timeout {
+        /**
+         * The client didn't finish sending a request head in time.
+         */
+        Header,
+        /**
+         * The connection was idle between requests for too long.
+         */
+        Idle,
+        /**
+         * The client received a response too slowly.
+         */
+        Send
+    }
+
+    private final DirectoryCache directories;
+    private final CompressionCache compressed;
+    private final FileCache files;
+    private final AccessLog accessLog;
+    private final AtomicReferenceArray<LongAdder> requests;
+    private final LongAdder bytesSent;
+    private final LongAdder connections;
+    private final LongAdder activeConnections;
+    private final LongAdder rejectedConnections;
+    private final LongAdder[] timeouts;
+    private final Histogram firstByte;
+    private final Histogram response;
+    private volatile LongSupplier queueDepth;
+    private volatile Bandwidth bandwidth;
+    private volatile Tls tls;
+
+    private static void writeHead(final StringBuilder builder, final String name, final String type,
+                                  final String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(final StringBuilder builder, final String name, final String type,
+                                    final String help, final long value) {
+        writeHead(builder, name, type, help);
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static int toMethodIndex(final String method) {
+        for (int i = 0; i < METHODS.length - 1; ++i)
+        {
+            if (METHODS[i].equalsIgnoreCase(method))
+            {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    /**
+     * Constructs a new Metrics registry.
+     *
+     * @param directories The directory page cache.
+     * @param compressed The compressed body cache.
+     * @param files The file content cache.
+     * @param accessLog The access log. This may be null if requests aren't logged.
+     */
+    public Metrics(final DirectoryCache directories, final CompressionCache compressed, final FileCache files,
+                   final AccessLog accessLog) {
+        this.directories = directories;
+        this.compressed = compressed;
+        this.files = files;
+        this.accessLog = accessLog;
+        this.requests = new AtomicReferenceArray<>(METHODS.length * MAX_STATUS);
+        this.bytesSent = new LongAdder();
+        this.connections = new LongAdder();
+        this.activeConnections = new LongAdder();
+        this.rejectedConnections = new LongAdder();
+        this.timeouts = new LongAdder[Timeout.values().length];
+        for (int i = 0; i < this.timeouts.length; ++i)
+        {
+            this.timeouts[i] = new LongAdder();
+        }
+        this.firstByte = new Histogram();
+        this.response = new Histogram();
+        this.queueDepth = null;
+        this.bandwidth = null;
+        this.tls = null;
+    }
+
+    /**
+     * Set the source of the executor queue depth gauge.
+     *
+     * @param queueDepth A supplier of the number of connections waiting for a thread. null removes the gauge.
+     */
+    public void setQueueDepth(final LongSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Set the source of the bandwidth metrics.
+     *
+     * @param bandwidth The server Bandwidth. null removes the bandwidth metrics.
+     */
+    public void setBandwidth(final Bandwidth bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Set the source of the TLS handshake metrics.
+     *
+     * @param tls The Tls of the HTTPS listeners. null removes the TLS metrics.
+     */
+    public void setTls(final Tls tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Record that a connection was accepted.
+     */
+    public void connectionOpened() {
+        this.connections.increment();
+        this.activeConnections.increment();
+    }
+
+    /**
+     * Record that a connection was closed.
+     */
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    /**
+     * Record that a connection was turned away because the server was full.
+     */
+    public void connectionRejected() {
+        this.rejectedConnections.increment();
+    }
+
+    /**
+     * Record that a connection was closed for taking too long.
+     *
+     * @param timeout The reason the connection was closed.
+     */
+    public void connectionTimedOut(final Timeout timeout) {
+        this.timeouts[timeout.ordinal()].increment();
+    }
+
+    /**
+     * Record a completed request.
+     *
+     * @param method The request method.
+     * @param status The status code of the response.
+     * @param bytes The length of the response body. Bodies whose length wasn't known ahead of time aren't counted.
+     * @param firstByteNanos The time, in nanoseconds, until the response head was written. Negative if it never was.
+     * @param totalNanos The time, in nanoseconds, until the whole response was sent.
+     */
+    public void recordRequest(final String method, final int status, final long bytes, final long firstByteNanos,
+                              final long totalNanos) {
+        final int index = toMethodIndex(method) * MAX_STATUS + (status > 0 && status < MAX_STATUS ? status : 0);
+        LongAdder counter = this.requests.get(index);
+        if (counter == null)
+        {
+            this.requests.compareAndSet(index, null, new LongAdder());
+            counter = this.requests.get(index);
+        }
+        counter.increment();
+        if (bytes > 0)
+        {
+            this.bytesSent.add(bytes);
+        }
+        if (firstByteNanos >= 0)
+        {
+            this.firstByte.record(firstByteNanos);
+        }
+        this.response.record(totalNanos);
+    }
+
+    /**
+     * @param method The request method.
+     * @param status The status code of the response.
+     * @return The number of requests recorded with the method and status.
+     */
+    public long getRequests(final String method, final int status) {
+        final LongAdder counter = this.requests.get(toMethodIndex(method) * MAX_STATUS + status);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * @return The number of connections that are currently open.
+     */
+    public long getActiveConnections() {
+        return this.activeConnections.sum();
+    }
+
+    /**
+     * @return The number of connections that were turned away because the server was full.
+     */
+    public long getRejectedConnections() {
+        return this.rejectedConnections.sum();
+    }
+
+    /**
+     * @param timeout A reason for closing a connection.
+     * @return The number of connections closed for the reason.
+     */
+    public long getTimeouts(final Timeout timeout) {
+        return this.timeouts[timeout.ordinal()].sum();
+    }
+
+    private static void writeCache(final StringBuilder builder, final String name, final String cache,
+                                   final long value) {
+        builder.append(name).append("{cache=\"").append(cache).append("\"} ").append(value).append('\n');
+    }
+
+    private static void writeBucket(final StringBuilder builder, final String name, final Bandwidth.Bucket bucket,
+                                    final long value) {
+        builder.append(name).append("{limit=\"");
+        if (bucket.getPrefix() != null)
+        {
+            // Label values escape backslashes and quotes.
+            builder.append("path\",prefix=\"")
+                   .append(bucket.getPrefix().replace("\\", "\\\\").replace("\"", "\\\""));
+        }
+        else
+        {
+            builder.append("server");
+        }
+        builder.append("\"} ").append(value).append('\n');
+    }
+
+    private void writeBandwidth(final StringBuilder builder, final Bandwidth bandwidth) {
+        final List<Bandwidth.Bucket> buckets = new ArrayList<>();
+        buckets.add(bandwidth.getServer());
+        buckets.addAll(bandwidth.getPaths());
+        writeHead(builder, "fileserver_bandwidth_bytes_total", "counter", "Bytes sent by bandwidth limit.");
+        for (final Bandwidth.Bucket bucket : buckets)
+        {
+            writeBucket(builder, "fileserver_bandwidth_bytes_total", bucket, bucket.getSent());
+        }
+        writeHead(builder, "fileserver_bandwidth_bytes_per_second", "gauge",
+                "Current rate by bandwidth limit, averaged since the previous scrape.");
+        for (final Bandwidth.Bucket bucket : buckets)
+        {
+            writeBucket(builder, "fileserver_bandwidth_bytes_per_second", bucket, bucket.getCurrentRate());
+        }
+        writeHead(builder, "fileserver_bandwidth_limit_bytes_per_second", "gauge",
+                "Configured bandwidth limits. 0 means there is no limit.");
+        for (final Bandwidth.Bucket bucket : buckets)
+        {
+            writeBucket(builder, "fileserver_bandwidth_limit_bytes_per_second", bucket, bucket.getLimit());
+        }
+        builder.append("fileserver_bandwidth_limit_bytes_per_second{limit=\"client\"} ")
+               .append(bandwidth.getClientLimit()).append('\n');
+        writeHead(builder, "fileserver_bandwidth_throttled_total", "counter",
+                "Times file content waited for a bandwidth limit.");
+        for (final Bandwidth.Bucket bucket : buckets)
+        {
+            writeBucket(builder, "fileserver_bandwidth_throttled_total", bucket, bucket.getThrottled());
+        }
+        builder.append("fileserver_bandwidth_throttled_total{limit=\"client\"} ")
+               .append(bandwidth.getClientsThrottled()).append('\n');
+        writeSample(builder, "fileserver_bandwidth_clients", "gauge",
+                "Client addresses sharing a per client bandwidth limit.", bandwidth.getClients());
+    }
+
+    private void writeTls(final StringBuilder builder, final Tls tls) {
+        writeHead(builder, "fileserver_tls_handshakes_total", "counter",
+                "TLS handshakes finished by whether they created a new session or resumed one.");
+        builder.append("fileserver_tls_handshakes_total{session=\"new\"} ").append(tls.getHandshakes(false))
+               .append('\n');
+        builder.append("fileserver_tls_handshakes_total{session=\"resumed\"} ").append(tls.getHandshakes(true))
+               .append('\n');
+        writeSample(builder, "fileserver_tls_handshake_failures_total", "counter",
+                "TLS handshakes that failed or timed out.", tls.getHandshakeFailures());
+        writeHead(builder, "fileserver_tls_handshake_cpu_seconds_total", "counter",
+                "CPU time spent on finished TLS handshakes.");
+        builder.append("fileserver_tls_handshake_cpu_seconds_total{session=\"new\"} ")
+               .append(BigDecimal.valueOf(tls.getHandshakeCpuNanos(false), 9).stripTrailingZeros().toPlainString())
+               .append('\n');
+        builder.append("fileserver_tls_handshake_cpu_seconds_total{session=\"resumed\"} ")
+               .append(BigDecimal.valueOf(tls.getHandshakeCpuNanos(true), 9).stripTrailingZeros().toPlainString())
+               .append('\n');
+        writeHead(builder, "fileserver_tls_handshake_seconds", "histogram",
+                "Time from starting a TLS handshake to finishing it.");
+        tls.getHandshakeTimes(false).writeSamples(builder, "fileserver_tls_handshake_seconds", "session=\"new\"");
+        tls.getHandshakeTimes(true).writeSamples(builder, "fileserver_tls_handshake_seconds", "session=\"resumed\"");
+    }
+
+    /**
+     * Write every metric in the Prometheus text format.
+     *
+     * @return The metrics as a String.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(8192);
+        writeHead(builder, "fileserver_requests_total", "counter", "Requests served by method and status.");
+        for (int i = 0; i < this.requests.length(); ++i)
+        {
+            final LongAdder counter = this.requests.get(i);
+            if (counter != null)
+            {
+                builder.append("fileserver_requests_total{method=\"").append(METHODS[i / MAX_STATUS])
+                       .append("\",status=\"").append(i % MAX_STATUS).append("\"} ").append(counter.sum())
+                       .append('\n');
+            }
+        }
+        writeSample(builder, "fileserver_response_bytes_total", "counter",
+                "Response body bytes sent for responses of a known length.", this.bytesSent.sum());
+        writeSample(builder, "fileserver_connections_total", "counter", "Connections accepted.",
+                this.connections.sum());
+        writeSample(builder, "fileserver_connections_active", "gauge", "Connections currently open.",
+                this.activeConnections.sum());
+        writeSample(builder, "fileserver_connections_rejected_total", "counter",
+                "Connections answered with 503 because the server was full.", this.rejectedConnections.sum());
+        writeHead(builder, "fileserver_connection_timeouts_total", "counter",
+                "Connections closed for taking too long.");
+        for (final Timeout timeout : Timeout.values())
+        {
+            builder.append("fileserver_connection_timeouts_total{reason=\"")
+                   .append(timeout.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                   .append(this.timeouts[timeout.ordinal()].sum()).append('\n');
+        }
+        final LongSupplier queueDepth = this.queueDepth;
+        if (queueDepth != null)
+        {
+            writeSample(builder, "fileserver_executor_queue_depth", "gauge", "Connections waiting for a thread.",
+                    queueDepth.getAsLong());
+        }
+        final Bandwidth bandwidth = this.bandwidth;
+        if (bandwidth != null)
+        {
+            writeBandwidth(builder, bandwidth);
+        }
+        final Tls tls = this.tls;
+        if (tls != null)
+        {
+            writeTls(builder, tls);
+        }
+        // Every sample of a metric has to follow its own head, so hits and misses are written in separate passes.
+        writeHead(builder, "fileserver_cache_hits_total", "counter", "Cache lookups that were served from memory.");
+        writeCache(builder, "fileserver_cache_hits_total", "directory", this.directories.getHits());
+        writeCache(builder, "fileserver_cache_hits_total", "template", Template.getCacheHits());
+        writeCache(builder, "fileserver_cache_hits_total", "file", this.files.getHits());
+        writeCache(builder, "fileserver_cache_hits_total", "compression", this.compressed.getHits());
+        writeHead(builder, "fileserver_cache_misses_total", "counter", "Cache lookups that had to do the work.");
+        writeCache(builder, "fileserver_cache_misses_total", "directory", this.directories.getMisses());
+        writeCache(builder, "fileserver_cache_misses_total", "template", Template.getCacheMisses());
+        writeCache(builder, "fileserver_cache_misses_total", "file", this.files.getMisses());
+        writeCache(builder, "fileserver_cache_misses_total", "compression", this.compressed.getMisses());
+        writeSample(builder, "fileserver_directory_cache_evictions_total", "counter",
+                "Directory listings evicted to keep the cache within its bounds.", this.directories.getEvictions());
+        if (this.accessLog != null)
+        {
+            writeSample(builder, "fileserver_access_log_dropped_total", "counter",
+                    "Requests that weren't logged because the access log fell behind.", this.accessLog.getDropped());
+        }
+        this.firstByte.writeTo(builder, "fileserver_time_to_first_byte_seconds",
+                "Time from receiving a request to writing its response head.");
+        this.response.writeTo(builder, "fileserver_response_seconds",
+                "Time from receiving a request to sending all of its response.");
+        return builder.toString();
+    }
+
+    /**
+     * Serve the metrics on a port of their own.
+     *
+     * Scrapes are answered one at a time on a daemon thread and every connection is closed after its response. Any
+     * path returns the metrics.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void listen(final int port) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        final Thread thread = new Thread(() -> {
+            while (server.isOpen())
+            {
+                try (final Socket client = server.accept().socket())
+                {
+                    client.setSoTimeout(SCRAPE_TIMEOUT_MILLIS);
+                    // The head is read a byte at a time so it must not be read straight from the socket.
+                    scrape(new BufferedInputStream(client.getInputStream()), client.getOutputStream());
+                }
+                catch (final SocketTimeoutException err)
+                {
+                    // The scraper never finished its request.
+                }
+                catch (final IOException err)
+                {
+                    System.err.printf("I/O Error%n");
+                    err.printStackTrace();
+                }
+            }
+        }, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void scrape(final InputStream input, final OutputStream output) throws IOException {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int read;
+        int matched = 0;
+        // Read up to the end of the request head. Only the method matters.
+        while (matched < 4 && head.size() < RequestHandler.MAX_REQUEST_SIZE && (read = input.read()) != -1)
+        {
+            head.write(read);
+            matched = read == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (read == '\r' ? 1 : 0);
+        }
+        final byte[] body = toString().getBytes(StandardCharsets.UTF_8);
+        final boolean bodyless = head.toString(StandardCharsets.US_ASCII).startsWith("HEAD ");
+        output.write(String.format("HTTP/1.1 200 OK\r\nContent-Type: %s\r\nContent-Length: %d\r\n" +
+                "Cache-Control: no-store\r\nConnection: close\r\n\r\n", CONTENT_TYPE, body.length)
+                .getBytes(StandardCharsets.US_ASCII));
+        if (!bodyless)
+        {
+            output.write(body);
+        }
+        output.flush();
+    }
+}
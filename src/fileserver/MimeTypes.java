@@ -0,0 +1,236 @@
+package fileserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of MIME types keyed by file extension.
+ *
+ * The table is loaded once from a mime.types file on top of a small built in table. Extensions that aren't in either
+ * are guessed from their name once and the result is cached, so looking up a type never touches the filesystem. Files
+ * with unknown extensions are only read when content sniffing has been enabled.
+ *
+ * Each MIME type is also mapped to an icon under the meta directory's img/icons/mimetypes directory. The available
+ * icons are listed once when the table is constructed.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class MimeTypes {
+    /**
+     * The MIME type of files whose type can't be determined.
+     */
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+
+    // Stored in place of null, which a ConcurrentHashMap can't hold, for extensions with no known type.
+    private static final String UNKNOWN = "";
+    private static final String ICON_DIRECTORY = "icons/mimetypes";
+
+    private final ConcurrentHashMap<String, String> types;
+    private final ConcurrentHashMap<String, String> icons;
+    private final Set<String> availableIcons;
+    private final boolean sniffing;
+
+    private static Map<String, String> builtInTypes() {
+        final Map<String, String> types = new HashMap<>();
+        types.put("html", "text/html");
+        types.put("htm", "text/html");
+        types.put("css", "text/css");
+        types.put("js", "application/javascript");
+        types.put("mjs", "application/javascript");
+        types.put("json", "application/json");
+        types.put("xml", "application/xml");
+        types.put("txt", "text/plain");
+        types.put("md", "text/markdown");
+        types.put("csv", "text/csv");
+        types.put("svg", "image/svg+xml");
+        types.put("png", "image/png");
+        types.put("jpg", "image/jpeg");
+        types.put("jpeg", "image/jpeg");
+        types.put("gif", "image/gif");
+        types.put("webp", "image/webp");
+        types.put("ico", "image/vnd.microsoft.icon");
+        types.put("woff", "font/woff");
+        types.put("woff2", "font/woff2");
+        types.put("ttf", "font/ttf");
+        types.put("otf", "font/otf");
+        types.put("pdf", "application/pdf");
+        types.put("zip", "application/zip");
+        types.put("gz", "application/gzip");
+        types.put("tar", "application/x-tar");
+        types.put("mp3", "audio/mpeg");
+        types.put("ogg", "audio/ogg");
+        types.put("wav", "audio/wav");
+        types.put("mp4", "video/mp4");
+        types.put("webm", "video/webm");
+        return types;
+    }
+
+    /**
+     * Read a mime.types file. Each line holds a MIME type followed by its extensions. Comments start with #.
+     *
+     * @param path The Path of the file.
+     * @return A Map of lowercase extensions to MIME types. When an extension is listed more than once the first entry
+     *         is used.
+     * @throws IOException If the file cannot be read.
+     */
+    private static Map<String, String> readTypes(final Path path) throws IOException {
+        final Map<String, String> types = new HashMap<>();
+        for (final String line : Files.readAllLines(path))
+        {
+            final int comment = line.indexOf('#');
+            final String entry = (comment < 0 ? line : line.substring(0, comment)).trim();
+            if (entry.isEmpty())
+            {
+                continue;
+            }
+            final String[] fields = entry.split("\\s+");
+            for (int i = 1; i < fields.length; ++i)
+            {
+                types.putIfAbsent(fields[i].toLowerCase(Locale.ROOT), fields[0]);
+            }
+        }
+        return types;
+    }
+
+    private static Set<String> listIcons(final Path directory) {
+        final Set<String> icons = new HashSet<>();
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.svg"))
+        {
+            for (final Path entry : entries)
+            {
+                icons.add(entry.getFileName().toString());
+            }
+        }
+        catch (final IOException err)
+        {
+            System.err.printf("Failed to list MIME type icons in \"%s\"%n", directory);
+        }
+        return icons;
+    }
+
+    /**
+     * Find the extension of a file name.
+     *
+     * @return The lowercase text after the last dot in the name or null if there is none. The leading dot of a hidden
+     *         file doesn't start an extension.
+     */
+    private static String toExtension(final String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 && dot < name.length() - 1 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : null;
+    }
+
+    private static String sniff(final Path file) {
+        try (final InputStream content = new BufferedInputStream(Files.newInputStream(file)))
+        {
+            return URLConnection.guessContentTypeFromStream(content);
+        }
+        catch (final IOException err)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Constructs a new MimeTypes table.
+     *
+     * A missing mime.types file is ignored when it is the default. If it was configured explicitly a warning is printed.
+     * Either way the built in table is still used.
+     *
+     * @param config The Server Configuration.
+     */
+    public MimeTypes(final Configuration config) {
+        this.types = new ConcurrentHashMap<>(builtInTypes());
+        try
+        {
+            this.types.putAll(readTypes(config.getMimeTypesFile()));
+        }
+        catch (final NoSuchFileException err)
+        {
+            if (!config.getMimeTypesFile().equals(Path.of("/etc/mime.types")))
+            {
+                System.err.printf("MIME types file \"%s\" does not exist%n", config.getMimeTypesFile());
+            }
+        }
+        catch (final IOException err)
+        {
+            System.err.printf("Failed to read MIME types file \"%s\"%n", config.getMimeTypesFile());
+            err.printStackTrace();
+        }
+        this.icons = new ConcurrentHashMap<>();
+        final Path metaDirectory = Path.of(config.getRoot().toString(), config.getMetaRoot().toString());
+        this.availableIcons = listIcons(metaDirectory.resolve("img").resolve(ICON_DIRECTORY));
+        this.sniffing = config.shouldSniffMimeTypes();
+    }
+
+    /**
+     * Determine the MIME type of a file.
+     *
+     * @param file The Path of the file.
+     * @return The MIME type of the file. This is DEFAULT_TYPE if the type can't be determined.
+     */
+    public String getType(final Path file) {
+        final String extension = toExtension(file.getFileName().toString());
+        if (extension != null)
+        {
+            final String type = this.types.computeIfAbsent(extension, (key) -> {
+                final String guess = URLConnection.guessContentTypeFromName(String.format("file.%s", key));
+                return guess != null ? guess : UNKNOWN;
+            });
+            if (!type.equals(UNKNOWN))
+            {
+                return type;
+            }
+        }
+        if (this.sniffing)
+        {
+            final String type = sniff(file);
+            if (type != null)
+            {
+                return type;
+            }
+        }
+        // Really when you think about it everything is just an octet stream anyway.
+        return DEFAULT_TYPE;
+    }
+
+    /**
+     * Find the icon for a MIME type.
+     *
+     * If there is no icon for the type itself the generic icon for its top level type is used, for example
+     * text-x-generic.svg. If that doesn't exist either the icon for DEFAULT_TYPE is used.
+     *
+     * @param type The MIME type.
+     * @return The path of the icon relative to the meta directory's img directory.
+     */
+    public String getIcon(final String type) {
+        return this.icons.computeIfAbsent(type, (key) -> {
+            final String exact = String.format("%s.svg", key.replace('/', '-'));
+            final int slash = key.indexOf('/');
+            final String generic = String.format("%s-x-generic.svg", slash > 0 ? key.substring(0, slash) : key);
+            final String fallback = String.format("%s.svg", DEFAULT_TYPE.replace('/', '-'));
+            String icon = fallback;
+            if (this.availableIcons.contains(exact))
+            {
+                icon = exact;
+            }
+            else if (this.availableIcons.contains(generic))
+            {
+                icon = generic;
+            }
+            return String.format("%s/%s", ICON_DIRECTORY, icon);
+        });
+    }
+}
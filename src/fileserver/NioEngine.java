@@ -0,0 +1,889 @@
+package fileserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking engine that multiplexes connections over a small number of selector threads.
+ *
+ * Accepted connections are distributed between the selector threads in turn. Each selector thread reads request heads
+ * and writes the queued responses as fast as the client receives them. No thread is tied up by an idle or slow client.
+ * Requests are served by a RequestHandler on a worker thread, since serving can read the disk, render templates, and
+ * compress bodies, and one slow response must not hold up every other connection of its selector thread. Generated
+ * bodies, such as streamed directory listings, are produced on a worker a piece at a time for the same reason.
+ *
+ * A failure while handling one connection closes that connection only. Its selector thread carries on with the rest.
+ *
+ * Each selector thread schedules its connections fairly. A connection sends at most one quantum of a file, or one piece
+ * of a generated body, before every other ready connection has had a turn, so small responses aren't held up behind
+ * large downloads.
+ * A connection waiting for the Bandwidth to allow more of a file is set aside until it is due and selected for nothing
+ * in the meantime.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class NioEngine {
+    /**
+     * The maximum time, in milliseconds, that a selector thread waits before checking for idle connections.
+     */
+    public static final long SELECT_TIMEOUT_MILLIS = 1_000;
+
+    private final Map<Integer, Template> errors;
+    private final DirectoryCache directories;
+    private final CompressionCache compressed;
+    private final FileCache files;
+    private final MimeTypes mimeTypes;
+    private final AccessLog accessLog;
+    private final Metrics metrics;
+    private final Admission admission;
+    private final Bandwidth bandwidth;
+    private final Configuration config;
+    private final Executor workers;
+    private final EventLoop[] loops;
+    private final AtomicLong next;
+
+    /**
+     * Constructs a new NioEngine with the given page caches and Configuration.
+     *
+     * @param errors A error page cache. This must be thread-safe.
+     * @param directories A directory page cache.
+     * @param compressed A compressed body cache.
+     * @param files A file content cache.
+     * @param mimeTypes The MIME type table.
+     * @param accessLog The access log. This may be null if requests aren't logged.
+     * @param metrics The server Metrics.
+     * @param admission The limit on open connections.
+     * @param bandwidth The Bandwidth that shapes responses.
+     * @param config The Server Configuration.
+     * @param workers The executor that requests are served on.
+     * @throws IOException If a Selector cannot be opened.
+     */
+    public NioEngine(final Map<Integer, Template> errors, final DirectoryCache directories,
+                     final CompressionCache compressed, final FileCache files, final MimeTypes mimeTypes,
+                     final AccessLog accessLog, final Metrics metrics, final Admission admission,
+                     final Bandwidth bandwidth, final Configuration config, final Executor workers)
+            throws IOException {
+        this.errors = errors;
+        this.directories = directories;
+        this.compressed = compressed;
+        this.files = files;
+        this.mimeTypes = mimeTypes;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.bandwidth = bandwidth;
+        this.config = config;
+        this.workers = workers;
+        this.loops = new EventLoop[Math.max(1, config.getNioThreads())];
+        this.next = new AtomicLong();
+        for (int i = 0; i < this.loops.length; ++i)
+        {
+            this.loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Start the selector threads.
+     */
+    public void start() {
+        for (int i = 0; i < this.loops.length; ++i)
+        {
+            new Thread(this.loops[i], String.format("nio-loop-%d", i)).start();
+        }
+    }
+
+    /**
+     * Serve an accepted connection. This may be called by any number of threads at once.
+     *
+     * @param client An admitted connection. It is released from the Admission once it closes.
+     */
+    public void serve(final SocketChannel client) {
+        this.loops[(int) Long.remainderUnsigned(this.next.getAndIncrement(), this.loops.length)].register(client);
+    }
+
+    /**
+     * Something a worker does while it owns a connection.
+     */
+    private interface Work {
+        void run() throws IOException;
+    }
+
+    /**
+     * A selector thread.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending;
+        private final Queue<Connection> served;
+        private final Queue<Connection> throttled;
+
+        private EventLoop() throws IOException {
+            this.selector = Selector.open();
+            this.pending = new ConcurrentLinkedQueue<>();
+            this.served = new ConcurrentLinkedQueue<>();
+            this.throttled = new ArrayDeque<>();
+        }
+
+        private void register(final SocketChannel client) {
+            this.pending.add(client);
+            this.selector.wakeup();
+        }
+
+        /**
+         * Hand a connection back once a worker has served its request. This may be called by any thread.
+         */
+        private void served(final Connection connection) {
+            this.served.add(connection);
+            this.selector.wakeup();
+        }
+
+        /**
+         * Close a connection that failed unexpectedly. The error is logged since it is a bug rather than a client
+         * going away.
+         */
+        private void fail(final Connection connection, final RuntimeException err) {
+            System.err.printf("Error handling connection%n");
+            err.printStackTrace();
+            connection.close();
+        }
+
+        /**
+         * Start sending the responses of every connection that a worker has finished serving.
+         */
+        private void resumeServed() {
+            Connection connection;
+            while ((connection = this.served.poll()) != null)
+            {
+                try
+                {
+                    connection.resumeServed();
+                }
+                catch (final IOException err)
+                {
+                    connection.close();
+                }
+                catch (final RuntimeException err)
+                {
+                    fail(connection, err);
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = this.pending.poll()) != null)
+            {
+                try
+                {
+                    client.configureBlocking(false);
+                    final SelectionKey key = client.register(this.selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(client, key, this));
+                }
+                catch (final IOException err)
+                {
+                    System.err.printf("I/O Error%n");
+                    err.printStackTrace();
+                    admission.release();
+                    try
+                    {
+                        client.close();
+                    }
+                    catch (final IOException ignored)
+                    {
+                        // The connection is already broken.
+                    }
+                }
+            }
+        }
+
+        /**
+         * Set aside a connection that is waiting for bandwidth until it is due.
+         */
+        private void throttle(final Connection connection) {
+            this.throttled.add(connection);
+        }
+
+        /**
+         * @return The time, in milliseconds, that the selector may wait before a throttled connection is due.
+         */
+        private long selectTimeout() {
+            final long now = System.nanoTime();
+            long timeout = SELECT_TIMEOUT_MILLIS;
+            for (final Connection connection : this.throttled)
+            {
+                timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(connection.resumeAt - now));
+            }
+            // A timeout of 0 would wait forever.
+            return Math.max(1, timeout);
+        }
+
+        /**
+         * Resume every throttled connection that is due.
+         */
+        private void resumeThrottled() {
+            final long now = System.nanoTime();
+            // Connections may be throttled again as they resume so only those set aside before now are visited.
+            for (int i = this.throttled.size(); i > 0; --i)
+            {
+                final Connection connection = this.throttled.remove();
+                if (connection.resumeAt - now > 0)
+                {
+                    this.throttled.add(connection);
+                    continue;
+                }
+                try
+                {
+                    connection.resume();
+                }
+                catch (final IOException err)
+                {
+                    connection.close();
+                }
+                catch (final RuntimeException err)
+                {
+                    fail(connection, err);
+                }
+            }
+        }
+
+        /**
+         * Close connections that are too slow. A connection sending a response is held to the minimum send rate, one
+         * part way through a request head is held to the header timeout, and any other connection is idle.
+         */
+        private void expireIdle() {
+            final long now = System.currentTimeMillis();
+            for (final SelectionKey key : this.selector.keys())
+            {
+                final Connection connection = (Connection) key.attachment();
+                if (connection == null)
+                {
+                    continue;
+                }
+                try
+                {
+                    connection.expire(now);
+                }
+                catch (final RuntimeException err)
+                {
+                    fail(connection, err);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true)
+            {
+                try
+                {
+                    this.selector.select(selectTimeout());
+                    registerPending();
+                    resumeServed();
+                    final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        final Connection connection = (Connection) key.attachment();
+                        try
+                        {
+                            if (key.isValid() && key.isReadable())
+                            {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable())
+                            {
+                                connection.pump();
+                            }
+                        }
+                        catch (final IOException err)
+                        {
+                            connection.close();
+                        }
+                        catch (final RuntimeException err)
+                        {
+                            fail(connection, err);
+                        }
+                    }
+                    resumeThrottled();
+                    expireIdle();
+                }
+                catch (final IOException err)
+                {
+                    System.err.printf("I/O Error%n");
+                    err.printStackTrace();
+                }
+                catch (final RuntimeException err)
+                {
+                    // Connections are handled one at a time above so this is the selector itself failing. The loop
+                    // keeps going rather than abandoning every connection it has.
+                    System.err.printf("Error in selector thread%n");
+                    err.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A region of a file waiting to be sent.
+     */
+    private static final class Region {
+        private final Path file;
+        private final Bandwidth.Bucket bucket;
+        private long position;
+        private long remaining;
+        private FileChannel content;
+
+        private Region(final Path file, final Bandwidth.Bucket bucket, final long position, final long count) {
+            this.file = file;
+            this.bucket = bucket;
+            this.position = position;
+            this.remaining = count;
+            this.content = null;
+        }
+
+        /**
+         * Send as much of the region as the client will accept without blocking, up to a limit.
+         *
+         * @param limit The most bytes to send.
+         * @return The number of bytes sent.
+         */
+        private long send(final SocketChannel target, final long limit) throws IOException {
+            if (this.content == null)
+            {
+                this.content = FileChannel.open(this.file, StandardOpenOption.READ);
+            }
+            long sent = 0;
+            while (this.remaining > 0 && sent < limit)
+            {
+                final long transferred = this.content.transferTo(this.position,
+                        Math.min(this.remaining, limit - sent), target);
+                if (transferred < 1)
+                {
+                    if (this.position >= this.content.size())
+                    {
+                        throw new IOException("File truncated while sending");
+                    }
+                    break;
+                }
+                this.position += transferred;
+                this.remaining -= transferred;
+                sent += transferred;
+            }
+            return sent;
+        }
+
+        /**
+         * @return The number of bytes left to send.
+         */
+        private long getRemaining() {
+            return this.remaining;
+        }
+
+        /**
+         * @return True if the whole region has been sent. Otherwise false.
+         */
+        private boolean isDone() {
+            return this.remaining == 0;
+        }
+
+        private void close() {
+            if (this.content != null)
+            {
+                try
+                {
+                    this.content.close();
+                }
+                catch (final IOException ignored)
+                {
+                    // Nothing else can be done with the file.
+                }
+            }
+        }
+    }
+
+    /**
+     * A generated body waiting to be sent. The selector thread only writes pieces that have already been read. Each
+     * piece is read by a worker once the client has received the one before it.
+     */
+    private static final class Stream {
+        private final ReadableByteChannel source;
+        private final ByteBuffer buffer;
+        private boolean done;
+
+        private Stream(final ReadableByteChannel source) {
+            this.source = source;
+            this.buffer = ByteBuffer.allocate(StreamedBody.CHUNK_SIZE);
+            this.buffer.flip();
+            this.done = false;
+        }
+
+        /**
+         * Send as much of the piece that has been read as the client will accept without blocking.
+         *
+         * @return The number of bytes sent.
+         */
+        private long send(final SocketChannel target) throws IOException {
+            return target.write(this.buffer);
+        }
+
+        /**
+         * Read the next piece of the body. This runs the body's generator so it must only be called by a worker.
+         */
+        private void fill() throws IOException {
+            this.buffer.clear();
+            final int read = this.source.read(this.buffer);
+            this.buffer.flip();
+            this.done = read < 0;
+        }
+
+        /**
+         * @return True if every piece that has been read has been sent. Otherwise false.
+         */
+        private boolean isEmpty() {
+            return !this.buffer.hasRemaining();
+        }
+
+        /**
+         * @return True if the whole body has been sent. Otherwise false.
+         */
+        private boolean isDone() {
+            return this.done && !this.buffer.hasRemaining();
+        }
+
+        private void close() {
+            try
+            {
+                this.source.close();
+            }
+            catch (final IOException ignored)
+            {
+                // Nothing else can be done with the body.
+            }
+        }
+    }
+
+    /**
+     * The state of a single client connection. This is also the ResponseSink for the connection.
+     *
+     * Responses are queued as buffers, file regions, generated bodies, and callbacks that run once the preceding items
+     * are sent. While a response is being written no further requests are read, so a client that stops reading cannot
+     * make the server buffer an unbounded amount of data.
+     *
+     * While a worker serves a request, or reads the next piece of a generated body, it owns the connection's handler
+     * and queue. The selector thread leaves the connection alone, selecting it for nothing, until the worker hands it
+     * back.
+     */
+    private final class Connection implements ResponseSink {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final RequestHandler handler;
+        private final ByteBuffer input;
+        private final RequestParser parser;
+        private final EventLoop loop;
+        private final Watchdog.Transfer transfer;
+        private final Bandwidth.Limit limit;
+        private final Queue<Object> queue;
+        private final PrintStream output;
+        private int handled;
+        private long headStarted;
+        private boolean closing;
+        private boolean closed;
+        private boolean serving;
+        private boolean keepAlive;
+        private Exception failure;
+        private long lastActivity;
+        private long resumeAt;
+
+        private Connection(final SocketChannel channel, final SelectionKey key, final EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.handler = new RequestHandler(errors, directories, compressed, files, mimeTypes, accessLog,
+                    metrics, null, bandwidth, config, channel.socket());
+            this.input = ByteBuffer.allocate(RequestHandler.MAX_REQUEST_SIZE);
+            this.parser = new RequestParser(RequestHandler.MAX_REQUEST_SIZE);
+            this.loop = loop;
+            this.transfer = new Watchdog.Transfer(config);
+            this.limit = bandwidth.open(channel.socket().getInetAddress());
+            this.queue = new ArrayDeque<>();
+            this.output = new PrintStream(new QueueStream());
+            this.handled = 0;
+            this.headStarted = 0;
+            this.closing = false;
+            this.closed = false;
+            this.serving = false;
+            this.keepAlive = false;
+            this.failure = null;
+            this.lastActivity = System.currentTimeMillis();
+            this.resumeAt = 0;
+            metrics.connectionOpened();
+        }
+
+        @Override
+        public PrintStream stream() {
+            return this.output;
+        }
+
+        @Override
+        public void transfer(final Path file, final long position, final long count) {
+            this.output.flush();
+            this.queue.add(new Region(file, bandwidth.getPathBucket(file), position, count));
+        }
+
+        @Override
+        public void send(final ByteBuffer content) {
+            this.output.flush();
+            this.queue.add(content);
+        }
+
+        @Override
+        public void transfer(final ReadableByteChannel source) {
+            this.output.flush();
+            this.queue.add(new Stream(source));
+        }
+
+        @Override
+        public void whenSent(final Runnable callback) {
+            this.output.flush();
+            this.queue.add(callback);
+        }
+
+        private void read() throws IOException {
+            if (this.channel.read(this.input) < 0)
+            {
+                close();
+                return;
+            }
+            this.lastActivity = System.currentTimeMillis();
+            pump();
+        }
+
+        /**
+         * Write queued responses and serve buffered requests until the connection has to wait for the client.
+         */
+        private void pump() throws IOException {
+            if (this.serving || this.closed)
+            {
+                return;
+            }
+            if (!drain())
+            {
+                // A throttled connection is resumed by its loop and one handed to a worker by the worker rather than
+                // selected.
+                this.key.interestOps(this.resumeAt != 0 || this.serving ? 0 : SelectionKey.OP_WRITE);
+                return;
+            }
+            if (this.closing)
+            {
+                close();
+                return;
+            }
+            if (!serveBuffered())
+            {
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Serve a request on a worker and hand the connection back to its loop once the response is queued.
+         */
+        private void dispatch(final HttpRequest request) {
+            final int handled = ++this.handled;
+            work(() -> {
+                this.keepAlive = this.handler.serve(request, handled, this);
+                this.output.flush();
+            });
+        }
+
+        /**
+         * Read the next piece of a generated body on a worker and hand the connection back to its loop once it is
+         * ready to send.
+         */
+        private void fill(final Stream stream) {
+            work(stream::fill);
+        }
+
+        /**
+         * Hand the connection to a worker until some work is done.
+         */
+        private void work(final Work work) {
+            this.serving = true;
+            this.key.interestOps(0);
+            workers.execute(() -> {
+                try
+                {
+                    work.run();
+                }
+                catch (final Exception err)
+                {
+                    this.failure = err;
+                }
+                finally
+                {
+                    this.loop.served(this);
+                }
+            });
+        }
+
+        /**
+         * Take the connection back from a worker and carry on sending.
+         */
+        private void resumeServed() throws IOException {
+            this.serving = false;
+            if (this.closed)
+            {
+                // The connection was closed while the worker was busy. Whatever it queued is let go of now.
+                discard();
+                return;
+            }
+            final Exception failure = this.failure;
+            this.failure = null;
+            if (failure instanceof IOException)
+            {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException)
+            {
+                throw (RuntimeException) failure;
+            }
+            this.closing = !this.keepAlive;
+            pump();
+        }
+
+        /**
+         * Resume sending once the Bandwidth is due to allow more.
+         */
+        private void resume() throws IOException {
+            this.resumeAt = 0;
+            if (this.closed)
+            {
+                return;
+            }
+            // Waiting for bandwidth isn't the client's doing so the send timeout starts a new window.
+            this.transfer.begin(System.currentTimeMillis());
+            pump();
+        }
+
+        private void sent(final long bytes) {
+            this.transfer.add(bytes);
+            this.limit.charge(bytes);
+        }
+
+        /**
+         * Send queued items in order. Files yield after a quantum so that other connections get a turn, and wait
+         * whenever the Bandwidth has nothing to spare. Generated bodies yield after every piece while a worker reads
+         * the next one.
+         *
+         * @return True if the queue is empty. Otherwise false.
+         */
+        private boolean drain() throws IOException {
+            if (!this.queue.isEmpty() && !this.transfer.isSending())
+            {
+                this.transfer.begin(System.currentTimeMillis());
+            }
+            while (!this.queue.isEmpty())
+            {
+                final Object next = this.queue.peek();
+                if (next instanceof ByteBuffer)
+                {
+                    final ByteBuffer buffer = (ByteBuffer) next;
+                    sent(this.channel.write(buffer));
+                    if (buffer.hasRemaining())
+                    {
+                        return false;
+                    }
+                }
+                else if (next instanceof Runnable)
+                {
+                    ((Runnable) next).run();
+                }
+                else if (next instanceof Stream)
+                {
+                    final Stream stream = (Stream) next;
+                    sent(stream.send(this.channel));
+                    if (!stream.isDone())
+                    {
+                        if (stream.isEmpty())
+                        {
+                            // Generating the body can take as long as serving a request did.
+                            fill(stream);
+                        }
+                        return false;
+                    }
+                    stream.close();
+                }
+                else
+                {
+                    final Region region = (Region) next;
+                    if (!region.isDone())
+                    {
+                        final long allowed = this.limit.allow(region.bucket, region.getRemaining());
+                        if (allowed == 0)
+                        {
+                            this.resumeAt = System.nanoTime() + Math.max(1, this.limit.delay(region.bucket));
+                            this.loop.throttle(this);
+                            return false;
+                        }
+                        final long sent = region.send(this.channel, allowed);
+                        this.transfer.add(sent);
+                        this.limit.charge(region.bucket, sent);
+                        if (!region.isDone())
+                        {
+                            return false;
+                        }
+                    }
+                    region.close();
+                }
+                this.queue.remove();
+                this.lastActivity = System.currentTimeMillis();
+            }
+            this.transfer.end();
+            return true;
+        }
+
+        /**
+         * Serve the first request in the input buffer if all of its head has been received.
+         *
+         * @return True if a request was dispatched to a worker. False if more input is needed.
+         */
+        private boolean serveBuffered() {
+            this.input.flip();
+            final HttpRequest request = this.parser.parse(this.input);
+            this.input.compact();
+            if (request == null)
+            {
+                if (this.headStarted == 0 && this.parser.isPartial())
+                {
+                    this.headStarted = System.currentTimeMillis();
+                }
+                return false;
+            }
+            this.headStarted = 0;
+            dispatch(request);
+            return true;
+        }
+
+        /**
+         * Close the connection if it has taken too long. A request head that timed out is answered with 408 Request
+         * Timeout first.
+         *
+         * @param now The current time in milliseconds.
+         */
+        private void expire(final long now) {
+            if (this.closed || this.serving)
+            {
+                return;
+            }
+            if (this.transfer.isSending())
+            {
+                if (this.transfer.isTooSlow(now))
+                {
+                    metrics.connectionTimedOut(Metrics.Timeout.Send);
+                    close();
+                }
+            }
+            else if (this.headStarted != 0)
+            {
+                if (now - this.headStarted >= config.getHeaderTimeout())
+                {
+                    metrics.connectionTimedOut(Metrics.Timeout.Header);
+                    this.headStarted = 0;
+                    dispatch(this.parser.timeout());
+                }
+            }
+            else if (now - this.lastActivity >= config.getKeepAliveTimeout())
+            {
+                metrics.connectionTimedOut(Metrics.Timeout.Idle);
+                close();
+            }
+        }
+
+        private void close() {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            this.key.cancel();
+            // A worker still serving a request owns the queue. It is discarded once the worker hands it back.
+            if (!this.serving)
+            {
+                discard();
+            }
+            try
+            {
+                this.channel.close();
+            }
+            catch (final IOException ignored)
+            {
+                // The connection is already broken.
+            }
+            this.limit.close();
+            metrics.connectionClosed();
+            admission.release();
+        }
+
+        /**
+         * Let go of everything left in the queue. Callbacks are still run so that requests are logged.
+         */
+        private void discard() {
+            for (final Object next : this.queue)
+            {
+                try
+                {
+                    if (next instanceof Runnable)
+                    {
+                        ((Runnable) next).run();
+                    }
+                    else if (next instanceof Region)
+                    {
+                        ((Region) next).close();
+                    }
+                    else if (next instanceof Stream)
+                    {
+                        ((Stream) next).close();
+                    }
+                }
+                catch (final RuntimeException err)
+                {
+                    // One failing callback mustn't stop the rest of the queue from being let go of.
+                    System.err.printf("Error closing connection%n");
+                    err.printStackTrace();
+                }
+            }
+            this.queue.clear();
+        }
+
+        /**
+         * A stream that queues everything written to it when flushed.
+         */
+        private final class QueueStream extends ByteArrayOutputStream {
+            @Override
+            public void flush() {
+                if (size() > 0)
+                {
+                    queue.add(ByteBuffer.wrap(toByteArray()));
+                    reset();
+                }
+            }
+        }
+    }
+}
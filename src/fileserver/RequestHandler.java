@@ -1,29 +1,51 @@
 package fileserver;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Runnable handler for HTTP requests.
  *
- * This is intended to be executed by a threadpool.
+ * This is intended to be executed by a threadpool. A single handler serves every request sent over its connection until
+ * the client closes it, the connection is idle for too long, or the per-connection request limit is reached. Pipelined
+ * requests are parsed from the same buffer in the order they were sent.
+ *
+ * Other engines may construct a handler without running it and pass each request they read to serve.
  *
  * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
  * @since April 16, 2021
  */
 public class RequestHandler implements Runnable {
     /**
-     * The maximum size, in bytes, of received HTTP requests.
+     * The maximum size, in bytes, of received HTTP request heads. Larger heads are refused with 414 or 431.
      */
-    public final int MAX_REQUEST_SIZE = 8192; // 8KiB
+    public static final int MAX_REQUEST_SIZE = 8192; // 8KiB
 
     private enum SupportedHttpMethod {
         Unknown,
@@ -32,13 +54,32 @@ public class RequestHandler implements Runnable {
     }
 
     private final Map<Integer, Template> errors;
-    private final Map<Path, Template> directories;
+    private final DirectoryCache directories;
+    private final CompressionCache compressed;
+    private final FileCache files;
+    private final MimeTypes mimeTypes;
+    private final AccessLog accessLog;
+    private final Metrics metrics;
+    private final Watchdog watchdog;
+    private final Bandwidth bandwidth;
+    private final Configuration config;
     private final Socket client;
+    private final Closeable connection;
     private final Path root;
     private final Path metaDirectory;
     private final Path theme;
     private final Path defaultTemplate;
+    private final String metricsPath;
     private final boolean showHidden;
+    private final int keepAliveTimeout;
+    private final int headerTimeout;
+    private final int maxKeepAliveRequests;
+    private boolean keepAlive;
+    private boolean chunkedAllowed;
+    private int status;
+    private long contentLength;
+    private long started;
+    private long firstByte;
 
     private static SupportedHttpMethod toMethod(final String str) {
         if (str.equalsIgnoreCase("HEAD"))
@@ -60,20 +101,77 @@ public class RequestHandler implements Runnable {
      * Constructs a new RequestHandler with the given page caches, Configuration, and client Socket.
      *
      * @param errors A error page cache. This should be thread-safe or unique to this handler.
-     * @param directories A directory page cache. This should be thread-safe or unique to this handler.
+     * @param directories A directory page cache.
+     * @param compressed A compressed body cache.
+     * @param files A file content cache.
+     * @param mimeTypes The MIME type table.
+     * @param accessLog The access log. This may be null if requests aren't logged.
+     * @param metrics The server Metrics.
+     * @param watchdog The Watchdog that closes slow connections while run sends responses. This may be null if the
+     *                 handler is only used to serve.
+     * @param bandwidth The Bandwidth that shapes the responses run sends.
      * @param config The Server Configuration.
      * @param client The client Socket to respond to.
      */
-    public RequestHandler(final Map<Integer, Template> errors, final Map<Path, Template> directories,
-                          final Configuration config, final Socket client) {
+    public RequestHandler(final Map<Integer, Template> errors, final DirectoryCache directories,
+                          final CompressionCache compressed, final FileCache files, final MimeTypes mimeTypes,
+                          final AccessLog accessLog, final Metrics metrics, final Watchdog watchdog,
+                          final Bandwidth bandwidth, final Configuration config, final Socket client) {
+        this(errors, directories, compressed, files, mimeTypes, accessLog, metrics, watchdog, bandwidth, config, client,
+                client);
+    }
+
+    /**
+     * Constructs a new RequestHandler for a client Socket that is layered over another connection, such as an
+     * SSLSocket.
+     *
+     * @param errors A error page cache. This should be thread-safe or unique to this handler.
+     * @param directories A directory page cache.
+     * @param compressed A compressed body cache.
+     * @param files A file content cache.
+     * @param mimeTypes The MIME type table.
+     * @param accessLog The access log. This may be null if requests aren't logged.
+     * @param metrics The server Metrics.
+     * @param watchdog The Watchdog that closes slow connections while run sends responses. This may be null if the
+     *                 handler is only used to serve.
+     * @param bandwidth The Bandwidth that shapes the responses run sends.
+     * @param config The Server Configuration.
+     * @param client The client Socket to respond to.
+     * @param connection The connection under the client Socket. The Watchdog closes this instead of the client Socket
+     *                   because closing an SSLSocket waits for any write that is blocked on it.
+     */
+    public RequestHandler(final Map<Integer, Template> errors, final DirectoryCache directories,
+                          final CompressionCache compressed, final FileCache files, final MimeTypes mimeTypes,
+                          final AccessLog accessLog, final Metrics metrics, final Watchdog watchdog,
+                          final Bandwidth bandwidth, final Configuration config, final Socket client,
+                          final Closeable connection) {
         this.errors = errors;
         this.directories = directories;
+        this.compressed = compressed;
+        this.files = files;
+        this.mimeTypes = mimeTypes;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.watchdog = watchdog;
+        this.bandwidth = bandwidth;
+        this.config = config;
         this.root = config.getRoot();
         this.metaDirectory = Path.of(this.root.toString(), config.getMetaRoot().toString()).toAbsolutePath();
         this.theme = Path.of(this.metaDirectory.toString(), config.getTheme().toString()).toAbsolutePath();
         this.defaultTemplate = Path.of(this.metaDirectory.toString(), "templates/default.template.html");
+        this.metricsPath = config.getMetricsPath();
         this.showHidden = config.shouldShowHidden();
+        this.keepAliveTimeout = config.getKeepAliveTimeout();
+        this.headerTimeout = config.getHeaderTimeout();
+        this.maxKeepAliveRequests = config.getMaxKeepAliveRequests();
+        this.keepAlive = false;
+        this.chunkedAllowed = false;
+        this.status = 0;
+        this.contentLength = -1;
+        this.started = 0;
+        this.firstByte = -1;
         this.client = client;
+        this.connection = connection;
     }
 
     private String getFooter() {
@@ -83,160 +181,958 @@ public class RequestHandler implements Runnable {
 
     private Map<String, String> prepareHeaders() {
         final Map<String, String> headers = new HashMap<>();
-        headers.put("Date", LocalDateTime.now(ZoneId.of("UTC")).toString());
+        headers.put("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
         final String template = "Java HTTP Fileserver v%d.%d.%d";
         headers.put("Server", String.format(template, Constants.VERSION_MAJOR, Constants.VERSION_MINOR,
                 Constants.VERSION_PATCH));
-        headers.put("Connection", "Close");
+        if (this.keepAlive)
+        {
+            headers.put("Connection", "Keep-Alive");
+            headers.put("Keep-Alive", String.format("timeout=%d", this.keepAliveTimeout / 1000));
+        }
+        else
+        {
+            headers.put("Connection", "Close");
+        }
         return headers;
     }
 
     private void printHttpHeader(final int status, final String message, final PrintStream output) {
+        this.status = status;
+        if (this.firstByte < 0)
+        {
+            this.firstByte = System.nanoTime() - this.started;
+        }
         output.printf("HTTP/1.1 %d %s\r\n", status, message);
     }
 
     private void printHeaders(final Map<String, String> headers, final PrintStream output) {
+        final String contentLength = headers.get("Content-Length");
+        this.contentLength = contentLength != null ? Long.parseLong(contentLength) : -1;
         for (final Map.Entry<String, String> entry : headers.entrySet())
         {
             output.printf("%s: %s\r\n", entry.getKey(), entry.getValue());
         }
+        output.print("\r\n");
     }
 
-    private void pipeContent(final InputStream content, final PrintStream output) throws IOException {
-        output.print("\r\n");
-        final byte[] buffer = new byte[MAX_REQUEST_SIZE];
-        int read;
-        while ((read = content.read(buffer)) >= 1)
-        {
-            output.write(buffer, 0, read);
-        }
+    private void respondError(final SupportedHttpMethod method, int status, final String message,
+                              final ResponseSink sink) throws IOException {
+        respondError(method, status, message, prepareHeaders(), sink);
     }
 
     private void respondError(final SupportedHttpMethod method, int status, final String message,
-                              final PrintStream output) throws IOException {
-        System.out.printf("%d %s%n", status, message);
-        final Map<String, String> headers = prepareHeaders();
+                              final Map<String, String> headers, final ResponseSink sink) throws IOException {
+        final PrintStream output = sink.stream();
         Template template = this.errors.get(status);
         if (template == null)
         {
             template = Template.from(this.defaultTemplate);
-            this.errors.put(status, template);
             template.set("meta", this.root.relativize(this.metaDirectory));
             template.set("theme_path", this.metaDirectory.relativize(this.theme));
             template.set("title", message);
             template.set("header", String.format("<h1>Error %d</h1>", status));
             template.set("body", String.format("<p>%s</p>", message));
             template.set("footer", String.format("%s", getFooter()));
+            this.errors.put(status, template);
         }
         headers.put("Content-Type", "text/html");
-        final byte[] contentBytes = template.toString().getBytes(StandardCharsets.UTF_8);
-        final long size = contentBytes.length;
-        final InputStream content = new ByteArrayInputStream(contentBytes);
-        headers.put("Content-Length", Long.toString(size));
+        final Template.Rendered page = template.render();
+        headers.put("Content-Length", Long.toString(page.getBytes().length));
         printHttpHeader(status, message, output);
         printHeaders(headers, output);
         if (method == SupportedHttpMethod.Get)
         {
-            pipeContent(content, output);
+            page.writeTo(output);
+        }
+        output.flush();
+    }
+
+    private void respondMetrics(final SupportedHttpMethod method, final ResponseSink sink) {
+        final PrintStream output = sink.stream();
+        final Map<String, String> headers = prepareHeaders();
+        final byte[] body = this.metrics.toString().getBytes(StandardCharsets.UTF_8);
+        headers.put("Content-Type", Metrics.CONTENT_TYPE);
+        headers.put("Content-Length", Long.toString(body.length));
+        headers.put("Cache-Control", "no-store");
+        printHttpHeader(200, "OK", output);
+        printHeaders(headers, output);
+        if (method == SupportedHttpMethod.Get)
+        {
+            output.write(body, 0, body.length);
         }
         output.flush();
     }
 
-    private void respondBadReq(final SupportedHttpMethod method, final PrintStream output) throws IOException {
-        respondError(method, 400, "Bad Request", output);
+    private void respondBadReq(final SupportedHttpMethod method, final ResponseSink sink) throws IOException {
+        respondError(method, 400, "Bad Request", sink);
     }
 
-    private void respondNotFound(final SupportedHttpMethod method, final PrintStream output) throws IOException {
-        respondError(method, 404, "File Not Found", output);
+    private void respondNotFound(final SupportedHttpMethod method, final ResponseSink sink) throws IOException {
+        respondError(method, 404, "File Not Found", sink);
     }
 
-    private void respondOK(final SupportedHttpMethod method, final Path desired,
-                           final PrintStream output) throws IOException {
-        System.out.printf("200 OK%n");
-        final Map<String, String> headers = prepareHeaders();
-        final InputStream content;
-        final long size;
+    private void respondOK(final SupportedHttpMethod method, final Path desired, final Map<String, String> query,
+                           final HttpRequest request, final ResponseSink sink) throws IOException {
         if (Files.isDirectory(desired))
         {
-            Template template = this.directories.get(desired);
-            if (template == null)
+            respondDirectory(method, desired, query, request, sink);
+        }
+        else
+        {
+            respondFile(method, desired, request, sink);
+        }
+    }
+
+    private Template createListing(final Path desired, final DirectorySupplier body) throws IOException {
+        final Template template = Template.from(this.defaultTemplate);
+        template.set("meta", this.root.relativize(this.metaDirectory));
+        template.set("theme_path", this.metaDirectory.relativize(this.theme));
+        template.set("title", () -> String.format("Index of /%s", this.root.relativize(desired)));
+        template.set("header", () -> String.format("<h1>Index of /%s</h1>", this.root.relativize(desired)));
+        template.set("body", body);
+        template.set("footer", String.format("%s", getFooter()));
+        return template;
+    }
+
+    private DirectorySupplier createDirectorySupplier(final Path desired, final long page, final int pageSize) {
+        return new DirectorySupplier(this.root, this.metaDirectory, this.showHidden, desired, this.mimeTypes,
+                this.config.shouldCountDirectoryItems() ? this.directories : null, page, pageSize);
+    }
+
+    /**
+     * Respond with a directory listing.
+     *
+     * Complete listings are cached unless the directory has at least directory-stream-threshold items, in which case
+     * the listing is streamed instead. A single page of a listing can be requested with the page and size query
+     * parameters. Pages aren't cached. Clients that ask for JSON or NDJSON get a DirectoryListing instead.
+     */
+    private void respondDirectory(final SupportedHttpMethod method, final Path desired, final Map<String, String> query,
+                                  final HttpRequest request, final ResponseSink sink) throws IOException {
+        final DirectoryListing.Format format;
+        try
+        {
+            format = DirectoryListing.negotiate(query.get("format"), request.getHeader("accept"));
+        }
+        catch (final IllegalArgumentException err)
+        {
+            respondBadReq(method, sink);
+            return;
+        }
+        if (format != null)
+        {
+            respondListing(method, desired, format, query, request, sink);
+            return;
+        }
+        final boolean paginated = query.containsKey("page") || query.containsKey("size");
+        final long page;
+        final int pageSize;
+        try
+        {
+            page = paginated ? Long.parseLong(query.getOrDefault("page", "1")) : 1;
+            pageSize = paginated ? Integer.parseInt(query.getOrDefault("size",
+                    Integer.toString(this.config.getDirectoryPageSize()))) : 0;
+        }
+        catch (final NumberFormatException err)
+        {
+            respondBadReq(method, sink);
+            return;
+        }
+        if (paginated && (page < 1 || pageSize < 1 || pageSize > DirectorySupplier.MAX_PAGE_SIZE))
+        {
+            respondBadReq(method, sink);
+            return;
+        }
+        if (!paginated && shouldStream(desired))
+        {
+            streamDirectory(method, desired, request, sink);
+            return;
+        }
+        final PrintStream output = sink.stream();
+        final Map<String, String> headers = prepareHeaders();
+        Template template = paginated ? null : this.directories.get(desired);
+        if (template == null)
+        {
+            template = createListing(desired, createDirectorySupplier(desired, page, pageSize));
+            if (!paginated)
             {
-                template = Template.from(this.defaultTemplate);
                 this.directories.put(desired, template);
-                template.set("meta", this.root.relativize(this.metaDirectory));
-                template.set("theme_path", this.metaDirectory.relativize(this.theme));
-                template.set("title", () -> String.format("Index of /%s", this.root.relativize(desired)));
-                template.set("header", () -> String.format("<h1>Index of /%s</h1>", this.root.relativize(desired)));
-                template.set("body", new DirectorySupplier(this.root, this.metaDirectory, this.showHidden, desired));
-                template.set("footer", String.format("%s", getFooter()));
-            }
-            headers.put("Content-Type", "text/html");
-            final byte[] contentBytes = template.toString().getBytes(StandardCharsets.UTF_8);
-            content = new ByteArrayInputStream(contentBytes);
-            size = contentBytes.length;
+            }
         }
-        else
+        final Template.Rendered listing = paginated ? template.render() : this.directories.render(desired, template);
+        final byte[] contentBytes = listing.getBytes();
+        // Listings are generated so they're validated by their content rather than by the directory's attributes.
+        final String entityTag = String.format("W/\"%x-%x\"", contentBytes.length, listing.getChecksum());
+        headers.put("Vary", "Accept");
+        String encoding = null;
+        if (this.config.shouldCompress("text/html", contentBytes.length))
+        {
+            headers.put("Vary", "Accept, Accept-Encoding");
+            encoding = CompressionCache.negotiate(request.getHeader("accept-encoding"));
+        }
+        putValidators(headers, desired, Validators.withEncoding(entityTag, encoding), null);
+        if (Validators.notModified(request, headers))
+        {
+            respondNotModified(headers, sink);
+            return;
+        }
+        final byte[] body = encoding != null ?
+                this.compressed.get(String.format("%s %s %s", desired, entityTag, encoding), () -> contentBytes,
+                        encoding) : contentBytes;
+        headers.put("Content-Type", "text/html");
+        if (encoding != null)
+        {
+            headers.put("Content-Encoding", encoding);
+        }
+        headers.put("Content-Length", Long.toString(body.length));
+        printHttpHeader(200, "OK", output);
+        printHeaders(headers, output);
+        if (method == SupportedHttpMethod.Get)
+        {
+            output.write(body);
+        }
+        output.flush();
+    }
+
+    private boolean shouldStream(final Path desired) {
+        final int threshold = this.config.getDirectoryStreamThreshold();
+        try
+        {
+            return threshold > 0 &&
+                    this.directories.countItems(desired, Files.getLastModifiedTime(desired)) >= threshold;
+        }
+        catch (final IOException err)
         {
-            headers.put("Content-Type", Files.probeContentType(desired));
-            final File contentFile = desired.toFile();
-            content = new FileInputStream(contentFile);
-            size = contentFile.length();
+            // An unreadable directory is listed normally, which reports the error in the page.
+            return false;
+        }
+    }
+
+    /**
+     * Stream a directory listing as the directory is read.
+     */
+    private void streamDirectory(final SupportedHttpMethod method, final Path desired,
+                                 final HttpRequest request, final ResponseSink sink) throws IOException {
+        final DirectorySupplier body = createDirectorySupplier(desired, 1, 0);
+        final Template.Rendered[] parts = createListing(desired, body).renderAround("body");
+        respondStreamed(method, desired, "text/html", body.stream(parts[0], parts[1]), Map.of(), request, sink);
+    }
+
+    /**
+     * Respond with a JSON or NDJSON directory listing.
+     */
+    private void respondListing(final SupportedHttpMethod method, final Path desired,
+                                final DirectoryListing.Format format, final Map<String, String> query,
+                                final HttpRequest request, final ResponseSink sink) throws IOException {
+        final DirectoryListing listing;
+        try
+        {
+            listing = new DirectoryListing(this.root, desired, this.showHidden, this.mimeTypes, format, query,
+                    this.config.getDirectoryPageSize());
+        }
+        catch (final IllegalArgumentException err)
+        {
+            respondBadReq(method, sink);
+            return;
+        }
+        listing.select();
+        final Map<String, String> headers = new HashMap<>();
+        if (listing.getNextCursor() != null)
+        {
+            final Map<String, String> nextQuery = new TreeMap<>(query);
+            nextQuery.put("cursor", listing.getNextCursor());
+            final StringBuilder link = new StringBuilder("<").append(requestPath(desired)).append('?');
+            for (final Map.Entry<String, String> parameter : nextQuery.entrySet())
+            {
+                link.append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                        .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8)).append('&');
+            }
+            link.setLength(link.length() - 1);
+            headers.put("Link", link.append(">; rel=\"next\"").toString());
+        }
+        respondStreamed(method, desired, listing.getContentType(), listing.generator(), headers, request, sink);
+    }
+
+    /**
+     * Respond with a generated body.
+     *
+     * The length of the body isn't known ahead of time so it is sent with the chunked transfer coding. HTTP/1.0 clients
+     * don't support that so the end of the body is marked by closing the connection instead. Streamed responses have
+     * no validators because their content isn't known until it has been sent.
+     */
+    private void respondStreamed(final SupportedHttpMethod method, final Path desired, final String contentType,
+                                 final StreamedBody.Generator body, final Map<String, String> extraHeaders,
+                                 final HttpRequest request, final ResponseSink sink) throws IOException {
+        if (!this.chunkedAllowed)
+        {
+            this.keepAlive = false;
+        }
+        final PrintStream output = sink.stream();
+        final Map<String, String> headers = prepareHeaders();
+        headers.putAll(extraHeaders);
+        headers.put("Vary", "Accept");
+        String encoding = null;
+        if (this.config.shouldCompress(contentType, Long.MAX_VALUE))
+        {
+            headers.put("Vary", "Accept, Accept-Encoding");
+            encoding = CompressionCache.negotiate(request.getHeader("accept-encoding"));
+        }
+        putCacheControl(headers, desired);
+        headers.put("Content-Type", contentType);
+        if (encoding != null)
+        {
+            headers.put("Content-Encoding", encoding);
+        }
+        if (this.chunkedAllowed)
+        {
+            headers.put("Transfer-Encoding", "chunked");
         }
-        headers.put("Content-Length", Long.toString(size));
         printHttpHeader(200, "OK", output);
         printHeaders(headers, output);
         if (method == SupportedHttpMethod.Get)
         {
-            pipeContent(content, output);
+            sink.transfer(new StreamedBody(body, encoding, this.chunkedAllowed));
+        }
+        else
+        {
+            body.close();
         }
         output.flush();
     }
 
-    private void respondInternalServerError(final SupportedHttpMethod method, final PrintStream output) throws IOException {
-        respondError(method, 500, "Internal Server Error", output);
+    private String requestPath(final Path desired) {
+        return String.format("/%s", this.root.relativize(desired));
+    }
+
+    private void putValidators(final Map<String, String> headers, final Path desired, final String entityTag,
+                               final BasicFileAttributes attributes) {
+        headers.put("ETag", entityTag);
+        if (attributes != null)
+        {
+            headers.put("Last-Modified", Validators.toHttpDate(attributes.lastModifiedTime().toMillis()));
+        }
+        putCacheControl(headers, desired);
+    }
+
+    private void putCacheControl(final Map<String, String> headers, final Path desired) {
+        final String cacheControl = this.config.getCacheControl(requestPath(desired));
+        if (cacheControl != null)
+        {
+            headers.put("Cache-Control", cacheControl);
+        }
+    }
+
+    private void respondNotModified(final Map<String, String> headers, final ResponseSink sink) {
+        final PrintStream output = sink.stream();
+        printHttpHeader(304, "Not Modified", output);
+        printHeaders(headers, output);
+        output.flush();
+    }
+
+    private static byte[] readContent(final Path file) {
+        try
+        {
+            return Files.readAllBytes(file);
+        }
+        catch (final IOException err)
+        {
+            throw new UncheckedIOException(err);
+        }
+    }
+
+    /**
+     * Send a region of a file's content. The region is sliced from the cached content when there is any. Otherwise it
+     * is transferred from the file.
+     */
+    private static void sendContent(final ResponseSink sink, final Path source, final ByteBuffer cached,
+                                    final long position, final long count) throws IOException {
+        if (cached == null)
+        {
+            sink.transfer(source, position, count);
+            return;
+        }
+        final ByteBuffer region = cached.duplicate();
+        region.limit((int) (position + count)).position((int) position);
+        sink.send(region);
+    }
+
+    /**
+     * Respond with a file.
+     *
+     * When the client accepts gzip and a sibling file with a .gz extension exists, that file is sent instead. Otherwise
+     * small meta files are compressed into the shared CompressionCache. Everything else is sent as is. Small files are
+     * sent from the shared FileCache. HEAD requests are only described as compressed when the compressed body is
+     * already cached, so that a file is never read and compressed just to measure it.
+     */
+    private void respondFile(final SupportedHttpMethod method, final Path desired,
+                             final HttpRequest request, final ResponseSink sink) throws IOException {
+        final PrintStream output = sink.stream();
+        final Map<String, String> headers = prepareHeaders();
+        final BasicFileAttributes attributes = Files.readAttributes(desired, BasicFileAttributes.class);
+        final String contentType = this.mimeTypes.getType(desired);
+        final String entityTag = Validators.toEntityTag(attributes);
+        Path source = desired;
+        BasicFileAttributes sourceAttributes = attributes;
+        String encoding = null;
+        byte[] body = null;
+        if (this.config.shouldCompress(contentType, attributes.size()))
+        {
+            headers.put("Vary", "Accept-Encoding");
+            final String acceptEncoding = request.getHeader("accept-encoding");
+            final Path precompressed = desired.resolveSibling(String.format("%s.gz", desired.getFileName()));
+            if (CompressionCache.accepts(acceptEncoding, "gzip") && Files.isRegularFile(precompressed))
+            {
+                encoding = "gzip";
+                source = precompressed;
+                sourceAttributes = Files.readAttributes(precompressed, BasicFileAttributes.class);
+            }
+            else if (desired.startsWith(this.metaDirectory) && attributes.size() <= CompressionCache.MAX_ENTRY_SIZE)
+            {
+                encoding = CompressionCache.negotiate(acceptEncoding);
+                if (encoding != null && method == SupportedHttpMethod.Head)
+                {
+                    body = this.compressed.peek(String.format("%s %s %s", desired, entityTag, encoding));
+                    encoding = body != null ? encoding : null;
+                }
+            }
+        }
+        // The validators describe the bytes that are sent, which are the .gz sibling's when it is sent instead.
+        putValidators(headers, desired, Validators.withEncoding(Validators.toEntityTag(sourceAttributes), encoding),
+                sourceAttributes);
+        if (Validators.notModified(request, headers))
+        {
+            respondNotModified(headers, sink);
+            return;
+        }
+        if (encoding != null)
+        {
+            headers.put("Content-Encoding", encoding);
+        }
+        if (encoding != null && source == desired)
+        {
+            // Ranges of a body compressed on the fly aren't supported. The whole body is always sent.
+            if (body == null)
+            {
+                body = this.compressed.get(String.format("%s %s %s", desired, entityTag, encoding),
+                        () -> readContent(desired), encoding);
+            }
+            headers.put("Content-Type", contentType);
+            headers.put("Content-Length", Long.toString(body.length));
+            printHttpHeader(200, "OK", output);
+            printHeaders(headers, output);
+            if (method == SupportedHttpMethod.Get)
+            {
+                output.write(body);
+            }
+            output.flush();
+            return;
+        }
+        final long size = sourceAttributes.size();
+        final ByteBuffer cached = method == SupportedHttpMethod.Get ? this.files.get(source, sourceAttributes) : null;
+        headers.put("Accept-Ranges", "bytes");
+        // Ranges are only defined for GET. HEAD requests get the same headers as a full GET would.
+        final List<ByteRange> ranges =
+                method == SupportedHttpMethod.Get && request.hasHeader("range") &&
+                        Validators.rangeApplies(request, headers) ? ByteRange.parse(request.getHeader("range"), size) :
+                        null;
+        if (ranges == null)
+        {
+            headers.put("Content-Type", contentType);
+            headers.put("Content-Length", Long.toString(size));
+            printHttpHeader(200, "OK", output);
+            printHeaders(headers, output);
+            if (method == SupportedHttpMethod.Get)
+            {
+                sendContent(sink, source, cached, 0, size);
+            }
+        }
+        else if (ranges.isEmpty())
+        {
+            headers.put("Content-Range", String.format("bytes */%d", size));
+            respondError(method, 416, "Range Not Satisfiable", headers, sink);
+        }
+        else if (ranges.size() == 1)
+        {
+            final ByteRange range = ranges.get(0);
+            headers.put("Content-Type", contentType);
+            headers.put("Content-Range", range.toContentRange(size));
+            headers.put("Content-Length", Long.toString(range.getLength()));
+            printHttpHeader(206, "Partial Content", output);
+            printHeaders(headers, output);
+            sendContent(sink, source, cached, range.getFirst(), range.getLength());
+        }
+        else
+        {
+            final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            final String[] partHeads = new String[ranges.size()];
+            final String end = String.format("\r\n--%s--\r\n", boundary);
+            long length = end.length();
+            for (int i = 0; i < partHeads.length; ++i)
+            {
+                final ByteRange range = ranges.get(i);
+                partHeads[i] = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n", boundary,
+                        contentType, range.toContentRange(size));
+                length += partHeads[i].length() + range.getLength();
+            }
+            headers.put("Content-Type", String.format("multipart/byteranges; boundary=%s", boundary));
+            headers.put("Content-Length", Long.toString(length));
+            printHttpHeader(206, "Partial Content", output);
+            printHeaders(headers, output);
+            for (int i = 0; i < partHeads.length; ++i)
+            {
+                output.print(partHeads[i]);
+                sendContent(sink, source, cached, ranges.get(i).getFirst(), ranges.get(i).getLength());
+            }
+            output.print(end);
+        }
+        output.flush();
+    }
+
+    private void respondInternalServerError(final SupportedHttpMethod method, final ResponseSink sink) throws IOException {
+        respondError(method, 500, "Internal Server Error", sink);
+    }
+
+    private static boolean wantsKeepAlive(final HttpRequest request) {
+        final String connection = request.hasHeader("connection") ?
+                request.getHeader("connection").toLowerCase(Locale.ROOT) : "";
+        if (request.getVersion().equals("HTTP/1.1"))
+        {
+            return !connection.contains("close");
+        }
+        return connection.contains("keep-alive");
+    }
+
+    /**
+     * Parse a query string. Names and values are percent-decoded and only the first value of each parameter is kept.
+     */
+    private static Map<String, String> parseQuery(final String query) {
+        final Map<String, String> parameters = new HashMap<>();
+        final StringTokenizer pairs = new StringTokenizer(query, "&");
+        while (pairs.hasMoreTokens())
+        {
+            final String pair = pairs.nextToken();
+            final int equals = pair.indexOf('=');
+            parameters.putIfAbsent(URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals),
+                    StandardCharsets.UTF_8), URLDecoder.decode(equals < 0 ? "" : pair.substring(equals + 1),
+                    StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * Requests with bodies aren't supported. Rather than reading and discarding the body the connection is closed after
+     * responding. The RequestParser has already refused any Content-Length that isn't a plain number.
+     */
+    private static boolean hasBody(final HttpRequest request) {
+        return request.hasHeader("transfer-encoding") ||
+                Long.parseLong(request.hasHeader("content-length") ? request.getHeader("content-length") : "0") > 0;
+    }
+
+    /**
+     * Serve a single request.
+     *
+     * This is shared by every engine. The engine is responsible for parsing the request head and for delivering
+     * everything written to the sink.
+     *
+     * @param request The parsed request. If it is malformed its error is sent and the connection should be closed.
+     * @param handled The number of requests received on this connection, including this one.
+     * @param sink The ResponseSink to write the response to.
+     * @return True if the connection should be kept open for further requests. Otherwise false.
+     * @throws IOException If the response cannot be written.
+     */
+    public boolean serve(final HttpRequest request, final int handled, final ResponseSink sink) throws IOException {
+        final long received = System.currentTimeMillis();
+        this.started = System.nanoTime();
+        this.status = 0;
+        this.contentLength = -1;
+        this.firstByte = -1;
+        try
+        {
+            if (request.getErrorStatus() != 0)
+            {
+                this.keepAlive = false;
+                respondError(request.getMethod() != null ? toMethod(request.getMethod()) : SupportedHttpMethod.Get,
+                        request.getErrorStatus(), request.getErrorMessage(), sink);
+                return false;
+            }
+            final SupportedHttpMethod method = toMethod(request.getMethod());
+            final String path = request.getPath();
+            final Path desired = root(this.root, Path.of(path));
+            this.chunkedAllowed = request.getVersion().equals("HTTP/1.1");
+            this.keepAlive = handled < this.maxKeepAliveRequests && wantsKeepAlive(request) && !hasBody(request);
+            final Map<String, String> query;
+            try
+            {
+                query = parseQuery(request.getQuery());
+            }
+            catch (final IllegalArgumentException err)
+            {
+                respondBadReq(method, sink);
+                return this.keepAlive;
+            }
+            if (path.equals(this.metricsPath))
+            {
+                respondMetrics(method, sink);
+            }
+            // The path is normalized when it is parsed. This is checked again so that no change to parsing can
+            // expose files outside of the root.
+            else if (desired.normalize().startsWith(this.root.normalize()) && Files.exists(desired))
+            {
+                respondOK(method, desired, query, request, sink);
+            }
+            else
+            {
+                respondNotFound(method, sink);
+            }
+        }
+        catch (final ClosedChannelException err)
+        {
+            // The Watchdog closed the connection while the response was being sent. Nothing more can be sent.
+            this.keepAlive = false;
+        }
+        catch (final Exception err)
+        {
+            this.keepAlive = false;
+            respondInternalServerError(SupportedHttpMethod.Get, sink);
+            err.printStackTrace();
+        }
+        finally
+        {
+            sink.whenSent(completion(received, request));
+        }
+        return this.keepAlive;
+    }
+
+    /**
+     * Create the callback that records a request once its response has been sent.
+     *
+     * The values of the response are captured immediately because the handler may move on to the next request before
+     * the callback runs. Only raw values are passed to the access log. Formatting and any host name lookup happen on the
+     * log thread.
+     */
+    private Runnable completion(final long received, final HttpRequest request) {
+        final String method = request.getMethod();
+        final long started = this.started;
+        final int status = this.status;
+        final long bytes = "HEAD".equalsIgnoreCase(method) ? 0 : this.contentLength;
+        final long firstByte = this.firstByte;
+        return () -> {
+            final long total = System.nanoTime() - started;
+            this.metrics.recordRequest(method, status, bytes, firstByte, total);
+            if (this.accessLog != null)
+            {
+                this.accessLog.log(this.client.getInetAddress(), received, request.getRequestLine(), status, bytes,
+                        request.getHeader("referer"), request.getHeader("user-agent"), total);
+            }
+        };
     }
 
     /**
      * Handles incoming HTTP GET or HEAD requests and responds accordingly.
+     *
+     * A connection is closed once it has been idle for keep-alive-timeout milliseconds. A request head that has started
+     * must be finished within header-timeout milliseconds or it is answered with 408 Request Timeout. While responses
+     * are sent the connection is watched by the Watchdog. File content is sent no faster than the Bandwidth allows.
      */
     @Override
     public void run() {
-        try
+        this.metrics.connectionOpened();
+        final Watchdog.Transfer transfer = new Watchdog.Transfer(this.config);
+        final Bandwidth.Limit limit = this.bandwidth.open(this.client.getInetAddress());
+        try (this.client)
         {
-            final DataInputStream input = new DataInputStream(this.client.getInputStream());
-            final PrintStream output = new PrintStream(this.client.getOutputStream());
-            try
+            final InputStream input = this.client.getInputStream();
+            final ResponseSink sink = new SocketSink(transfer, limit);
+            final RequestParser parser = new RequestParser(MAX_REQUEST_SIZE);
+            final ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+            buffer.flip();
+            int handled = 0;
+            long headStarted = 0;
+            boolean open = true;
+            while (open)
             {
-                final byte[] requestBuffer = new byte[MAX_REQUEST_SIZE];
-                if (input.read(requestBuffer) < 1)
+                final HttpRequest request = parser.parse(buffer);
+                if (request != null)
                 {
-                    respondBadReq(SupportedHttpMethod.Get, output);
+                    headStarted = 0;
+                    open = serve(request, ++handled, sink, transfer);
+                    continue;
                 }
-                final String[] request = (new String(requestBuffer, StandardCharsets.UTF_8)).split("\r\n");
-                final StringTokenizer tokens = new StringTokenizer(request[0]);
-                final SupportedHttpMethod method = toMethod(tokens.nextToken());
-                final Path desired = root(this.root, Path.of(tokens.nextToken()));
-                System.out.printf("%s:%s REQ -> %s %s ", this.client.getInetAddress().getCanonicalHostName(),
-                        this.client.getPort(), method, desired);
-                if (Files.exists(desired))
+                if (headStarted == 0 && parser.isPartial())
                 {
-                    respondOK(method, desired, output);
+                    headStarted = System.currentTimeMillis();
                 }
-                else
+                // The parser consumes everything up to the end of a head so the buffer is always empty here.
+                final int read;
+                try
                 {
-                    respondNotFound(method, output);
+                    this.client.setSoTimeout(headStarted == 0 ? this.keepAliveTimeout :
+                            (int) Math.max(1, headStarted + this.headerTimeout - System.currentTimeMillis()));
+                    read = input.read(buffer.array(), 0, buffer.capacity());
                 }
+                catch (final SocketTimeoutException err)
+                {
+                    if (headStarted == 0)
+                    {
+                        this.metrics.connectionTimedOut(Metrics.Timeout.Idle);
+                    }
+                    else
+                    {
+                        this.metrics.connectionTimedOut(Metrics.Timeout.Header);
+                        serve(parser.timeout(), ++handled, sink, transfer);
+                    }
+                    break;
+                }
+                if (read < 0)
+                {
+                    break;
+                }
+                buffer.position(0);
+                buffer.limit(read);
             }
-            catch (final Exception err)
+        }
+        catch (final IOException err)
+        {
+            // A connection closed by the Watchdog fails in whatever write it was blocked on.
+            if (!transfer.isExpired())
             {
-                respondInternalServerError(SupportedHttpMethod.Get, output);
+                System.err.printf("I/O Error%n");
                 err.printStackTrace();
             }
         }
-        catch (final IOException err)
+        finally
         {
-            System.err.printf("I/O Error%n");
-            err.printStackTrace();
+            limit.close();
+            this.metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Serve a request while the Watchdog watches the response being sent.
+     */
+    private boolean serve(final HttpRequest request, final int handled, final ResponseSink sink,
+                          final Watchdog.Transfer transfer) throws IOException {
+        if (this.watchdog == null)
+        {
+            return serve(request, handled, sink);
+        }
+        transfer.begin(System.currentTimeMillis());
+        this.watchdog.watch(transfer, this.connection);
+        try
+        {
+            return serve(request, handled, sink);
+        }
+        finally
+        {
+            this.watchdog.unwatch(transfer);
+            transfer.end();
+        }
+    }
+
+    /**
+     * A channel over the output stream of a Socket that can't be written to through a channel, such as an SSLSocket.
+     *
+     * Content is written in large pieces so that each write fills whole TLS records. A general purpose channel adapter,
+     * and FileChannel.transferTo to one, would cut it into 8KiB writes and so into half size records.
+     */
+    private static final class StreamChannel implements WritableByteChannel {
+        private final OutputStream output;
+        private final byte[] buffer;
+
+        private StreamChannel(final OutputStream output) {
+            this.output = output;
+            this.buffer = new byte[Tls.WRITE_SIZE];
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            final int length = Math.min(source.remaining(), this.buffer.length);
+            if (source.hasArray())
+            {
+                this.output.write(source.array(), source.arrayOffset() + source.position(), length);
+                source.position(source.position() + length);
+            }
+            else
+            {
+                source.get(this.buffer, 0, length);
+                this.output.write(this.buffer, 0, length);
+            }
+            return length;
+        }
+
+        /**
+         * Send part of a file with a single write.
+         *
+         * @return The number of bytes sent. 0 if the file ends before position.
+         */
+        private long transferFrom(final FileChannel content, final long position, final long count)
+                throws IOException {
+            final ByteBuffer piece = ByteBuffer.wrap(this.buffer, 0, (int) Math.min(count, this.buffer.length));
+            while (piece.hasRemaining())
+            {
+                if (content.read(piece, position + piece.position()) < 0)
+                {
+                    break;
+                }
+            }
+            this.output.write(this.buffer, 0, piece.position());
+            return piece.position();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // The Socket is closed by its owner.
+        }
+    }
+
+    /**
+     * A ResponseSink that writes directly to the client Socket.
+     */
+    private final class SocketSink implements ResponseSink {
+        private final Watchdog.Transfer transfer;
+        private final Bandwidth.Limit limit;
+        private final PrintStream output;
+        private final WritableByteChannel target;
+
+        private SocketSink(final Watchdog.Transfer transfer, final Bandwidth.Limit limit) throws IOException {
+            this.transfer = transfer;
+            this.limit = limit;
+            // An SSLSocket reports the channel of the Socket it is layered over, which must never be written to
+            // directly. Its generated content is buffered up to a whole record.
+            final boolean direct = client.getChannel() != null && !(client instanceof SSLSocket);
+            this.target = direct ? client.getChannel() : new StreamChannel(client.getOutputStream());
+            this.output = new PrintStream(new BufferedOutputStream(new FilterOutputStream(client.getOutputStream()) {
+                @Override
+                public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+                    this.out.write(buffer, offset, length);
+                    sent(length);
+                }
+            }, direct ? MAX_REQUEST_SIZE : Tls.MAX_RECORD_SIZE));
+        }
+
+        private void sent(final long bytes) {
+            this.transfer.add(bytes);
+            this.limit.charge(bytes);
+        }
+
+        /**
+         * Wait for bandwidth. The wait is a managed block so that a work-stealing pool can run other connections on a
+         * spare thread in the meantime.
+         */
+        private void pause(final long nanos) throws IOException {
+            final long until = System.nanoTime() + nanos;
+            try
+            {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() {
+                        LockSupport.parkNanos(until - System.nanoTime());
+                        return isReleasable();
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return System.nanoTime() - until >= 0;
+                    }
+                });
+            }
+            catch (final InterruptedException err)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+
+        @Override
+        public PrintStream stream() {
+            return this.output;
+        }
+
+        /**
+         * Send a region of a file directly to the client.
+         *
+         * Any buffered output is flushed first. When the client Socket can be written through its channel the file is
+         * transferred with FileChannel.transferTo so that the kernel can move the data without copying it through user
+         * space. Otherwise it is read and written in pieces of whole TLS records. The file is sent a quantum at a time,
+         * waiting whenever the Bandwidth has none to spare.
+         */
+        @Override
+        public void transfer(final Path file, final long position, final long count) throws IOException {
+            this.output.flush();
+            final WritableByteChannel target = this.target;
+            final Bandwidth.Bucket path = bandwidth.getPathBucket(file);
+            try (final FileChannel content = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                long sent = 0;
+                while (sent < count)
+                {
+                    final long allowed = this.limit.allow(path, count - sent);
+                    if (allowed == 0)
+                    {
+                        pause(this.limit.delay(path));
+                        // Waiting for bandwidth isn't the client's doing so the Watchdog starts a new window.
+                        if (this.transfer.isSending())
+                        {
+                            this.transfer.begin(System.currentTimeMillis());
+                        }
+                        continue;
+                    }
+                    final long transferred = target instanceof StreamChannel ?
+                            ((StreamChannel) target).transferFrom(content, position + sent, allowed) :
+                            content.transferTo(position + sent, allowed, target);
+                    // The file was truncated while we were sending it. There's nothing left to send.
+                    if (transferred < 1)
+                    {
+                        break;
+                    }
+                    sent += transferred;
+                    this.transfer.add(transferred);
+                    this.limit.charge(path, transferred);
+                }
+            }
+        }
+
+        @Override
+        public void send(final ByteBuffer content) throws IOException {
+            this.output.flush();
+            final WritableByteChannel target = this.target;
+            while (content.hasRemaining())
+            {
+                sent(target.write(content));
+            }
+        }
+
+        /**
+         * Send a channel to the client. This blocks while the client is slower than the channel.
+         */
+        @Override
+        public void transfer(final ReadableByteChannel source) throws IOException {
+            this.output.flush();
+            final WritableByteChannel target = this.target;
+            try (source)
+            {
+                final ByteBuffer buffer = ByteBuffer.allocate(StreamedBody.CHUNK_SIZE);
+                while (source.read(buffer) >= 0)
+                {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                    {
+                        sent(target.write(buffer));
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+
+        @Override
+        public void whenSent(final Runnable callback) {
+            this.output.flush();
+            callback.run();
         }
     }
 }
@@ -0,0 +1,327 @@
+package fileserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An incremental parser for HTTP request heads.
+ *
+ * Bytes are fed to the parser as they arrive in any number of pieces. Each line is parsed as soon as its line feed is
+ * received, so a head is never scanned twice, and the parser stops consuming input at the end of the head so that
+ * pipelined requests are left for the next call. The head is copied into a buffer owned by the parser and reused for
+ * every request on a connection. Only the Strings of the finished request are allocated.
+ *
+ * Parsing is strict where leniency could let a request be read differently by the server and anything in front of it.
+ * Header names must be tokens with no whitespace before the colon, obsolete line folding is refused, and control
+ * characters aren't allowed in values. Content-Length must be a single decimal number. Bare line feeds are accepted as
+ * line endings and empty lines before a request are ignored.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public final class RequestParser {
+    /**
+     * The maximum number of headers accepted in a single request.
+     */
+    public static final int MAX_HEADERS = 100;
+
+    private static final String[] NO_HEADERS = new String[0];
+
+    private final byte[] head;
+    private final String[] headers;
+    private final int[] bounds;
+    private int length;
+    private int lineStart;
+    private int headerCount;
+    private String requestLine;
+    private String method;
+    private String target;
+    private String path;
+    private String query;
+    private String version;
+
+    /**
+     * Constructs a new RequestParser.
+     *
+     * @param maxHeadSize The maximum size, in bytes, of a request head not counting line endings.
+     */
+    public RequestParser(final int maxHeadSize) {
+        this.head = new byte[maxHeadSize];
+        this.headers = new String[MAX_HEADERS * 2];
+        this.bounds = new int[6];
+        reset();
+    }
+
+    private static boolean isTokenChar(final byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+                (b > 0x20 && b < 0x7f && "!#$%&'*+-.^_`|~".indexOf(b) >= 0);
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private void reset() {
+        Arrays.fill(this.headers, 0, this.headerCount * 2, null);
+        this.length = 0;
+        this.lineStart = 0;
+        this.headerCount = 0;
+        this.requestLine = null;
+        this.method = null;
+        this.target = null;
+        this.path = null;
+        this.query = "";
+        this.version = null;
+    }
+
+    /**
+     * @return True if part of a request has been received but its head isn't complete yet. Otherwise false.
+     */
+    public boolean isPartial() {
+        return this.length > 0;
+    }
+
+    /**
+     * Parse as much of a request head as is available.
+     *
+     * @param input The received bytes between the buffer's position and limit. The position is advanced past every byte
+     *              that was consumed. Nothing after the end of a head is consumed.
+     * @return The request once its head is complete or as soon as it is known to be malformed. null if more input is
+     *         needed. After a malformed request the connection should be closed because the rest of its input can't be
+     *         framed reliably.
+     */
+    public HttpRequest parse(final ByteBuffer input) {
+        while (input.hasRemaining())
+        {
+            final byte b = input.get();
+            if (b == '\n')
+            {
+                final int end = this.length > this.lineStart && this.head[this.length - 1] == '\r' ? this.length - 1 :
+                        this.length;
+                final HttpRequest request = parseLine(this.lineStart, end);
+                this.lineStart = this.length;
+                if (request != null)
+                {
+                    reset();
+                    return request;
+                }
+                continue;
+            }
+            if (this.length == 0 && b == '\r')
+            {
+                continue;
+            }
+            if (this.length == this.head.length)
+            {
+                return this.requestLine == null ? fail(414, "URI Too Long") :
+                        fail(431, "Request Header Fields Too Large");
+            }
+            this.head[this.length++] = b;
+        }
+        return null;
+    }
+
+    /**
+     * Give up on a request whose head is taking too long to arrive.
+     *
+     * @return A request that is answered with 408 Request Timeout. It holds whatever part of the head was parsed.
+     */
+    public HttpRequest timeout() {
+        return fail(408, "Request Timeout");
+    }
+
+    private HttpRequest fail(final int status, final String message) {
+        final HttpRequest request = new HttpRequest(this.requestLine, this.method, this.target, this.path, this.query,
+                this.version, Arrays.copyOf(this.headers, this.headerCount * 2), status, message);
+        reset();
+        return request;
+    }
+
+    /**
+     * Parse a complete line of the head without its line ending.
+     *
+     * @return The request if the line ends the head or the head is malformed. Otherwise null.
+     */
+    private HttpRequest parseLine(final int start, final int end) {
+        if (this.requestLine == null)
+        {
+            // An empty line before the request line is ignored.
+            if (start == end)
+            {
+                this.length = 0;
+                return null;
+            }
+            return parseRequestLine(start, end);
+        }
+        if (start == end)
+        {
+            return new HttpRequest(this.requestLine, this.method, this.target, this.path, this.query, this.version,
+                    this.headerCount > 0 ? Arrays.copyOf(this.headers, this.headerCount * 2) : NO_HEADERS, 0, null);
+        }
+        return parseHeader(start, end);
+    }
+
+    private HttpRequest parseRequestLine(final int start, final int end) {
+        this.requestLine = new String(this.head, start, end - start, StandardCharsets.ISO_8859_1);
+        final int[] bounds = this.bounds;
+        int tokens = 0;
+        int i = start;
+        while (i < end)
+        {
+            while (i < end && isWhitespace(this.head[i]))
+            {
+                ++i;
+            }
+            if (i == end)
+            {
+                break;
+            }
+            if (tokens == 3)
+            {
+                return fail(400, "Bad Request");
+            }
+            bounds[tokens * 2] = i;
+            while (i < end && !isWhitespace(this.head[i]))
+            {
+                ++i;
+            }
+            bounds[tokens * 2 + 1] = i;
+            ++tokens;
+        }
+        if (tokens != 3)
+        {
+            return fail(400, "Bad Request");
+        }
+        for (int j = bounds[0]; j < bounds[1]; ++j)
+        {
+            if (!isTokenChar(this.head[j]))
+            {
+                return fail(400, "Bad Request");
+            }
+        }
+        for (int j = bounds[2]; j < bounds[3]; ++j)
+        {
+            if (this.head[j] <= 0x20 || this.head[j] >= 0x7f)
+            {
+                return fail(400, "Bad Request");
+            }
+        }
+        this.method = new String(this.head, bounds[0], bounds[1] - bounds[0], StandardCharsets.ISO_8859_1);
+        this.target = new String(this.head, bounds[2], bounds[3] - bounds[2], StandardCharsets.ISO_8859_1);
+        this.version = new String(this.head, bounds[4], bounds[5] - bounds[4], StandardCharsets.ISO_8859_1);
+        if (this.version.length() != 8 || !this.version.startsWith("HTTP/") || this.version.charAt(6) != '.' ||
+                !Character.isDigit(this.version.charAt(5)) || !Character.isDigit(this.version.charAt(7)))
+        {
+            return fail(400, "Bad Request");
+        }
+        if (this.version.charAt(5) != '1')
+        {
+            return fail(505, "HTTP Version Not Supported");
+        }
+        String raw = this.target;
+        // Targets in absolute form are accepted but only their path is used.
+        final int scheme = raw.indexOf("://");
+        if (scheme > 0 && raw.charAt(0) != '/')
+        {
+            final int slash = raw.indexOf('/', scheme + 3);
+            raw = slash < 0 ? "/" : raw.substring(slash);
+        }
+        final int question = raw.indexOf('?');
+        if (question >= 0)
+        {
+            this.query = raw.substring(question + 1);
+            raw = raw.substring(0, question);
+        }
+        this.path = HttpRequest.decodePath(raw);
+        if (this.path == null)
+        {
+            return fail(400, "Bad Request");
+        }
+        return null;
+    }
+
+    private HttpRequest parseHeader(final int start, final int end) {
+        // Obsolete line folding is refused rather than joined with the previous header.
+        if (isWhitespace(this.head[start]))
+        {
+            return fail(400, "Bad Request");
+        }
+        int colon = start;
+        while (colon < end && this.head[colon] != ':')
+        {
+            if (!isTokenChar(this.head[colon]))
+            {
+                return fail(400, "Bad Request");
+            }
+            // Names are lower cased in place so that no intermediate String is needed.
+            if (this.head[colon] >= 'A' && this.head[colon] <= 'Z')
+            {
+                this.head[colon] += 'a' - 'A';
+            }
+            ++colon;
+        }
+        if (colon == start || colon == end)
+        {
+            return fail(400, "Bad Request");
+        }
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhitespace(this.head[valueStart]))
+        {
+            ++valueStart;
+        }
+        while (valueEnd > valueStart && isWhitespace(this.head[valueEnd - 1]))
+        {
+            --valueEnd;
+        }
+        for (int i = valueStart; i < valueEnd; ++i)
+        {
+            if ((this.head[i] >= 0 && this.head[i] < 0x20 && this.head[i] != '\t') || this.head[i] == 0x7f)
+            {
+                return fail(400, "Bad Request");
+            }
+        }
+        if (this.headerCount == MAX_HEADERS)
+        {
+            return fail(431, "Request Header Fields Too Large");
+        }
+        final String name = new String(this.head, start, colon - start, StandardCharsets.ISO_8859_1);
+        final String value = new String(this.head, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        if (name.equals("content-length") && !isContentLength(value))
+        {
+            return fail(400, "Bad Request");
+        }
+        this.headers[this.headerCount * 2] = name;
+        this.headers[this.headerCount * 2 + 1] = value;
+        ++this.headerCount;
+        return null;
+    }
+
+    /**
+     * A Content-Length frames everything after the head so it must be a plain decimal number and every copy of it must
+     * agree. Lists and signs are refused rather than interpreted.
+     */
+    private boolean isContentLength(final String value) {
+        // Longer values could overflow a long.
+        if (value.isEmpty() || value.length() > 18)
+        {
+            return false;
+        }
+        for (int i = 0; i < value.length(); ++i)
+        {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9')
+            {
+                return false;
+            }
+        }
+        for (int i = 0; i < this.headerCount; ++i)
+        {
+            if (this.headers[i * 2].equals("content-length") && !this.headers[i * 2 + 1].equals(value))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
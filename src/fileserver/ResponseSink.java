@@ -0,0 +1,63 @@
+package fileserver;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A destination for HTTP responses.
+ *
+ * Response heads and generated content are printed to the sink's stream. File content is handed to the sink as a region
+ * so that each engine can send it in the cheapest way available to it. Content that is generated as it is sent is handed
+ * to the sink as a channel.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public interface ResponseSink {
+    /**
+     * @return The stream that response heads and generated content are printed to.
+     */
+    PrintStream stream();
+
+    /**
+     * Send a region of a file after everything already printed to the stream.
+     *
+     * @param file The Path of the file to send.
+     * @param position The offset of the first byte to send.
+     * @param count The number of bytes to send.
+     * @throws IOException If the file cannot be read or the client cannot be written to.
+     */
+    void transfer(Path file, long position, long count) throws IOException;
+
+    /**
+     * Send the remaining content of a buffer after everything already printed to the stream.
+     *
+     * The buffer may be shared between connections. Its content must not be modified and it must not be used by the
+     * caller after it has been handed to the sink.
+     *
+     * @param content The buffer to send.
+     * @throws IOException If the client cannot be written to.
+     */
+    void send(ByteBuffer content) throws IOException;
+
+    /**
+     * Send everything that can be read from a channel after everything already printed to the stream.
+     *
+     * The channel is read only as fast as the client receives its content and it is closed once it is exhausted or the
+     * connection fails.
+     *
+     * @param source The channel to send.
+     * @throws IOException If the channel cannot be read or the client cannot be written to.
+     */
+    void transfer(ReadableByteChannel source) throws IOException;
+
+    /**
+     * Run a callback once everything already handed to the sink has been sent, or once sending it has failed.
+     *
+     * @param callback The callback to run. This must not block.
+     */
+    void whenSent(Runnable callback);
+}
@@ -1,12 +1,24 @@
 package fileserver;
 
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * An executable class for the Server.
@@ -16,13 +28,158 @@ import java.util.concurrent.Executors;
  */
 public class Server {
     private static final ConcurrentHashMap<Integer, Template> errors = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<Path, Template> directories = new ConcurrentHashMap<>();
-    private static final ExecutorService threadpool = Executors.newWorkStealingPool();
 
     private static void printUsage() {
         System.out.printf("Usage: Server [CONFIG_PATH]%n");
     }
 
+    /**
+     * Create the executor that the Blocking Engine runs RequestHandlers on and that the Nio Engine serves requests on.
+     *
+     * Virtual threads are looked up reflectively so that the server still builds and runs on runtimes without them.
+     *
+     * @throws ReflectiveOperationException If the runtime doesn't have virtual threads.
+     * @throws UnsupportedOperationException If the runtime has virtual threads only as a preview feature that isn't
+     *                                       enabled.
+     */
+    private static ExecutorService createExecutor(final Configuration config) throws ReflectiveOperationException {
+        switch (config.getExecutor())
+        {
+        case Fixed:
+            return Executors.newFixedThreadPool(config.getExecutorThreads());
+        case Virtual:
+            try
+            {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (final InvocationTargetException err)
+            {
+                // Runtimes that preview virtual threads refuse to create them unless previews are enabled.
+                if (err.getCause() instanceof UnsupportedOperationException)
+                {
+                    throw (UnsupportedOperationException) err.getCause();
+                }
+                throw err;
+            }
+        default:
+            return Executors.newWorkStealingPool();
+        }
+    }
+
+    /**
+     * Find the number of tasks waiting for a thread in an executor.
+     *
+     * @return A supplier of the queue depth or null if the executor doesn't queue tasks.
+     */
+    private static LongSupplier queueDepth(final ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            return () -> ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        if (executor instanceof ForkJoinPool)
+        {
+            return ((ForkJoinPool) executor)::getQueuedSubmissionCount;
+        }
+        return null;
+    }
+
+    /**
+     * Create the configured engine.
+     *
+     * @param threadpool The executor that RequestHandlers run on.
+     * @param watchdog The Watchdog of the Blocking Engine. This may be null if the Nio Engine is configured.
+     * @return A consumer that serves each admitted connection with the engine.
+     */
+    private static Consumer<SocketChannel> createEngine(final Configuration config, final DirectoryCache directories,
+                                                        final CompressionCache compressed, final FileCache files,
+                                                        final MimeTypes mimeTypes, final AccessLog accessLog,
+                                                        final Metrics metrics, final Admission admission,
+                                                        final Bandwidth bandwidth, final ExecutorService threadpool,
+                                                        final Watchdog watchdog) throws IOException {
+        if (config.getEngine() == Configuration.Engine.Nio)
+        {
+            final NioEngine nio = new NioEngine(errors, directories, compressed, files, mimeTypes, accessLog, metrics,
+                    admission, bandwidth, config, threadpool);
+            nio.start();
+            return nio::serve;
+        }
+        return (client) -> {
+            final RequestHandler handler = new RequestHandler(errors, directories, compressed, files, mimeTypes,
+                    accessLog, metrics, watchdog, bandwidth, config, client.socket());
+            threadpool.submit(() -> {
+                try
+                {
+                    handler.run();
+                }
+                finally
+                {
+                    admission.release();
+                }
+            });
+        };
+    }
+
+    /**
+     * Create the engine of the HTTPS listeners.
+     *
+     * HTTPS connections are always served by RequestHandlers on the executor of the Blocking Engine. The handshake is
+     * finished on the executor too so that a slow client never holds up an Acceptor.
+     *
+     * @return A consumer that serves each admitted HTTPS connection.
+     */
+    private static Consumer<SocketChannel> createSecureEngine(final Configuration config,
+                                                              final DirectoryCache directories,
+                                                              final CompressionCache compressed, final FileCache files,
+                                                              final MimeTypes mimeTypes, final AccessLog accessLog,
+                                                              final Metrics metrics, final Admission admission,
+                                                              final Bandwidth bandwidth,
+                                                              final ExecutorService threadpool,
+                                                              final Watchdog watchdog, final Tls tls) {
+        return (client) -> threadpool.submit(() -> {
+            try (client)
+            {
+                final SSLSocket secure = tls.open(client.socket());
+                if (tls.handshake(secure))
+                {
+                    new RequestHandler(errors, directories, compressed, files, mimeTypes, accessLog, metrics, watchdog,
+                            bandwidth, config, secure, client).run();
+                }
+            }
+            catch (final IOException err)
+            {
+                // The client went away before its handshake started.
+            }
+            finally
+            {
+                admission.release();
+            }
+        });
+    }
+
+    /**
+     * Start an Acceptor thread for every listening socket.
+     *
+     * @param acceptors The list that the started threads are added to.
+     */
+    private static void startAcceptors(final List<ServerSocketChannel> servers, final Admission admission,
+                                       final Consumer<SocketChannel> engine, final Configuration config,
+                                       final boolean secure, final List<Thread> acceptors) {
+        final Set<ServerSocketChannel> announced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final ServerSocketChannel server : servers)
+        {
+            if (announced.add(server))
+            {
+                System.out.printf("Server connected on %s:%s%s%n",
+                        server.socket().getInetAddress().getCanonicalHostName(), server.socket().getLocalPort(),
+                        secure ? " (HTTPS)" : "");
+            }
+            final Thread acceptor = new Thread(new Acceptor(server, admission, engine, config, secure),
+                    String.format("acceptor-%d", acceptors.size()));
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+    }
+
     public static void main(String[] args) {
         Configuration config = new Configuration();
         try
@@ -40,23 +197,102 @@ public class Server {
             System.exit(1);
         }
         System.out.printf("Server config:%n%s%n", config);
+        final DirectoryCache directories = new DirectoryCache(config);
+        final CompressionCache compressed = new CompressionCache(config.getCompressionCacheSize());
+        final FileCache files = new FileCache(config);
+        final MimeTypes mimeTypes = new MimeTypes(config);
+        AccessLog accessLog = null;
+        try
+        {
+            if (config.shouldLogAccess())
+            {
+                accessLog = new AccessLog(config);
+                // Requests that are still waiting to be logged are written before the server exits.
+                Runtime.getRuntime().addShutdownHook(new Thread(accessLog::close));
+            }
+        }
+        catch (final IOException err)
+        {
+            System.err.printf("Failed to open access log \"%s\"%n", config.getAccessLogFile());
+            err.printStackTrace();
+            System.exit(1);
+        }
+        final Metrics metrics = new Metrics(directories, compressed, files, accessLog);
+        final Admission admission = new Admission(config, metrics);
+        final Bandwidth bandwidth = new Bandwidth(config);
+        metrics.setBandwidth(bandwidth);
 
-
-        try (ServerSocket server = new ServerSocket(config.getPort()))
+        // Sockets accepted from a channel have a channel of their own. RequestHandler uses it to send files without
+        // copying them through user space.
+        final boolean https = !config.getTlsListenAddresses().isEmpty();
+        final List<ServerSocketChannel> servers;
+        final List<ServerSocketChannel> secureServers;
+        final Consumer<SocketChannel> engine;
+        Consumer<SocketChannel> secureEngine = null;
+        try
         {
-            System.out.printf("Server connected on %s:%s%n", server.getInetAddress().getCanonicalHostName(),
-                    server.getLocalPort());
-            while (true)
+            // The Tls is set up first since it changes settings that the runtime reads when TLS is first used.
+            final Tls tls = https ? new Tls(config) : null;
+            servers = Acceptor.bind(config);
+            secureServers = Acceptor.bind(config, config.getTlsListenAddresses());
+            if (config.getMetricsPort() > 0)
+            {
+                metrics.listen(config.getMetricsPort());
+            }
+            final ExecutorService threadpool = createExecutor(config);
+            metrics.setQueueDepth(queueDepth(threadpool));
+            Watchdog watchdog = null;
+            if (config.getEngine() == Configuration.Engine.Blocking || https)
+            {
+                watchdog = new Watchdog(metrics);
+            }
+            engine = createEngine(config, directories, compressed, files, mimeTypes, accessLog, metrics, admission,
+                    bandwidth, threadpool, watchdog);
+            if (https)
             {
-                final Socket client = server.accept();
-                threadpool.submit(new RequestHandler(errors, directories, config, client));
+                metrics.setTls(tls);
+                secureEngine = createSecureEngine(config, directories, compressed, files, mimeTypes, accessLog, metrics,
+                        admission, bandwidth, threadpool, watchdog, tls);
             }
         }
+        catch (final ReflectiveOperationException | UnsupportedOperationException err)
+        {
+            System.err.printf("The %s executor is not supported by this runtime%n", config.getExecutor());
+            if (err instanceof UnsupportedOperationException)
+            {
+                System.err.printf("%s%n", err.getMessage());
+            }
+            System.exit(1);
+            return;
+        }
+        catch (final GeneralSecurityException | IllegalArgumentException err)
+        {
+            System.err.printf("Failed to set up TLS%n");
+            err.printStackTrace();
+            System.exit(1);
+            return;
+        }
         catch (final IOException err)
         {
             System.err.printf("Error starting server%n");
             err.printStackTrace();
             System.exit(1);
+            return;
+        }
+        final List<Thread> acceptors = new ArrayList<>();
+        startAcceptors(servers, admission, engine, config, false, acceptors);
+        startAcceptors(secureServers, admission, secureEngine, config, true, acceptors);
+        for (final Thread acceptor : acceptors)
+        {
+            try
+            {
+                acceptor.join();
+            }
+            catch (final InterruptedException err)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 }
@@ -0,0 +1,156 @@
+package fileserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body that is generated a piece at a time as it is read.
+ *
+ * The body is pulled through an optional content coding and an optional chunked transfer coding. Only the output of a
+ * single piece is ever buffered, so the memory used doesn't depend on the size of the body. Each engine reads the body
+ * like any other channel as fast as the client receives it.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class StreamedBody implements ReadableByteChannel {
+    /**
+     * A source of body content.
+     */
+    public interface Generator extends Closeable {
+        /**
+         * Write the next piece of the body.
+         *
+         * @param output The stream to write the piece to.
+         * @return True if there is more to write. False if the body is complete.
+         * @throws IOException If the content cannot be generated.
+         */
+        boolean write(OutputStream output) throws IOException;
+    }
+
+    /**
+     * The size, in bytes, of the chunks sent by a chunked body.
+     */
+    public static final int CHUNK_SIZE = 8192; // 8KiB
+
+    private final Generator generator;
+    private final PendingStream pending;
+    private final OutputStream encoder;
+    private int position;
+    private boolean finished;
+    private boolean open;
+
+    /**
+     * Constructs a new StreamedBody.
+     *
+     * @param generator The Generator of the body's content. This is closed when the body is closed.
+     * @param coding Either gzip, deflate, or null to send the content as is.
+     * @param chunked Whether or not to apply the chunked transfer coding.
+     * @throws IOException If the content coding cannot be started.
+     */
+    public StreamedBody(final Generator generator, final String coding, final boolean chunked) throws IOException {
+        this.generator = generator;
+        this.pending = new PendingStream();
+        OutputStream encoder = new BufferedOutputStream(chunked ? new ChunkedOutputStream(this.pending) : this.pending,
+                CHUNK_SIZE);
+        if ("gzip".equals(coding))
+        {
+            encoder = new GZIPOutputStream(encoder, CHUNK_SIZE);
+        }
+        else if ("deflate".equals(coding))
+        {
+            encoder = new DeflaterOutputStream(encoder);
+        }
+        this.encoder = encoder;
+        this.position = 0;
+        this.finished = false;
+        this.open = true;
+    }
+
+    @Override
+    public int read(final ByteBuffer target) throws IOException {
+        while (this.position >= this.pending.size())
+        {
+            if (this.finished)
+            {
+                return -1;
+            }
+            this.pending.reset();
+            this.position = 0;
+            if (!this.generator.write(this.encoder))
+            {
+                // Closing the encoder flushes the content coding's trailer and the last chunk.
+                this.encoder.close();
+                this.finished = true;
+            }
+        }
+        final int length = Math.min(target.remaining(), this.pending.size() - this.position);
+        target.put(this.pending.buffer(), this.position, length);
+        this.position += length;
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.open = false;
+        this.generator.close();
+    }
+
+    /**
+     * The buffer that encoded output collects in until it is read.
+     */
+    private static final class PendingStream extends ByteArrayOutputStream {
+        private byte[] buffer() {
+            return this.buf;
+        }
+    }
+
+    /**
+     * A stream that applies the chunked transfer coding. Every write is sent as one chunk.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        private ChunkedOutputStream(final OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len < 1)
+            {
+                return;
+            }
+            this.out.write(String.format("%x\r\n", len).getBytes(StandardCharsets.US_ASCII));
+            this.out.write(b, off, len);
+            this.out.write('\r');
+            this.out.write('\n');
+        }
+
+        /**
+         * Send the last chunk. The underlying stream is not closed.
+         */
+        @Override
+        public void close() throws IOException {
+            this.out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            this.out.flush();
+        }
+    }
+}
@@ -1,18 +1,32 @@
 package fileserver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * A class representing templated Strings.
  *
- * This is used for templating HTML output.
+ * This is used for templating HTML output. Template text is compiled once into a list of literal and variable segments.
+ * Literals are kept as UTF-8 bytes so processing only has to encode variable values. Processed output is cached as
+ * UTF-8 bytes as well.
+ *
+ * Templates are safe to share between threads. Only one thread processes a Template at a time. While it does, other
+ * threads are given the previously processed output if there is any, or wait for the result if there isn't.
  *
  * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
  * @since April 16, 2021
@@ -29,21 +43,143 @@ public class Template {
      */
     public static final Pattern TEMPLATE_PATTERN = Pattern.compile("%([^%]+)%");
 
+    private static final ConcurrentHashMap<Path, Source> sources = new ConcurrentHashMap<>();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * A compiled piece of a template. Each Segment is either literal text or a variable reference.
+     */
+    private static final class Segment {
+        private final byte[] literal;
+        private final String variable;
+
+        private Segment(final byte[] literal, final String variable) {
+            this.literal = literal;
+            this.variable = variable;
+        }
+    }
+
+    /**
+     * The compiled form of a template file and the modification time it was compiled at.
+     */
+    private static final class Source {
+        private final Segment[] segments;
+        private final FileTime modified;
+
+        private Source(final Segment[] segments, final FileTime modified) {
+            this.segments = segments;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Processed output and the time it was produced. This is immutable so that it can be safely published.
+     */
+    public static final class Rendered {
+        private final byte[] bytes;
+        private final long checksum;
+        private final long time;
+
+        private Rendered(final byte[] bytes, final long time) {
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            this.bytes = bytes;
+            this.checksum = crc.getValue();
+            this.time = time;
+        }
+
+        /**
+         * @return The processed output encoded as UTF-8. This is shared and must not be modified.
+         */
+        public byte[] getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * @return The CRC32 of the processed output.
+         */
+        public long getChecksum() {
+            return this.checksum;
+        }
+
+        /**
+         * Write the processed output to a stream.
+         *
+         * @param output The OutputStream to write to.
+         * @throws IOException If the stream cannot be written to.
+         */
+        public void writeTo(final OutputStream output) throws IOException {
+            output.write(this.bytes);
+        }
+
+        @Override
+        public String toString() {
+            return new String(this.bytes, StandardCharsets.UTF_8);
+        }
+    }
+
     private final Map<String, Object> mappings;
-    private String cache;
-    private long time;
-    private boolean dirty;
-    private final String template;
+    private final ReentrantLock renderLock;
+    private volatile Rendered cache;
+    private volatile boolean dirty;
+    private volatile long cacheDuration;
+    private final Segment[] segments;
 
     /**
      * Generates a new Template from a file.
      *
+     * Compiled template files are shared between every Template created from them. A file is only read and compiled
+     * again when its modification time changes.
+     *
      * @param path The Path containing the template data.
      * @return A new Template containing the data in the given Path.
      * @throws IOException If the input file cannot be read.
      */
     public static Template from(final Path path) throws IOException {
-        return new Template(Files.readString(path));
+        final FileTime modified = Files.getLastModifiedTime(path);
+        Source source = sources.get(path);
+        if (source == null || !source.modified.equals(modified))
+        {
+            source = new Source(compile(Files.readString(path)), modified);
+            sources.put(path, source);
+        }
+        return new Template(source.segments);
+    }
+
+    /**
+     * @return The number of times any Template was rendered from its cached output.
+     */
+    public static long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return The number of times any Template had to be processed to be rendered.
+     */
+    public static long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private static Segment[] compile(final String template) {
+        final List<Segment> segments = new ArrayList<>();
+        final Matcher matcher = TEMPLATE_PATTERN.matcher(template);
+        int last = 0;
+        while (matcher.find())
+        {
+            if (matcher.start() > last)
+            {
+                segments.add(new Segment(template.substring(last, matcher.start()).getBytes(StandardCharsets.UTF_8),
+                        null));
+            }
+            segments.add(new Segment(null, matcher.group(1)));
+            last = matcher.end();
+        }
+        if (last < template.length())
+        {
+            segments.add(new Segment(template.substring(last).getBytes(StandardCharsets.UTF_8), null));
+        }
+        return segments.toArray(new Segment[0]);
     }
 
     /**
@@ -52,21 +188,32 @@ public class Template {
      * @param template A templatable String.
      */
     public Template(final String template) {
-        this.mappings = new HashMap<>();
+        this(compile(template));
+    }
+
+    private Template(final Segment[] segments) {
+        this.mappings = new ConcurrentHashMap<>();
+        this.renderLock = new ReentrantLock();
         this.cache = null;
-        this.time = 0;
         this.dirty = true;
-        this.template = template;
+        this.cacheDuration = CACHE_DURATION_MILLIS;
+        this.segments = segments;
     }
 
     /**
      * Set the value of a Template variable.
      *
      * @param variable The name of the variable to set.
-     * @param obj The Object to set the variable to.
+     * @param obj The Object to set the variable to. Setting a variable to null unsets it.
      */
     public void set(final String variable, final Object obj) {
+        if (obj == null)
+        {
+            unset(variable);
+            return;
+        }
         this.mappings.put(variable, obj);
+        this.dirty = true;
     }
 
     /**
@@ -91,44 +238,156 @@ public class Template {
         this.dirty = true;
     }
 
-    private void processTemplate() {
-        this.cache = this.template;
-        final Matcher matcher = TEMPLATE_PATTERN.matcher(this.cache);
-        if (matcher.find())
+    /**
+     * Mark the Template as dirty so that it is reprocessed the next time it is converted to a String.
+     *
+     * This may be called from any thread.
+     */
+    public void invalidate() {
+        this.dirty = true;
+    }
+
+    /**
+     * Set the duration that the Template will cache itself for.
+     *
+     * @param millis The duration in milliseconds. Long.MAX_VALUE means the cache only expires when invalidated.
+     */
+    public void setCacheDuration(final long millis) {
+        this.cacheDuration = millis;
+    }
+
+    /**
+     * @return The size, in bytes, of the Template's cached output. The compiled template is shared so it isn't counted.
+     */
+    public long getRenderedSize() {
+        final Rendered cache = this.cache;
+        return cache != null ? cache.bytes.length : 0;
+    }
+
+    private boolean isStale(final Rendered cache) {
+        return cache == null || this.dirty || (System.currentTimeMillis() - cache.time) >= this.cacheDuration;
+    }
+
+    private void writeSegment(final Segment segment, final ByteArrayOutputStream output) {
+        if (segment.literal != null)
         {
-            this.cache = matcher.replaceAll((match) -> {
-                final String name = match.group().substring(1, match.group().length() - 1);
-                final Object obj = this.mappings.get(name);
-                if (obj instanceof Supplier)
-                {
-                    final Supplier fn = (Supplier) obj;
-                    return fn.get().toString();
-                }
-                if (obj != null)
-                {
-                    return obj.toString();
-                }
-                return "";
-            });
-        }
-        this.time = System.currentTimeMillis();
+            output.writeBytes(segment.literal);
+            return;
+        }
+        final Object obj = this.mappings.get(segment.variable);
+        if (obj instanceof Supplier)
+        {
+            final Supplier<?> fn = (Supplier<?>) obj;
+            output.writeBytes(fn.get().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        else if (obj != null)
+        {
+            output.writeBytes(obj.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private Rendered processTemplate() {
+        // This is cleared first so that an invalidation during processing isn't lost.
         this.dirty = false;
+        final Rendered previous = this.cache;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(previous != null ? previous.bytes.length : 4096);
+        try
+        {
+            for (final Segment segment : this.segments)
+            {
+                writeSegment(segment, output);
+            }
+        }
+        catch (final RuntimeException | Error err)
+        {
+            // The cached output is still out of date so the next render must try again.
+            this.dirty = true;
+            throw err;
+        }
+        final Rendered result = new Rendered(output.toByteArray(), System.currentTimeMillis());
+        this.cache = result;
+        return result;
     }
 
     /**
-     * Converts a template to its processed String representation.
+     * Process the Template around a variable without caching the result.
      *
-     * If the template data has changed or if the cache duration has expired the template will be reprocessed. Otherwise
-     * the templated page is returned as before.
+     * This is used to stream content in place of the variable. Every other variable is processed as usual.
+     *
+     * @param variable The name of the variable to split the Template at.
+     * @return The output before the first use of the variable and the output after it. If the variable isn't used the
+     *         second part is empty.
+     */
+    public Rendered[] renderAround(final String variable) {
+        final ByteArrayOutputStream before = new ByteArrayOutputStream();
+        final ByteArrayOutputStream after = new ByteArrayOutputStream();
+        ByteArrayOutputStream output = before;
+        for (final Segment segment : this.segments)
+        {
+            if (output == before && variable.equals(segment.variable))
+            {
+                output = after;
+                continue;
+            }
+            writeSegment(segment, output);
+        }
+        final long now = System.currentTimeMillis();
+        return new Rendered[] { new Rendered(before.toByteArray(), now), new Rendered(after.toByteArray(), now) };
+    }
+
+    /**
+     * Process the Template.
+     *
+     * If the template data has changed, the template has been invalidated, or if the cache duration has expired the
+     * template will be reprocessed. Otherwise the cached output is returned as before.
+     *
+     * Reprocessing is single-flight. If another thread is already reprocessing the template the previous output is
+     * returned immediately. Only a template that has never been processed makes callers wait.
+     *
+     * @return The processed output.
+     */
+    public Rendered render() {
+        final Rendered cache = this.cache;
+        if (!isStale(cache))
+        {
+            cacheHits.increment();
+            return cache;
+        }
+        if (cache == null)
+        {
+            this.renderLock.lock();
+        }
+        else if (!this.renderLock.tryLock())
+        {
+            cacheHits.increment();
+            return cache;
+        }
+        try
+        {
+            // Another thread may have finished processing while this one was acquiring the lock.
+            final Rendered current = this.cache;
+            if (!isStale(current))
+            {
+                cacheHits.increment();
+                return current;
+            }
+            cacheMisses.increment();
+            return processTemplate();
+        }
+        finally
+        {
+            this.renderLock.unlock();
+        }
+    }
+
+    /**
+     * Converts a template to its processed String representation.
      *
      * @return The template String after variable replacement.
+     * @see #render()
      */
     @Override
     public String toString() {
-        if (this.cache == null || this.dirty || (System.currentTimeMillis() - this.time) >= CACHE_DURATION_MILLIS)
-        {
-            processTemplate();
-        }
-        return this.cache;
+        return render().toString();
     }
 }
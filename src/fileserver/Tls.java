@@ -0,0 +1,192 @@
+package fileserver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Terminates TLS for connections accepted on the HTTPS listeners.
+ *
+ * Accepted sockets are layered with an SSLSocket in server mode and the handshake is finished before the connection is
+ * handed to a RequestHandler. Handshakes are bounded by the header timeout, since a client that hasn't finished one
+ * hasn't started its first request yet.
+ *
+ * Full handshakes cost the server a private key operation. Resumed handshakes skip it, so sessions are kept both in a
+ * server side cache, for clients that resume by session ID, and in stateless tickets held by the clients themselves.
+ * Every handshake is timed, in wall clock and CPU time, and counted as new or resumed so that the cost of TLS and the
+ * rate of resumption can be watched in the metrics.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class Tls {
+    /**
+     * The most plaintext, in bytes, that a single TLS record carries.
+     */
+    public static final int MAX_RECORD_SIZE = 16384; // 16KiB
+
+    /**
+     * The size, in bytes, of the writes that content is sent to TLS connections in. Each write is cut into full size
+     * records rather than the small records that writing through a general purpose channel adapter produces, which
+     * saves the framing and MAC of every extra record.
+     */
+    public static final int WRITE_SIZE = 4 * MAX_RECORD_SIZE;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final SSLSocketFactory factory;
+    private final SSLParameters parameters;
+    private final int handshakeTimeout;
+    private final Metrics.Histogram handshakes;
+    private final Metrics.Histogram resumedHandshakes;
+    private final LongAdder handshakeCpuNanos;
+    private final LongAdder resumedHandshakeCpuNanos;
+    private final LongAdder failures;
+
+    private static long cpuTime() {
+        // Threads that can't be measured, such as virtual threads, report -1.
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Constructs a new Tls from the key store and TLS options in a Configuration.
+     *
+     * Whether session tickets are issued is a setting of the whole runtime so this must be constructed before anything
+     * else uses TLS.
+     *
+     * @param config The Server Configuration.
+     * @throws IOException If the key store cannot be read.
+     * @throws GeneralSecurityException If the key store doesn't hold a usable key.
+     * @throws IllegalArgumentException If a configured protocol or cipher suite isn't supported.
+     */
+    public Tls(final Configuration config) throws IOException, GeneralSecurityException {
+        if (config.getTlsKeyStore() == null)
+        {
+            throw new IOException("HTTPS listeners need a tls-keystore");
+        }
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                Boolean.toString(config.shouldUseTlsSessionTickets()));
+        final char[] password = config.getTlsKeyStorePassword().toCharArray();
+        final KeyStore keys = KeyStore.getInstance(config.getTlsKeyStoreType());
+        try (final InputStream input = Files.newInputStream(config.getTlsKeyStore()))
+        {
+            keys.load(input, password);
+        }
+        final KeyManagerFactory managers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        managers.init(keys, password);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(managers.getKeyManagers(), null, null);
+        final SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout((int) Math.min(Integer.MAX_VALUE,
+                TimeUnit.MILLISECONDS.toSeconds(config.getTlsSessionTimeout())));
+        this.factory = context.getSocketFactory();
+        this.parameters = context.getDefaultSSLParameters();
+        this.parameters.setProtocols(config.getTlsProtocols().toArray(new String[0]));
+        if (!config.getTlsCiphers().isEmpty())
+        {
+            this.parameters.setCipherSuites(config.getTlsCiphers().toArray(new String[0]));
+        }
+        this.parameters.setUseCipherSuitesOrder(true);
+        // Unsupported protocols and cipher suites are refused now rather than by the first connection.
+        context.createSSLEngine().setSSLParameters(this.parameters);
+        this.handshakeTimeout = config.getHeaderTimeout();
+        this.handshakes = new Metrics.Histogram();
+        this.resumedHandshakes = new Metrics.Histogram();
+        this.handshakeCpuNanos = new LongAdder();
+        this.resumedHandshakeCpuNanos = new LongAdder();
+        this.failures = new LongAdder();
+    }
+
+    /**
+     * Layer TLS over an accepted connection. Nothing is sent or received until the handshake starts.
+     *
+     * @param client The accepted Socket. Closing the returned SSLSocket closes it.
+     * @return A server mode SSLSocket over the client Socket.
+     * @throws IOException If the Socket cannot be layered.
+     */
+    public SSLSocket open(final Socket client) throws IOException {
+        final SSLSocket secure = (SSLSocket) this.factory.createSocket(client,
+                client.getInetAddress().getHostAddress(), client.getPort(), true);
+        secure.setUseClientMode(false);
+        secure.setSSLParameters(this.parameters);
+        return secure;
+    }
+
+    /**
+     * Finish the handshake of a connection and record what it cost.
+     *
+     * @param secure An SSLSocket from open.
+     * @return True if the handshake finished. Otherwise false, and the caller must close the connection.
+     */
+    public boolean handshake(final SSLSocket secure) {
+        final long started = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final long cpuStart = cpuTime();
+        try
+        {
+            secure.setSoTimeout(this.handshakeTimeout);
+            secure.startHandshake();
+        }
+        catch (final IOException err)
+        {
+            // Scanners, plain HTTP clients, and clients that reject the certificate all end up here.
+            this.failures.increment();
+            return false;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long cpuEnd = cpuStart >= 0 ? cpuTime() : -1;
+        // A resumed session was created by an earlier handshake. A new one is created during this one.
+        final boolean resumed = secure.getSession().getCreationTime() < started;
+        (resumed ? this.resumedHandshakes : this.handshakes).record(elapsed);
+        if (cpuEnd >= 0)
+        {
+            (resumed ? this.resumedHandshakeCpuNanos : this.handshakeCpuNanos).add(cpuEnd - cpuStart);
+        }
+        return true;
+    }
+
+    /**
+     * @param resumed Whether to get the times of resumed or of full handshakes.
+     * @return The wall clock times of the finished handshakes.
+     */
+    public Metrics.Histogram getHandshakeTimes(final boolean resumed) {
+        return resumed ? this.resumedHandshakes : this.handshakes;
+    }
+
+    /**
+     * @param resumed Whether to get the number of resumed or of full handshakes.
+     * @return The number of finished handshakes.
+     */
+    public long getHandshakes(final boolean resumed) {
+        return getHandshakeTimes(resumed).getCount();
+    }
+
+    /**
+     * @param resumed Whether to get the CPU time of resumed or of full handshakes.
+     * @return The CPU time, in nanoseconds, spent on the finished handshakes of threads that could be measured.
+     */
+    public long getHandshakeCpuNanos(final boolean resumed) {
+        return (resumed ? this.resumedHandshakeCpuNanos : this.handshakeCpuNanos).sum();
+    }
+
+    /**
+     * @return The number of handshakes that failed or timed out.
+     */
+    public long getHandshakeFailures() {
+        return this.failures.sum();
+    }
+}
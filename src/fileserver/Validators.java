@@ -0,0 +1,151 @@
+package fileserver;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Response validators and the conditional request headers that are evaluated against them.
+ *
+ * Entity tags and modification dates are put in the response headers first. Conditions are then evaluated against
+ * those headers so that a 304 Not Modified or a partial response always agrees with what a full response would have
+ * sent.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public final class Validators {
+    /**
+     * Format a time as an HTTP date.
+     *
+     * @param millis The time in milliseconds since the epoch.
+     * @return The time in the RFC 1123 format.
+     */
+    public static String toHttpDate(final long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * Parse an HTTP date.
+     *
+     * @param date A time in the RFC 1123 format.
+     * @return The time in seconds since the epoch. HTTP dates are only precise to a second.
+     * @throws DateTimeParseException If the date is malformed.
+     */
+    public static long fromHttpDate(final String date) {
+        return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+    }
+
+    /**
+     * Generate a strong entity tag for a file from its size, modification time, and file key. The file key is the inode
+     * on filesystems that have them, so replacing a file with another of the same size and time changes the tag.
+     *
+     * @param attributes The attributes of the file.
+     * @return A quoted entity tag.
+     */
+    public static String toEntityTag(final BasicFileAttributes attributes) {
+        final Object key = attributes.fileKey();
+        return String.format("\"%x-%x-%x\"", attributes.size(), attributes.lastModifiedTime().toMillis(),
+                key != null ? key.hashCode() : 0);
+    }
+
+    /**
+     * Distinguish the entity tag of an encoded representation from that of the identity representation.
+     *
+     * @param entityTag A quoted entity tag, which may be weak.
+     * @param encoding The content coding of the representation or null if it isn't encoded.
+     * @return The entity tag with the coding added inside its quotes.
+     */
+    public static String withEncoding(final String entityTag, final String encoding) {
+        if (encoding == null)
+        {
+            return entityTag;
+        }
+        return String.format("%s-%s\"", entityTag.substring(0, entityTag.length() - 1), encoding);
+    }
+
+    private static String stripWeak(final String entityTag) {
+        return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+    }
+
+    /**
+     * Evaluate If-None-Match and If-Modified-Since against the validators in a set of response headers.
+     *
+     * If-None-Match uses the weak comparison and takes precedence over If-Modified-Since when both are present.
+     *
+     * @param request The request.
+     * @param headers The response headers holding an ETag and possibly a Last-Modified date.
+     * @return True if the client's copy is current and 304 Not Modified should be sent. Otherwise false.
+     */
+    public static boolean notModified(final HttpRequest request, final Map<String, String> headers) {
+        final String ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null)
+        {
+            final String entityTag = stripWeak(headers.get("ETag"));
+            final StringTokenizer candidates = new StringTokenizer(ifNoneMatch, ",");
+            while (candidates.hasMoreTokens())
+            {
+                final String candidate = candidates.nextToken().trim();
+                if (candidate.equals("*") || stripWeak(candidate).equals(entityTag))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final String ifModifiedSince = request.getHeader("if-modified-since");
+        final String lastModified = headers.get("Last-Modified");
+        if (ifModifiedSince != null && lastModified != null)
+        {
+            try
+            {
+                return fromHttpDate(lastModified) <= fromHttpDate(ifModifiedSince);
+            }
+            catch (final DateTimeParseException err)
+            {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine whether a Range request should be honored based on its If-Range header.
+     *
+     * An entity tag must match strongly. A date must match the modification time exactly. Anything else means the
+     * client's copy is out of date so the whole file is sent.
+     *
+     * @param request The request.
+     * @param headers The response headers holding an ETag and possibly a Last-Modified date.
+     * @return True if the ranges should be sent. False if the whole file should be sent instead.
+     */
+    public static boolean rangeApplies(final HttpRequest request, final Map<String, String> headers) {
+        final String ifRange = request.getHeader("if-range");
+        if (ifRange == null)
+        {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+        {
+            return ifRange.equals(headers.get("ETag")) && !ifRange.startsWith("W/");
+        }
+        final String lastModified = headers.get("Last-Modified");
+        if (lastModified == null)
+        {
+            return false;
+        }
+        try
+        {
+            return fromHttpDate(ifRange) == fromHttpDate(lastModified);
+        }
+        catch (final DateTimeParseException err)
+        {
+            return false;
+        }
+    }
+}
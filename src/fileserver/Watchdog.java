@@ -0,0 +1,177 @@
+package fileserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Closes connections that receive their responses too slowly.
+ *
+ * A blocking write has no timeout of its own, so a client that stops reading would otherwise hold its thread forever.
+ * While a response is being sent its Transfer is watched by a single daemon thread. Progress is measured over windows of
+ * send-timeout milliseconds and a connection that receives less than min-send-rate bytes per second over a window, or
+ * nothing at all, is closed. Closing the connection makes the blocked write fail and frees its thread.
+ *
+ * The Nio Engine never blocks on a write. It checks its own Transfers as part of its event loop instead.
+ *
+ * @author Alexander Rothman #714145 <alexanderpaul.rothman@calbaptist.edu>
+ * @since April 16, 2021
+ */
+public class Watchdog {
+    /**
+     * The time, in milliseconds, between checks of the watched Transfers.
+     */
+    public static final long INTERVAL_MILLIS = 1_000;
+
+    private final Map<Transfer, Closeable> watched;
+    private final Metrics metrics;
+
+    /**
+     * The progress of the responses sent over a single connection.
+     *
+     * Bytes are counted by the thread sending them. Windows are checked by whichever thread watches the Transfer.
+     */
+    public static final class Transfer {
+        private final long window;
+        private final long minimum;
+        private volatile long sent;
+        private volatile long windowStart;
+        private volatile long windowSent;
+        private volatile boolean expired;
+
+        /**
+         * Constructs a new Transfer.
+         *
+         * @param config The Server Configuration.
+         */
+        public Transfer(final Configuration config) {
+            this.window = config.getSendTimeout();
+            this.minimum = Math.max(1, (long) config.getMinSendRate() * this.window / 1000);
+            this.sent = 0;
+            this.windowStart = -1;
+            this.windowSent = 0;
+            this.expired = false;
+        }
+
+        /**
+         * Start measuring a response.
+         *
+         * @param now The current time in milliseconds.
+         */
+        public void begin(final long now) {
+            this.windowSent = this.sent;
+            this.windowStart = now;
+        }
+
+        /**
+         * Count bytes that were sent. This must only be called by the sending thread.
+         *
+         * @param bytes The number of bytes sent.
+         */
+        public void add(final long bytes) {
+            this.sent += bytes;
+        }
+
+        /**
+         * Stop measuring once a response has been sent.
+         */
+        public void end() {
+            this.windowStart = -1;
+        }
+
+        /**
+         * @return True if a response is being measured. Otherwise false.
+         */
+        public boolean isSending() {
+            return this.windowStart >= 0;
+        }
+
+        /**
+         * Check the current window. A new window is started each time one passes.
+         *
+         * @param now The current time in milliseconds.
+         * @return True if the client received too little during the window that just passed. Otherwise false.
+         */
+        public boolean isTooSlow(final long now) {
+            final long start = this.windowStart;
+            if (start < 0 || now - start < this.window)
+            {
+                return false;
+            }
+            final long sent = this.sent;
+            if (sent - this.windowSent < this.minimum)
+            {
+                this.expired = true;
+                return true;
+            }
+            this.windowSent = sent;
+            this.windowStart = now;
+            return false;
+        }
+
+        /**
+         * @return True if the connection was found to be too slow. Otherwise false.
+         */
+        public boolean isExpired() {
+            return this.expired;
+        }
+    }
+
+    /**
+     * Constructs a new Watchdog and starts its thread.
+     *
+     * @param metrics The server Metrics.
+     */
+    public Watchdog(final Metrics metrics) {
+        this.watched = new ConcurrentHashMap<>();
+        this.metrics = metrics;
+        final Thread thread = new Thread(this::run, "watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watch a Transfer until it is unwatched.
+     *
+     * @param transfer The Transfer of a response that has just begun.
+     * @param connection The connection to close if the Transfer is too slow.
+     */
+    public void watch(final Transfer transfer, final Closeable connection) {
+        this.watched.put(transfer, connection);
+    }
+
+    /**
+     * Stop watching a Transfer.
+     *
+     * @param transfer A watched Transfer.
+     */
+    public void unwatch(final Transfer transfer) {
+        this.watched.remove(transfer);
+    }
+
+    private void run() {
+        while (true)
+        {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS));
+            final long now = System.currentTimeMillis();
+            for (final Map.Entry<Transfer, Closeable> entry : this.watched.entrySet())
+            {
+                if (entry.getKey().isTooSlow(now) && this.watched.remove(entry.getKey()) != null)
+                {
+                    this.metrics.connectionTimedOut(Metrics.Timeout.Send);
+                    try
+                    {
+                        entry.getValue().close();
+                    }
+                    catch (final IOException ignored)
+                    {
+                        // The connection is already broken.
+                    }
+                }
+            }
+        }
+    }
+}
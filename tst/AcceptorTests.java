@@ -0,0 +1,58 @@
+import fileserver.Acceptor;
+import fileserver.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Map;
+
+public class AcceptorTests {
+    private static Configuration create(final Map<String, List<String>> options) {
+        return new Configuration(null, null, null, (short) 8080, false, options);
+    }
+
+    @Test
+    public void listenTest() {
+        Assert.assertEquals(List.of(new InetSocketAddress(8080)), create(Map.of()).getListenAddresses());
+        final List<InetSocketAddress> addresses = create(Map.of("listen",
+                List.of("*:40000", "127.0.0.1:8081", "[::1]:8082"))).getListenAddresses();
+        Assert.assertEquals(3, addresses.size());
+        Assert.assertTrue(addresses.get(0).getAddress().isAnyLocalAddress());
+        // Unlike port, listen isn't limited to the range of a short.
+        Assert.assertEquals(40000, addresses.get(0).getPort());
+        Assert.assertTrue(addresses.get(1).getAddress().isLoopbackAddress());
+        Assert.assertEquals(8082, addresses.get(2).getPort());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unbracketedTest() {
+        create(Map.of("listen", List.of("::1:8080")));
+    }
+
+    @Test
+    public void bindTest() throws IOException {
+        final List<ServerSocketChannel> servers = Acceptor.bind(create(Map.of("listen", List.of("127.0.0.1:0"),
+                "acceptors", List.of("3"))));
+        try
+        {
+            // Every acceptor gets a channel whether or not the channels are shared.
+            Assert.assertEquals(3, servers.size());
+            for (final ServerSocketChannel server : servers)
+            {
+                Assert.assertTrue(server.isOpen());
+                // An ephemeral port is chosen once and shared by every acceptor of the address.
+                Assert.assertEquals(servers.get(0).getLocalAddress(), server.getLocalAddress());
+            }
+        }
+        finally
+        {
+            for (final ServerSocketChannel server : servers)
+            {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import fileserver.AccessLog;
+import fileserver.Configuration;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class AccessLogTests {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private AccessLog create(final Path file, final String format, final long maxSize) throws IOException {
+        return new AccessLog(new Configuration(null, null, null, (short) 0, false,
+                Map.of("access-log-file", List.of(file.toString()), "access-log-format", List.of(format),
+                        "access-log-max-size", List.of(Long.toString(maxSize)), "access-log-max-files",
+                        List.of("2"))));
+    }
+
+    @Test
+    public void formatTest() throws IOException {
+        final Path common = this.folder.getRoot().toPath().resolve("common.log");
+        final Path json = this.folder.getRoot().toPath().resolve("json.log");
+        final InetAddress remote = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+        try (final AccessLog combinedLog = create(common, "combined", 0);
+             final AccessLog jsonLog = create(json, "json", 0))
+        {
+            for (final AccessLog log : List.of(combinedLog, jsonLog))
+            {
+                Assert.assertTrue(log.log(remote, 0, "GET /a\"b HTTP/1.1", 200, 42, null, "agent\n", 1_500));
+                Assert.assertTrue(log.log(remote, 0, "GET / HTTP/1.1", 200, -1, "http://x/", null, 0));
+            }
+        }
+
+        final List<String> commonLines = Files.readAllLines(common);
+        Assert.assertEquals(2, commonLines.size());
+        Assert.assertTrue(commonLines.get(0).matches(
+                "127\\.0\\.0\\.1 - - \\[01/Jan/1970:\\d\\d:\\d\\d:00 [+-]\\d{4}] \"GET /a\\\\\"b HTTP/1\\.1\" 200 42 " +
+                        "\"-\" \"agent\\\\x0a\""));
+        Assert.assertTrue(commonLines.get(1).endsWith("\"GET / HTTP/1.1\" 200 - \"http://x/\" \"-\""));
+        Assert.assertEquals(List.of(
+                "{\"time\":\"1970-01-01T00:00:00Z\",\"remote\":\"127.0.0.1\",\"request\":\"GET /a\\\"b HTTP/1.1\"," +
+                        "\"status\":200,\"bytes\":42,\"referer\":null,\"user_agent\":\"agent\\u000a\"," +
+                        "\"duration_us\":1}",
+                "{\"time\":\"1970-01-01T00:00:00Z\",\"remote\":\"127.0.0.1\",\"request\":\"GET / HTTP/1.1\"," +
+                        "\"status\":200,\"bytes\":null,\"referer\":\"http://x/\",\"user_agent\":null," +
+                        "\"duration_us\":0}"), Files.readAllLines(json));
+    }
+
+    @Test
+    public void rotationTest() throws IOException {
+        final Path file = this.folder.getRoot().toPath().resolve("access.log");
+        final InetAddress remote = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        try (final AccessLog log = create(file, "common", 100))
+        {
+            for (int i = 0; i < 20; ++i)
+            {
+                Assert.assertTrue(log.log(remote, 0, String.format("GET /%d HTTP/1.1", i), 404, 10, null, null, 0));
+            }
+        }
+
+        Assert.assertTrue(Files.exists(file.resolveSibling("access.log.1")));
+        Assert.assertTrue(Files.exists(file.resolveSibling("access.log.2")));
+        Assert.assertFalse(Files.exists(file.resolveSibling("access.log.3")));
+        // Each file is rotated by the entry that takes it past the size limit, so the last two entries were rotated.
+        final List<String> newest = Files.readAllLines(file.resolveSibling("access.log.1"));
+        Assert.assertEquals(2, newest.size());
+        Assert.assertTrue(newest.get(1).contains("GET /19 HTTP/1.1"));
+        Assert.assertEquals(0, Files.size(file));
+    }
+}
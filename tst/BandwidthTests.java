@@ -0,0 +1,87 @@
+import fileserver.Bandwidth;
+import fileserver.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class BandwidthTests {
+    private static final Path ROOT = Path.of("/srv/files").toAbsolutePath();
+
+    private static Bandwidth create(final Map<String, List<String>> options) {
+        return new Bandwidth(new Configuration(ROOT, null, null, (short) 0, false, options));
+    }
+
+    @Test
+    public void unlimitedTest() {
+        final Bandwidth bandwidth = create(Map.of("send-quantum", List.of("1000")));
+        final Bandwidth.Limit limit = bandwidth.open(InetAddress.getLoopbackAddress());
+        Assert.assertEquals(1000, limit.allow(null, 1_000_000));
+        Assert.assertEquals(10, limit.allow(null, 10));
+        limit.charge(1_000_000);
+        Assert.assertEquals(1000, limit.allow(null, 1_000_000));
+        Assert.assertEquals(0, limit.delay(null));
+        Assert.assertEquals(1_000_000, bandwidth.getServer().getSent());
+        Assert.assertEquals(0, bandwidth.getClients());
+    }
+
+    @Test
+    public void limitTest() {
+        final Bandwidth bandwidth = create(Map.of("bandwidth-limit", List.of("100000")));
+        final Bandwidth.Limit limit = bandwidth.open(InetAddress.getLoopbackAddress());
+        // A full bucket holds a tenth of a second of tokens.
+        final long allowed = limit.allow(null, 1_000_000);
+        Assert.assertEquals(10_000, allowed);
+        // Charging a little more than was allowed keeps the bucket empty however slowly the test runs.
+        limit.charge(null, allowed + 10_000);
+        Assert.assertEquals(0, limit.allow(null, 1_000_000));
+        Assert.assertEquals(1, bandwidth.getServer().getThrottled());
+        final long delay = limit.delay(null);
+        Assert.assertTrue(delay > 0 && delay <= TimeUnit.MILLISECONDS.toNanos(200));
+
+        // Interactive traffic is never held back but the debt it leaves has to be paid by file content.
+        limit.charge(50_000);
+        Assert.assertTrue(limit.delay(null) > TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void clientTest() {
+        final Bandwidth bandwidth = create(Map.of("client-bandwidth-limit", List.of("100000")));
+        final InetAddress address = InetAddress.getLoopbackAddress();
+        final Bandwidth.Limit first = bandwidth.open(address);
+        final Bandwidth.Limit second = bandwidth.open(address);
+        Assert.assertEquals(1, bandwidth.getClients());
+        // Connections from the same address share a bucket.
+        first.charge(null, first.allow(null, 1_000_000) + 10_000);
+        Assert.assertEquals(0, second.allow(null, 1_000_000));
+        Assert.assertEquals(1, bandwidth.getClientsThrottled());
+        first.close();
+        first.close();
+        Assert.assertEquals(1, bandwidth.getClients());
+        second.close();
+        Assert.assertEquals(0, bandwidth.getClients());
+    }
+
+    @Test
+    public void pathTest() {
+        final Bandwidth bandwidth = create(Map.of("path-bandwidth-limit",
+                List.of("/downloads/ 100000", "/downloads/iso 2000", "/ 0")));
+        Assert.assertEquals(3, bandwidth.getPaths().size());
+        Assert.assertEquals("/downloads/iso", bandwidth.getPathBucket(ROOT.resolve("downloads/iso/a.iso")).getPrefix());
+        Assert.assertEquals("/downloads", bandwidth.getPathBucket(ROOT.resolve("downloads/b.zip")).getPrefix());
+        // Prefixes only match whole path segments.
+        Assert.assertEquals("/", bandwidth.getPathBucket(ROOT.resolve("downloadsx/c.zip")).getPrefix());
+
+        final Bandwidth.Bucket iso = bandwidth.getPathBucket(ROOT.resolve("downloads/iso/a.iso"));
+        final Bandwidth.Limit limit = bandwidth.open(InetAddress.getLoopbackAddress());
+        Assert.assertEquals(Bandwidth.MIN_BURST, limit.allow(iso, 1_000_000));
+        limit.charge(iso, Bandwidth.MIN_BURST + 100);
+        Assert.assertEquals(0, limit.allow(iso, 1_000_000));
+        Assert.assertEquals(1, iso.getThrottled());
+        Assert.assertTrue(limit.allow(bandwidth.getPathBucket(ROOT.resolve("downloads/b.zip")), 1_000_000) > 0);
+    }
+}
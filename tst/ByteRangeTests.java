@@ -0,0 +1,47 @@
+import fileserver.ByteRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ByteRangeTests {
+    @Test
+    public void singleRangeTest() {
+        final List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+
+        Assert.assertEquals(List.of(new ByteRange(0, 499)), ranges);
+        Assert.assertEquals(500, ranges.get(0).getLength());
+        Assert.assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+    }
+
+    @Test
+    public void openAndSuffixRangeTest() {
+        Assert.assertEquals(List.of(new ByteRange(900, 999)), ByteRange.parse("bytes=900-", 1000));
+        Assert.assertEquals(List.of(new ByteRange(800, 999)), ByteRange.parse("bytes=-200", 1000));
+        Assert.assertEquals(List.of(new ByteRange(0, 999)), ByteRange.parse("bytes=-5000", 1000));
+        Assert.assertEquals(List.of(new ByteRange(500, 999)), ByteRange.parse("bytes=500-5000", 1000));
+    }
+
+    @Test
+    public void multipleRangeTest() {
+        Assert.assertEquals(List.of(new ByteRange(0, 9), new ByteRange(100, 199)),
+                ByteRange.parse("bytes=100-199, 0-9", 1000));
+        // Overlapping and adjacent ranges are merged.
+        Assert.assertEquals(List.of(new ByteRange(0, 299)), ByteRange.parse("bytes=0-99,50-199,200-299", 1000));
+    }
+
+    @Test
+    public void unsatisfiableRangeTest() {
+        Assert.assertEquals(List.of(), ByteRange.parse("bytes=1000-", 1000));
+        Assert.assertEquals(List.of(), ByteRange.parse("bytes=-0", 1000));
+    }
+
+    @Test
+    public void invalidRangeTest() {
+        Assert.assertNull(ByteRange.parse("items=0-1", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=abc", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=10-5", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=", 1000));
+        Assert.assertNull(ByteRange.parse("bytes=" + "0-0,".repeat(ByteRange.MAX_RANGES + 1), 1000));
+    }
+}
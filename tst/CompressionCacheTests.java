@@ -0,0 +1,91 @@
+import fileserver.CompressionCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressionCacheTests {
+    private static final byte[] CONTENT = "<p>compress me</p>".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void acceptsTest() {
+        Assert.assertFalse(CompressionCache.accepts(null, "gzip"));
+        Assert.assertTrue(CompressionCache.accepts("gzip, deflate", "gzip"));
+        Assert.assertTrue(CompressionCache.accepts("GZIP", "gzip"));
+        Assert.assertTrue(CompressionCache.accepts("gzip;level=9", "gzip"));
+        Assert.assertFalse(CompressionCache.accepts("br", "gzip"));
+        // q=0 means not acceptable.
+        Assert.assertFalse(CompressionCache.accepts("gzip;q=0", "gzip"));
+        Assert.assertFalse(CompressionCache.accepts("gzip; q=0.000", "gzip"));
+        // A malformed quality value is treated as not acceptable rather than guessed at.
+        Assert.assertFalse(CompressionCache.accepts("gzip;q=high", "gzip"));
+    }
+
+    @Test
+    public void wildcardTest() {
+        Assert.assertTrue(CompressionCache.accepts("*", "gzip"));
+        Assert.assertFalse(CompressionCache.accepts("*;q=0", "gzip"));
+        // A coding that is named explicitly overrides the wildcard whichever comes first.
+        Assert.assertTrue(CompressionCache.accepts("*;q=0, gzip", "gzip"));
+        Assert.assertFalse(CompressionCache.accepts("gzip;q=0, *", "gzip"));
+        Assert.assertTrue(CompressionCache.accepts("gzip;q=0, *", "deflate"));
+    }
+
+    @Test
+    public void negotiateTest() {
+        Assert.assertNull(CompressionCache.negotiate(null));
+        Assert.assertNull(CompressionCache.negotiate("br, identity"));
+        Assert.assertNull(CompressionCache.negotiate("gzip;q=0, deflate;q=0"));
+        Assert.assertEquals("deflate", CompressionCache.negotiate("deflate"));
+        Assert.assertEquals("deflate", CompressionCache.negotiate("gzip;q=0.5, deflate"));
+        Assert.assertEquals("gzip", CompressionCache.negotiate("deflate;q=0.5, gzip"));
+        // gzip wins ties.
+        Assert.assertEquals("gzip", CompressionCache.negotiate("deflate, gzip"));
+        Assert.assertEquals("gzip", CompressionCache.negotiate("*"));
+        Assert.assertEquals("deflate", CompressionCache.negotiate("gzip;q=bad, deflate;q=0.1"));
+    }
+
+    @Test
+    public void compressTest() throws IOException {
+        try (final InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(
+                CompressionCache.compress(CONTENT, "gzip"))))
+        {
+            Assert.assertArrayEquals(CONTENT, gzip.readAllBytes());
+        }
+        try (final InputStream deflate = new InflaterInputStream(new ByteArrayInputStream(
+                CompressionCache.compress(CONTENT, "deflate"))))
+        {
+            Assert.assertArrayEquals(CONTENT, deflate.readAllBytes());
+        }
+    }
+
+    @Test
+    public void cacheTest() {
+        final byte[] compressed = CompressionCache.compress(CONTENT, "gzip");
+        // Room for exactly two bodies.
+        final CompressionCache cache = new CompressionCache(compressed.length * 2);
+
+        Assert.assertNull(cache.peek("a"));
+        final byte[] first = cache.get("a", () -> CONTENT, "gzip");
+        Assert.assertArrayEquals(compressed, first);
+        Assert.assertSame(first, cache.get("a", () -> {
+            throw new AssertionError("A cached body shouldn't be compressed again");
+        }, "gzip"));
+        Assert.assertSame(first, cache.peek("a"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.get("b", () -> CONTENT, "gzip");
+        // Looking a up makes b the least recently used body so b is evicted.
+        cache.get("a", () -> CONTENT, "gzip");
+        cache.get("c", () -> CONTENT, "gzip");
+        Assert.assertNotNull(cache.peek("a"));
+        Assert.assertNull(cache.peek("b"));
+        Assert.assertNotNull(cache.peek("c"));
+    }
+}
@@ -0,0 +1,54 @@
+import fileserver.Configuration;
+import fileserver.DirectoryCache;
+import fileserver.Template;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class DirectoryCacheTests {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recacheAfterEvictionTest() throws IOException, InterruptedException {
+        final Path first = Files.createDirectory(folder.getRoot().toPath().resolve("first"));
+        final Path second = Files.createDirectory(folder.getRoot().toPath().resolve("second"));
+        final DirectoryCache cache = new DirectoryCache(new Configuration(folder.getRoot().toPath(), null, null,
+                (short) 0, false, Map.of("directory-cache-entries", List.of("1"))));
+        cache.put(first, new Template("first"));
+        // Evicting the first directory cancels its watch key.
+        cache.put(second, new Template("second"));
+        final Template template = new Template("first again");
+        cache.put(first, template);
+        // Give the watcher time to see the cancelled key. It must not drop the entry that replaced it.
+        Thread.sleep(500);
+        Assert.assertSame(template, cache.get(first));
+    }
+
+    @Test
+    public void recacheAfterDeletionTest() throws IOException, InterruptedException {
+        final Path directory = Files.createDirectory(folder.getRoot().toPath().resolve("replaced"));
+        final DirectoryCache cache = new DirectoryCache(new Configuration(folder.getRoot().toPath(), null, null,
+                (short) 0, false, Map.of()));
+        cache.put(directory, new Template("deleted"));
+        final Template template = new Template("replacement");
+        // Holding the cache's lock stalls the watcher on the deleted directory's key until the directory has been
+        // created and cached again.
+        synchronized (cache)
+        {
+            Files.delete(directory);
+            Thread.sleep(500);
+            Files.createDirectory(directory);
+            cache.put(directory, template);
+        }
+        Thread.sleep(500);
+        Assert.assertSame(template, cache.get(directory));
+    }
+}
@@ -0,0 +1,119 @@
+import fileserver.Configuration;
+import fileserver.DirectoryListing;
+import fileserver.MimeTypes;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DirectoryListingTests {
+    private static final Pattern NAME_PATTERN = Pattern.compile("\"name\":\"([^\"]*)\"");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path createDirectory() throws IOException {
+        final Path directory = this.folder.newFolder("listing").toPath();
+        for (int i = 0; i < 10; ++i)
+        {
+            Files.write(directory.resolve(String.format("file%d.txt", i)), new byte[i * 10]);
+        }
+        Files.createDirectory(directory.resolve("folder"));
+        Files.writeString(directory.resolve(".hidden"), "hidden");
+        return directory;
+    }
+
+    private String list(final Path directory, final DirectoryListing listing) throws IOException {
+        listing.select();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final var generator = listing.generator())
+        {
+            while (generator.write(output))
+            {
+                // Every batch is collected.
+            }
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> names(final String listing) {
+        final List<String> names = new ArrayList<>();
+        final Matcher matcher = NAME_PATTERN.matcher(listing);
+        while (matcher.find())
+        {
+            names.add(matcher.group(1));
+        }
+        return names;
+    }
+
+    @Test
+    public void negotiateTest() {
+        Assert.assertEquals(DirectoryListing.Format.Json, DirectoryListing.negotiate("json", null));
+        Assert.assertEquals(DirectoryListing.Format.Ndjson, DirectoryListing.negotiate(null, "application/x-ndjson"));
+        Assert.assertEquals(DirectoryListing.Format.Json, DirectoryListing.negotiate(null, "application/json"));
+        Assert.assertNull(DirectoryListing.negotiate(null, "text/html,application/json;q=0.9"));
+        Assert.assertNull(DirectoryListing.negotiate("html", "application/json"));
+        Assert.assertNull(DirectoryListing.negotiate(null, null));
+    }
+
+    @Test
+    public void sortAndFilterTest() throws IOException {
+        final Path directory = createDirectory();
+        final MimeTypes types = new MimeTypes(new Configuration(directory, null, null, (short) 0, false));
+        final Map<String, String> query = new HashMap<>();
+        query.put("sort", "size");
+        query.put("order", "desc");
+        query.put("glob", "file[0-3].txt");
+
+        final String json = list(directory, new DirectoryListing(directory, directory, false, types,
+                DirectoryListing.Format.Json, query, 100));
+        Assert.assertTrue(json.startsWith("{\"path\":\"/\",\"next\":null,\"entries\":[{"));
+        Assert.assertTrue(json.endsWith("}]}"));
+        Assert.assertEquals(List.of("file3.txt", "file2.txt", "file1.txt", "file0.txt"), names(json));
+        Assert.assertTrue(json.contains("{\"name\":\"file3.txt\",\"type\":\"file\",\"size\":30,"));
+    }
+
+    @Test
+    public void cursorTest() throws IOException {
+        final Path directory = createDirectory();
+        final MimeTypes types = new MimeTypes(new Configuration(directory, null, null, (short) 0, false));
+        for (final String sort : List.of("name", "mtime", "none"))
+        {
+            final List<String> seen = new ArrayList<>();
+            final Map<String, String> query = new HashMap<>();
+            query.put("sort", sort);
+            query.put("limit", "3");
+            int pages = 0;
+            while (true)
+            {
+                final DirectoryListing listing = new DirectoryListing(directory, directory, false, types,
+                        DirectoryListing.Format.Ndjson, query, 100);
+                final String page = list(directory, listing);
+                Assert.assertEquals(page.lines().count(), names(page).size());
+                seen.addAll(names(page));
+                ++pages;
+                if (listing.getNextCursor() == null)
+                {
+                    break;
+                }
+                query.put("cursor", listing.getNextCursor());
+            }
+            Assert.assertEquals(4, pages);
+            Assert.assertEquals(11, seen.size());
+            Assert.assertEquals(11, seen.stream().distinct().count());
+            Assert.assertFalse(seen.contains(".hidden"));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import fileserver.Configuration;
+import fileserver.FileCache;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+
+public class FileCacheTests {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static FileCache create(final long size, final int maxEntrySize) {
+        return new FileCache(new Configuration(null, null, null, (short) 0, false,
+                Map.of("file-cache-size", List.of(Long.toString(size)), "file-cache-max-entry-size",
+                        List.of(Integer.toString(maxEntrySize)))));
+    }
+
+    private static String get(final FileCache cache, final Path file) throws IOException {
+        final ByteBuffer content = cache.get(file, Files.readAttributes(file, BasicFileAttributes.class));
+        return content != null ? StandardCharsets.UTF_8.decode(content).toString() : null;
+    }
+
+    @Test
+    public void invalidationTest() throws IOException {
+        final FileCache cache = create(1024, 64);
+        final Path file = Files.writeString(this.folder.getRoot().toPath().resolve("a.txt"), "first");
+
+        Assert.assertNull(get(cache, file));
+        Assert.assertEquals("first", get(cache, file));
+        // Reading a shared buffer doesn't consume it for the next request.
+        Assert.assertEquals("first", get(cache, file));
+        Files.writeString(file, "other");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+        Assert.assertEquals("other", get(cache, file));
+        Assert.assertEquals(5, cache.size());
+    }
+
+    @Test
+    public void capacityTest() throws IOException {
+        final FileCache cache = create(100, 40);
+        final Path root = this.folder.getRoot().toPath();
+
+        Assert.assertNull(get(cache, Files.write(root.resolve("large"), new byte[41])));
+        for (int i = 0; i < 5; ++i)
+        {
+            final Path file = Files.write(root.resolve(Integer.toString(i)), new byte[40]);
+            Assert.assertNull(get(cache, file));
+            Assert.assertEquals(40, get(cache, file).length());
+            Assert.assertTrue(cache.size() <= 100);
+        }
+        Assert.assertEquals(80, cache.size());
+        Assert.assertNull(get(create(0, 40), root.resolve("0")));
+    }
+
+    @Test
+    public void admissionTest() throws IOException {
+        final FileCache cache = create(1024, 64);
+        final Path root = this.folder.getRoot().toPath();
+        final Path hot = Files.writeString(root.resolve("hot.css"), "hot");
+
+        Assert.assertNull(get(cache, hot));
+        Assert.assertEquals("hot", get(cache, hot));
+        // Files that are only requested once never displace the ones that are requested again.
+        for (int i = 0; i < FileCache.ADMISSION_WINDOW + 1; ++i)
+        {
+            Assert.assertNull(get(cache, Files.writeString(root.resolve(i + ".txt"), "cold")));
+        }
+        Assert.assertEquals(3, cache.size());
+        // The first of them has been forgotten so it has to be requested twice again.
+        Assert.assertNull(get(cache, root.resolve("0.txt")));
+        Assert.assertEquals("cold", get(cache, root.resolve("0.txt")));
+        Assert.assertEquals("hot", get(cache, hot));
+    }
+}
@@ -0,0 +1,87 @@
+import fileserver.CompressionCache;
+import fileserver.Configuration;
+import fileserver.DirectoryCache;
+import fileserver.FileCache;
+import fileserver.Metrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTests {
+    @Test
+    public void histogramTest() {
+        final Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(16));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(17));
+        histogram.record(TimeUnit.SECONDS.toNanos(100));
+        final StringBuilder builder = new StringBuilder();
+        histogram.writeTo(builder, "latency_seconds", "Latency.");
+        final String text = builder.toString();
+
+        Assert.assertEquals(4, histogram.getCount());
+        Assert.assertTrue(text.startsWith("# HELP latency_seconds Latency.\n# TYPE latency_seconds histogram\n"));
+        // Buckets are cumulative and include values equal to their bound.
+        Assert.assertTrue(text.contains("latency_seconds_bucket{le=\"0.000016\"} 2\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{le=\"0.000024\"} 3\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{le=\"50.331648\"} 3\n"));
+        Assert.assertTrue(text.contains("latency_seconds_bucket{le=\"+Inf\"} 4\n"));
+        Assert.assertTrue(text.contains("latency_seconds_sum 100.000043\n"));
+        Assert.assertTrue(text.endsWith("latency_seconds_count 4\n"));
+    }
+
+    @Test
+    public void requestTest() {
+        final Configuration config = new Configuration(null, null, null, (short) 0, false,
+                Map.of("directory-watch", List.of("false")));
+        final Metrics metrics = new Metrics(new DirectoryCache(config), new CompressionCache(0), new FileCache(config),
+                null);
+        metrics.connectionOpened();
+        metrics.recordRequest("GET", 200, 100, 1_000, 2_000);
+        metrics.recordRequest("get", 200, -1, 1_000, 2_000);
+        metrics.recordRequest("PUT", 501, 50, -1, 2_000);
+        metrics.connectionOpened();
+        metrics.connectionClosed();
+        final String text = metrics.toString();
+
+        Assert.assertEquals(2, metrics.getRequests("GET", 200));
+        Assert.assertEquals(1, metrics.getRequests("DELETE", 501));
+        Assert.assertEquals(1, metrics.getActiveConnections());
+        Assert.assertTrue(text.contains("fileserver_requests_total{method=\"GET\",status=\"200\"} 2\n"));
+        Assert.assertTrue(text.contains("fileserver_requests_total{method=\"OTHER\",status=\"501\"} 1\n"));
+        Assert.assertTrue(text.contains("fileserver_response_bytes_total 150\n"));
+        Assert.assertTrue(text.contains("fileserver_connections_total 2\n"));
+        Assert.assertTrue(text.contains("fileserver_time_to_first_byte_seconds_count 2\n"));
+        Assert.assertTrue(text.contains("fileserver_response_seconds_count 3\n"));
+        Assert.assertFalse(text.contains("fileserver_executor_queue_depth"));
+    }
+
+    @Test
+    public void groupingTest() {
+        final Configuration config = new Configuration(null, null, null, (short) 0, false,
+                Map.of("directory-watch", List.of("false")));
+        final Metrics metrics = new Metrics(new DirectoryCache(config), new CompressionCache(0), new FileCache(config),
+                null);
+        metrics.recordRequest("GET", 200, 100, 1_000, 2_000);
+        String family = null;
+
+        // Every sample must follow the head of its own metric family or scrapers reject the whole page.
+        for (final String line : metrics.toString().split("\n"))
+        {
+            if (line.startsWith("# TYPE "))
+            {
+                family = line.split(" ")[2];
+            }
+            else if (!line.startsWith("#"))
+            {
+                final String name = line.split("[{ ]")[0];
+                Assert.assertNotNull(line, family);
+                Assert.assertTrue(line, name.equals(family) || name.equals(family + "_bucket") ||
+                        name.equals(family + "_sum") || name.equals(family + "_count"));
+            }
+        }
+    }
+}
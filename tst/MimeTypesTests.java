@@ -0,0 +1,58 @@
+import fileserver.Configuration;
+import fileserver.MimeTypes;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class MimeTypesTests {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private MimeTypes create(final boolean sniffing) throws IOException {
+        final Path root = this.folder.getRoot().toPath();
+        final Path icons = Files.createDirectories(root.resolve(".meta/img/icons/mimetypes"));
+        Files.writeString(icons.resolve("text-plain.svg"), "");
+        Files.writeString(icons.resolve("image-x-generic.svg"), "");
+        final Path table = Files.writeString(root.resolve("mime.types"),
+                "# A comment\ntext/x-custom  cst  CST2 # trailing comment\n\nimage/x-made-up mup\n");
+        final Configuration config = new Configuration(root, null, null, (short) 0, false,
+                Map.of("mime-types", List.of(table.toString()), "mime-sniffing", List.of(Boolean.toString(sniffing))));
+        return new MimeTypes(config);
+    }
+
+    @Test
+    public void extensionTest() throws IOException {
+        final MimeTypes types = create(false);
+
+        Assert.assertEquals("text/x-custom", types.getType(Path.of("a.cst")));
+        Assert.assertEquals("text/x-custom", types.getType(Path.of("a.cst2")));
+        Assert.assertEquals("text/plain", types.getType(Path.of("README.TXT")));
+        Assert.assertEquals("text/html", types.getType(Path.of("dir/index.html")));
+        Assert.assertEquals(MimeTypes.DEFAULT_TYPE, types.getType(Path.of("archive.unknown-extension")));
+        Assert.assertEquals(MimeTypes.DEFAULT_TYPE, types.getType(Path.of(".hidden")));
+    }
+
+    @Test
+    public void sniffingTest() throws IOException {
+        final Path file = Files.writeString(this.folder.getRoot().toPath().resolve("page"), "<html><body></body></html>");
+
+        Assert.assertEquals(MimeTypes.DEFAULT_TYPE, create(false).getType(file));
+        Assert.assertEquals("text/html", create(true).getType(file));
+    }
+
+    @Test
+    public void iconTest() throws IOException {
+        final MimeTypes types = create(false);
+
+        Assert.assertEquals("icons/mimetypes/text-plain.svg", types.getIcon("text/plain"));
+        Assert.assertEquals("icons/mimetypes/image-x-generic.svg", types.getIcon("image/x-made-up"));
+        Assert.assertEquals("icons/mimetypes/application-octet-stream.svg", types.getIcon("audio/mpeg"));
+    }
+}
@@ -0,0 +1,108 @@
+import fileserver.HttpRequest;
+import fileserver.RequestParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class RequestParserTests {
+    private static ByteBuffer bytes(final String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void parseTest() {
+        final RequestParser parser = new RequestParser(8192);
+        final HttpRequest request = parser.parse(bytes("GET /files/a.txt?page=2&size=10 HTTP/1.1\r\n" +
+                "Host: localhost\r\nAccept-Encoding:  gzip, br \r\nX-Repeated: 1\r\nx-repeated: 2\r\n\r\n"));
+
+        Assert.assertNotNull(request);
+        Assert.assertEquals(0, request.getErrorStatus());
+        Assert.assertEquals("GET /files/a.txt?page=2&size=10 HTTP/1.1", request.getRequestLine());
+        Assert.assertEquals("GET", request.getMethod());
+        Assert.assertEquals("/files/a.txt", request.getPath());
+        Assert.assertEquals("page=2&size=10", request.getQuery());
+        Assert.assertEquals("HTTP/1.1", request.getVersion());
+        Assert.assertEquals("gzip, br", request.getHeader("accept-encoding"));
+        Assert.assertEquals("1", request.getHeader("x-repeated"));
+        Assert.assertEquals(4, request.getHeaderCount());
+        Assert.assertNull(request.getHeader("range"));
+    }
+
+    @Test
+    public void incrementalTest() {
+        final RequestParser parser = new RequestParser(8192);
+        final String pipelined = "\r\nGET /a HTTP/1.1\nHost: x\n\nHEAD /b HTTP/1.0\r\n\r\nGET /c";
+        final ByteBuffer input = bytes(pipelined);
+        final ByteBuffer piece = ByteBuffer.allocate(1);
+        HttpRequest first = null;
+        // Feed a single byte at a time as if every byte arrived in its own segment.
+        while (first == null)
+        {
+            piece.clear();
+            piece.put(input.get()).flip();
+            first = parser.parse(piece);
+        }
+        Assert.assertEquals("/a", first.getPath());
+        Assert.assertEquals("x", first.getHeader("host"));
+        Assert.assertTrue(parser.parse(input) != null && !parser.isPartial());
+        // The start of the next pipelined request is kept until the rest of it arrives.
+        Assert.assertNull(parser.parse(input));
+        Assert.assertTrue(parser.isPartial());
+        final HttpRequest last = parser.parse(bytes(" HTTP/1.1\r\n\r\n"));
+        Assert.assertEquals("/c", last.getPath());
+    }
+
+    @Test
+    public void pathTest() {
+        Assert.assertEquals("/a b/c.txt", HttpRequest.decodePath("/a%20b/c.txt"));
+        Assert.assertEquals("/caf\u00e9", HttpRequest.decodePath("/caf%C3%A9"));
+        Assert.assertEquals("/a/c/", HttpRequest.decodePath("/a/./b/../c//"));
+        Assert.assertEquals("/", HttpRequest.decodePath("/a/.."));
+        Assert.assertEquals("/.meta/x", HttpRequest.decodePath("/.meta/x"));
+        Assert.assertNull(HttpRequest.decodePath("/../etc/passwd"));
+        Assert.assertNull(HttpRequest.decodePath("/a/%2e%2e/%2E%2E/etc"));
+        Assert.assertNull(HttpRequest.decodePath("/a%2F..%2F..%2Fetc"));
+        Assert.assertNull(HttpRequest.decodePath("/a%zz"));
+        Assert.assertNull(HttpRequest.decodePath("/a%00b"));
+        Assert.assertNull(HttpRequest.decodePath("/%C3"));
+        Assert.assertNull(HttpRequest.decodePath("a"));
+
+        final String name = "/100% \"r\u00e9sum\u00e9\" #1?.txt";
+        Assert.assertEquals(name, HttpRequest.decodePath(HttpRequest.encodePath(name)));
+        Assert.assertEquals("/plain/path.txt", HttpRequest.encodePath("/plain/path.txt"));
+    }
+
+    @Test
+    public void malformedTest() {
+        Assert.assertEquals(400, new RequestParser(8192).parse(bytes("GET /\r\n\r\n")).getErrorStatus());
+        Assert.assertEquals(400, new RequestParser(8192).parse(bytes("GET /../x HTTP/1.1\r\n\r\n")).getErrorStatus());
+        Assert.assertEquals(400, new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\nHost : x\r\n\r\n"))
+                .getErrorStatus());
+        Assert.assertEquals(400, new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\nA: b\r\n c\r\n\r\n"))
+                .getErrorStatus());
+        Assert.assertEquals(400, new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\nA: b\rc\r\n\r\n"))
+                .getErrorStatus());
+        Assert.assertEquals(505, new RequestParser(8192).parse(bytes("GET / HTTP/2.0\r\n\r\n")).getErrorStatus());
+        for (final String length : new String[]{ "abc", "-1", "+5", "5, 5", "", "1000000000000000000" })
+        {
+            Assert.assertEquals(length, 400, new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\nContent-Length: " +
+                    length + "\r\n\r\n")).getErrorStatus());
+        }
+        Assert.assertEquals(400, new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\nContent-Length: 5\r\n" +
+                "Content-Length: 6\r\n\r\n")).getErrorStatus());
+        Assert.assertEquals(0, new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\nContent-Length: 5\r\n" +
+                "Content-Length: 5\r\n\r\n")).getErrorStatus());
+
+        final HttpRequest longTarget = new RequestParser(64).parse(bytes("GET /" + "a".repeat(100)));
+        Assert.assertEquals(414, longTarget.getErrorStatus());
+        Assert.assertNull(longTarget.getRequestLine());
+        final HttpRequest longHead = new RequestParser(64).parse(bytes("GET / HTTP/1.1\r\nA: " + "a".repeat(100)));
+        Assert.assertEquals(431, longHead.getErrorStatus());
+        Assert.assertEquals("GET / HTTP/1.1", longHead.getRequestLine());
+        final HttpRequest manyHeaders = new RequestParser(8192).parse(bytes("GET / HTTP/1.1\r\n" +
+                "A: b\r\n".repeat(RequestParser.MAX_HEADERS + 1) + "\r\n"));
+        Assert.assertEquals(431, manyHeaders.getErrorStatus());
+    }
+}
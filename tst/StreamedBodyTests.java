@@ -0,0 +1,74 @@
+import fileserver.StreamedBody;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+public class StreamedBodyTests {
+    private static StreamedBody.Generator pieces(final String... pieces) {
+        return new StreamedBody.Generator() {
+            private int next = 0;
+
+            @Override
+            public boolean write(final OutputStream output) throws IOException {
+                output.write(pieces[this.next++].getBytes(StandardCharsets.UTF_8));
+                return this.next < pieces.length;
+            }
+
+            @Override
+            public void close() {
+                this.next = pieces.length;
+            }
+        };
+    }
+
+    private static byte[] readAll(final StreamedBody body) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // A small buffer makes the body span many reads.
+        final ByteBuffer buffer = ByteBuffer.allocate(7);
+        while (body.read(buffer) >= 0)
+        {
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        body.close();
+        return output.toByteArray();
+    }
+
+    @Test
+    public void plainTest() throws IOException {
+        final byte[] body = readAll(new StreamedBody(pieces("<p>", "streamed", "</p>"), null, false));
+
+        Assert.assertEquals("<p>streamed</p>", new String(body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void chunkedTest() throws IOException {
+        final byte[] body = readAll(new StreamedBody(pieces("<p>", "streamed", "</p>"), null, true));
+
+        Assert.assertEquals("f\r\n<p>streamed</p>\r\n0\r\n\r\n", new String(body, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void gzipTest() throws IOException {
+        final StringBuilder expected = new StringBuilder();
+        final String[] pieces = new String[500];
+        for (int i = 0; i < pieces.length; ++i)
+        {
+            pieces[i] = String.format("<tr><td>%d</td></tr>", i);
+            expected.append(pieces[i]);
+        }
+        final byte[] body = readAll(new StreamedBody(pieces(pieces), "gzip", false));
+        try (final InputStream input = new GZIPInputStream(new ByteArrayInputStream(body)))
+        {
+            Assert.assertEquals(expected.toString(), new String(input.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
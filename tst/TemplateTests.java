@@ -2,7 +2,16 @@ import fileserver.Template;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,6 +37,130 @@ public class TemplateTests {
         System.out.println(template.toString());
     }
 
+    @Test
+    public void renderBytesTest() {
+        final Template template = new Template("<p>%greeting%, %name%! 100%%</p>");
+
+        template.set("greeting", "Gr\u00fc\u00dfe");
+        template.set("name", "$1 \\ caf\u00e9");
+        final Template.Rendered rendered = template.render();
+        Assert.assertArrayEquals("<p>Gr\u00fc\u00dfe, $1 \\ caf\u00e9! 100%%</p>".getBytes(StandardCharsets.UTF_8),
+                rendered.getBytes());
+        Assert.assertSame(rendered, template.render());
+        template.unset("name");
+        Assert.assertEquals("<p>Gr\u00fc\u00dfe, ! 100%%</p>", template.toString());
+    }
+
+    @Test
+    public void renderAroundTest() {
+        final Template template = new Template("<h1>%title%</h1><main>%body%</main><footer>%title%</footer>");
+
+        template.set("title", "Index");
+        template.set("body", () -> {
+            throw new AssertionError("The split variable shouldn't be processed");
+        });
+        final Template.Rendered[] parts = template.renderAround("body");
+        Assert.assertEquals("<h1>Index</h1><main>", parts[0].toString());
+        Assert.assertEquals("</main><footer>Index</footer>", parts[1].toString());
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        final Template template = new Template("%value%");
+        final AtomicInteger renders = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        template.set("value", () -> {
+            renders.incrementAndGet();
+            try
+            {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (final InterruptedException err)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return "rendered";
+        });
+        final ExecutorService threadpool = Executors.newFixedThreadPool(8);
+        final List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; ++i)
+        {
+            results.add(threadpool.submit(template::toString));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (final Future<String> result : results)
+        {
+            Assert.assertEquals("rendered", result.get(5, TimeUnit.SECONDS));
+        }
+        threadpool.shutdown();
+        Assert.assertEquals(1, renders.get());
+    }
+
+    @Test
+    public void staleWhileRevalidateTest() throws Exception {
+        final Template template = new Template("%value%");
+        final AtomicInteger version = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        template.set("value", () -> {
+            final int current = version.incrementAndGet();
+            if (current > 1)
+            {
+                started.countDown();
+                try
+                {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException err)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return current;
+        });
+        Assert.assertEquals("1", template.toString());
+        template.invalidate();
+        final Thread renderer = new Thread(template::toString);
+        renderer.start();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        // The second render is in progress so the previous output is served without waiting.
+        Assert.assertEquals("1", template.toString());
+        release.countDown();
+        renderer.join(5_000);
+        Assert.assertEquals("2", template.toString());
+    }
+
+    @Test
+    public void failedRenderTest() {
+        final Template template = new Template("%value%");
+        final AtomicInteger version = new AtomicInteger();
+
+        template.setCacheDuration(Long.MAX_VALUE);
+        template.set("value", () -> {
+            final int current = version.incrementAndGet();
+            if (current == 2)
+            {
+                throw new IllegalStateException("The directory is briefly unreadable");
+            }
+            return current;
+        });
+        Assert.assertEquals("1", template.toString());
+        template.invalidate();
+        try
+        {
+            template.render();
+            Assert.fail("The Supplier's exception should reach the caller");
+        }
+        catch (final IllegalStateException expected)
+        {
+            // The invalidation must survive the failed render.
+        }
+        Assert.assertEquals("3", template.toString());
+    }
+
     @Test
     public void regexTest() {
         final Pattern tester = Template.TEMPLATE_PATTERN;
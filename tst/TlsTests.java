@@ -0,0 +1,137 @@
+import fileserver.Configuration;
+import fileserver.Tls;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TlsTests {
+    private static final String PASSWORD = "changeit";
+    private static Path keyStore;
+
+    @BeforeClass
+    public static void createKeyStore() throws IOException, InterruptedException {
+        final Path directory = Files.createTempDirectory("tls-tests");
+        directory.toFile().deleteOnExit();
+        keyStore = directory.resolve("server.p12");
+        keyStore.toFile().deleteOnExit();
+        final Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        final Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "server", "-keyalg",
+                "EC", "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12", "-keystore",
+                keyStore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true).start();
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        Assert.assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        Assert.assertEquals(0, process.exitValue());
+    }
+
+    private static Configuration create(final Map<String, List<String>> options) {
+        return new Configuration(null, null, null, (short) 0, false, options);
+    }
+
+    private static Configuration create() {
+        return create(Map.of("tls-keystore", List.of(keyStore.toString()), "tls-keystore-password",
+                List.of(PASSWORD)));
+    }
+
+    /**
+     * Connect to a server with a client context that trusts the test certificate and read the byte it sends.
+     */
+    private static void connect(final SSLContext client, final ServerSocket server, final Tls tls) throws Exception {
+        final CompletableFuture<Boolean> accepted = CompletableFuture.supplyAsync(() -> {
+            try (final SSLSocket secure = tls.open(server.accept()))
+            {
+                final boolean finished = tls.handshake(secure);
+                secure.getOutputStream().write(1);
+                return finished;
+            }
+            catch (final IOException err)
+            {
+                throw new RuntimeException(err);
+            }
+        });
+        try (final SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket(server.getInetAddress(),
+                server.getLocalPort()))
+        {
+            Assert.assertEquals(1, socket.getInputStream().read());
+        }
+        Assert.assertTrue(accepted.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void resumptionTest() throws Exception {
+        final Tls tls = new Tls(create());
+        final KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (final InputStream input = Files.newInputStream(keyStore))
+        {
+            trusted.load(input, PASSWORD.toCharArray());
+        }
+        final TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        final SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, trust.getTrustManagers(), null);
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()))
+        {
+            connect(client, server, tls);
+            // The client context caches the session so the second connection resumes it.
+            connect(client, server, tls);
+        }
+        Assert.assertEquals(1, tls.getHandshakes(false));
+        Assert.assertEquals(1, tls.getHandshakes(true));
+        Assert.assertEquals(0, tls.getHandshakeFailures());
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        final Tls tls = new Tls(create());
+        try (final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             final Socket plain = new Socket(server.getInetAddress(), server.getLocalPort()))
+        {
+            plain.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            try (final SSLSocket secure = tls.open(server.accept()))
+            {
+                Assert.assertFalse(tls.handshake(secure));
+            }
+        }
+        Assert.assertEquals(1, tls.getHandshakeFailures());
+        Assert.assertEquals(0, tls.getHandshakes(false));
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        final Path file = Files.createTempFile("tls-tests", ".conf");
+        file.toFile().deleteOnExit();
+        // A printed Configuration is a valid configuration file. Unset options mustn't come back as empty values.
+        Files.writeString(file, create().toString() + System.lineSeparator() + "tls-keystore-password=" + PASSWORD);
+        final Configuration config = Configuration.from(file);
+
+        Assert.assertEquals(keyStore, config.getTlsKeyStore());
+        Assert.assertTrue(config.getTlsCiphers().isEmpty());
+        Assert.assertNull(config.getMetricsPath());
+        new Tls(config);
+        Files.writeString(file, "tls-ciphers=" + System.lineSeparator() + "metrics-path=");
+        Assert.assertTrue(Configuration.from(file).getTlsCiphers().isEmpty());
+        Assert.assertNull(Configuration.from(file).getMetricsPath());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void protocolTest() throws Exception {
+        new Tls(create(Map.of("tls-keystore", List.of(keyStore.toString()), "tls-keystore-password",
+                List.of(PASSWORD), "tls-protocols", List.of("TLSv9"))));
+    }
+}
@@ -0,0 +1,91 @@
+import fileserver.HttpRequest;
+import fileserver.RequestParser;
+import fileserver.Validators;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class ValidatorsTests {
+    private static final String ENTITY_TAG = "\"1000-17a-2b\"";
+    private static final String LAST_MODIFIED = "Sat, 1 May 2021 12:00:00 GMT";
+
+    private static HttpRequest request(final String headers) {
+        return new RequestParser(8192).parse(ByteBuffer.wrap(String.format("GET / HTTP/1.1\r\n%s\r\n", headers)
+                .getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static Map<String, String> validators(final String entityTag) {
+        return Map.of("ETag", entityTag, "Last-Modified", LAST_MODIFIED);
+    }
+
+    @Test
+    public void encodingTest() {
+        Assert.assertEquals("\"1000-17a-2b-gzip\"", Validators.withEncoding(ENTITY_TAG, "gzip"));
+        Assert.assertEquals("W/\"a-b-deflate\"", Validators.withEncoding("W/\"a-b\"", "deflate"));
+        Assert.assertSame(ENTITY_TAG, Validators.withEncoding(ENTITY_TAG, null));
+        Assert.assertEquals(LAST_MODIFIED, Validators.toHttpDate(Validators.fromHttpDate(LAST_MODIFIED) * 1000));
+    }
+
+    @Test
+    public void ifNoneMatchTest() {
+        final Map<String, String> headers = validators(ENTITY_TAG);
+
+        Assert.assertTrue(Validators.notModified(request("If-None-Match: " + ENTITY_TAG + "\r\n"), headers));
+        // If-None-Match uses the weak comparison.
+        Assert.assertTrue(Validators.notModified(request("If-None-Match: W/" + ENTITY_TAG + "\r\n"), headers));
+        Assert.assertTrue(Validators.notModified(request("If-None-Match: \"other\", " + ENTITY_TAG + "\r\n"),
+                headers));
+        Assert.assertTrue(Validators.notModified(request("If-None-Match: *\r\n"), headers));
+        Assert.assertFalse(Validators.notModified(request("If-None-Match: \"other\", \"another\"\r\n"), headers));
+        // It takes precedence over If-Modified-Since.
+        Assert.assertFalse(Validators.notModified(request("If-None-Match: \"other\"\r\nIf-Modified-Since: " +
+                LAST_MODIFIED + "\r\n"), headers));
+    }
+
+    @Test
+    public void encodedIfNoneMatchTest() {
+        final Map<String, String> headers = validators(Validators.withEncoding(ENTITY_TAG, "gzip"));
+
+        // A cached identity body doesn't validate the compressed one or the other way around.
+        Assert.assertFalse(Validators.notModified(request("If-None-Match: " + ENTITY_TAG + "\r\n"), headers));
+        Assert.assertTrue(Validators.notModified(request("If-None-Match: \"1000-17a-2b-gzip\"\r\n"), headers));
+        Assert.assertFalse(Validators.notModified(request("If-None-Match: \"1000-17a-2b-gzip\"\r\n"),
+                validators(Validators.withEncoding(ENTITY_TAG, "deflate"))));
+    }
+
+    @Test
+    public void ifModifiedSinceTest() {
+        final Map<String, String> headers = validators(ENTITY_TAG);
+
+        Assert.assertTrue(Validators.notModified(request("If-Modified-Since: " + LAST_MODIFIED + "\r\n"), headers));
+        Assert.assertTrue(Validators.notModified(request("If-Modified-Since: Sun, 2 May 2021 12:00:00 GMT\r\n"),
+                headers));
+        Assert.assertFalse(Validators.notModified(request("If-Modified-Since: Fri, 30 Apr 2021 12:00:00 GMT\r\n"),
+                headers));
+        Assert.assertFalse(Validators.notModified(request("If-Modified-Since: yesterday\r\n"), headers));
+        Assert.assertFalse(Validators.notModified(request(""), headers));
+    }
+
+    @Test
+    public void ifRangeTest() {
+        final Map<String, String> headers = validators(ENTITY_TAG);
+
+        Assert.assertTrue(Validators.rangeApplies(request(""), headers));
+        Assert.assertTrue(Validators.rangeApplies(request("If-Range: " + ENTITY_TAG + "\r\n"), headers));
+        // If-Range uses the strong comparison so a weak tag never matches.
+        Assert.assertFalse(Validators.rangeApplies(request("If-Range: W/" + ENTITY_TAG + "\r\n"), headers));
+        Assert.assertFalse(Validators.rangeApplies(request("If-Range: W/" + ENTITY_TAG + "\r\n"),
+                validators("W/" + ENTITY_TAG)));
+        Assert.assertFalse(Validators.rangeApplies(request("If-Range: " + ENTITY_TAG + "\r\n"),
+                validators(Validators.withEncoding(ENTITY_TAG, "gzip"))));
+        Assert.assertTrue(Validators.rangeApplies(request("If-Range: " + LAST_MODIFIED + "\r\n"), headers));
+        Assert.assertFalse(Validators.rangeApplies(request("If-Range: Sun, 2 May 2021 12:00:00 GMT\r\n"),
+                headers));
+        Assert.assertFalse(Validators.rangeApplies(request("If-Range: yesterday\r\n"), headers));
+        Assert.assertFalse(Validators.rangeApplies(request("If-Range: " + LAST_MODIFIED + "\r\n"),
+                Map.of("ETag", ENTITY_TAG)));
+    }
+}
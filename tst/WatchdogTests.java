@@ -0,0 +1,50 @@
+import fileserver.Configuration;
+import fileserver.Watchdog;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class WatchdogTests {
+    private static Watchdog.Transfer create(final long sendTimeout, final int minSendRate) {
+        return new Watchdog.Transfer(new Configuration(null, null, null, (short) 0, false,
+                Map.of("send-timeout", List.of(Long.toString(sendTimeout)), "min-send-rate",
+                        List.of(Integer.toString(minSendRate)))));
+    }
+
+    @Test
+    public void windowTest() {
+        final Watchdog.Transfer transfer = create(1_000, 100);
+        Assert.assertFalse(transfer.isSending());
+        Assert.assertFalse(transfer.isTooSlow(10_000));
+
+        transfer.begin(0);
+        Assert.assertTrue(transfer.isSending());
+        transfer.add(150);
+        // Nothing is checked until a whole window has passed.
+        Assert.assertFalse(transfer.isTooSlow(999));
+        Assert.assertFalse(transfer.isTooSlow(1_000));
+        // The next window starts from the last check so the bytes of the first window don't count towards it.
+        transfer.add(99);
+        Assert.assertTrue(transfer.isTooSlow(2_000));
+        Assert.assertTrue(transfer.isExpired());
+    }
+
+    @Test
+    public void idleTest() {
+        final Watchdog.Transfer transfer = create(1_000, 0);
+        transfer.begin(0);
+        transfer.add(1);
+        Assert.assertFalse(transfer.isTooSlow(1_000));
+        // Without a minimum rate a window still has to make some progress.
+        Assert.assertTrue(transfer.isTooSlow(2_000));
+
+        final Watchdog.Transfer finished = create(1_000, 100);
+        finished.begin(0);
+        finished.end();
+        Assert.assertFalse(finished.isSending());
+        Assert.assertFalse(finished.isTooSlow(5_000));
+        Assert.assertFalse(finished.isExpired());
+    }
+}